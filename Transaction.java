@@ -6,7 +6,15 @@ import java.util.Optional;
  *   - Type of transaction, see {@link TransactionType}
  *   - a key
  *   - a value or ""
- *   - the transaction ID
+ *   - the transaction ID, a 64-bit hybrid logical clock value, see {@link TransactionClock}
+ *   - when the key expires (epoch milliseconds), or 0 if it never expires
+ *   - an optional condition on the current value of the key, see {@link Condition}
+ *   - for a large value: the upload its chunks were staged under and the number of chunks, see
+ *     {@link TransactionLargeValue}; the value itself is then ""
+ *   - the trace ID if the transaction is traced, 0 otherwise, see {@link TransactionTracer}
+ *
+ * The expiry time is absolute and decided once by the Transaction Manager, so every replica expires
+ * the key at the same moment.
  */
 class Transaction implements Serializable
 {
@@ -14,7 +22,17 @@ class Transaction implements Serializable
 			DELETE, INSERT, GET
 	};
 
-	private int globalID;
+	/**
+	 * Condition that every replica checks in phase one, under the key lock, before voting YES:
+	 *   - NONE: unconditional write
+	 *   - ABSENT: the key must not exist (putIfAbsent)
+	 *   - EQUALS: the key must exist with the expected value (compareAndSet, deleteIfEquals)
+	 */
+	public enum Condition {
+			NONE, ABSENT, EQUALS
+	};
+
+	private long globalID;
 
 	private TransactionType transactionType;
 
@@ -22,17 +40,113 @@ class Transaction implements Serializable
 
 	private String value;
 
+	private long expiresAt;
+
+	private Condition condition;
+
+	private String expectedValue;
+
+	private long upload;
+
+	private int chunks;
+
+	private long trace;
+
 
 	Transaction(
-			int globalID,
+			long globalID,
 			TransactionType transactionType,
 			String key,
 			Optional<String> value)
+	{
+		this(globalID, transactionType, key, value, 0);
+	}
+
+
+	Transaction(
+			long globalID,
+			TransactionType transactionType,
+			String key,
+			Optional<String> value,
+			long expiresAt)
+	{
+		this(globalID, transactionType, key, value, expiresAt, Condition.NONE, Optional.empty());
+	}
+
+
+	Transaction(
+			long globalID,
+			TransactionType transactionType,
+			String key,
+			Optional<String> value,
+			long expiresAt,
+			Condition condition,
+			Optional<String> expectedValue)
 	{
 		this.globalID = globalID;
 		this.key = key;
 		this.transactionType = transactionType;
 		this.value = value.orElse("");
+		this.expiresAt = expiresAt;
+		this.condition = condition;
+		this.expectedValue = expectedValue.orElse("");
+	}
+
+
+	/**
+	 * @return the same transaction with another ID
+	 */
+	Transaction withGlobalID(long globalID)
+	{
+		Transaction transaction = new Transaction(globalID, transactionType, key, Optional.of(value), expiresAt,
+			condition, Optional.of(expectedValue));
+		transaction.upload = upload;
+		transaction.chunks = chunks;
+		transaction.trace = trace;
+		return transaction;
+	}
+
+
+	/**
+	 * @return the same transaction as an unconditional write
+	 */
+	Transaction withoutCondition()
+	{
+		Transaction transaction = new Transaction(globalID, transactionType, key, Optional.of(value), expiresAt,
+			Condition.NONE, Optional.empty());
+		transaction.upload = upload;
+		transaction.chunks = chunks;
+		transaction.trace = trace;
+		return transaction;
+	}
+
+
+	/**
+	 * @return the same transaction, traced under the given trace ID (0 for not traced)
+	 */
+	Transaction withTrace(long trace)
+	{
+		Transaction transaction = withGlobalID(globalID);
+		transaction.trace = trace;
+		return transaction;
+	}
+
+
+	/**
+	 * @return the same transaction, writing the value that was staged in chunks under the given upload
+	 */
+	Transaction withChunks(long upload, int chunks)
+	{
+		Transaction transaction = withGlobalID(globalID);
+		transaction.upload = upload;
+		transaction.chunks = chunks;
+		return transaction;
+	}
+
+
+	public long getGlobalID()
+	{
+		return globalID;
 	}
 
 
@@ -52,4 +166,52 @@ class Transaction implements Serializable
 	{
 		return value;
 	}
+
+
+	public long getExpiresAt()
+	{
+		return expiresAt;
+	}
+
+
+	public boolean hasExpiry()
+	{
+		return expiresAt > 0;
+	}
+
+
+	public Condition getCondition()
+	{
+		return condition;
+	}
+
+
+	public String getExpectedValue()
+	{
+		return expectedValue;
+	}
+
+
+	public long getUpload()
+	{
+		return upload;
+	}
+
+
+	public int getChunks()
+	{
+		return chunks;
+	}
+
+
+	public boolean isChunked()
+	{
+		return chunks > 0;
+	}
+
+
+	public long getTrace()
+	{
+		return trace;
+	}
 }
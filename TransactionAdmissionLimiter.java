@@ -0,0 +1,266 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Admission control for one class of requests (reads or writes) of the transaction server.
+ *
+ * At most {@link #limit} requests run at a time. Further requests wait in a bounded queue, each for at
+ * most its queue deadline, and are rejected right away with a {@link TransactionOverloadedException}
+ * (with a retry-after hint) when the queue is full or the deadline passes. A saturated server therefore
+ * keeps completing the requests it has admitted at full speed, instead of slowing every request down
+ * until the clients time out.
+ *
+ * The limit adapts to the latency of the admitted requests (AIMD):
+ *   - a request that completes within {@link #LATENCY_TOLERANCE} times the minimum latency seen recently
+ *     raises the limit by 1/limit, i.e. by about one per round of requests
+ *   - a slower or failed request lowers it by {@link #BACKOFF_RATIO}, at most once per smoothed latency,
+ *     so one burst of slow requests counts as one signal
+ * A request has failed if it throws, e.g. a read that no replica could answer, or if its result says so,
+ * e.g. a write that was aborted (see {@link #call(Request, Predicate)}).
+ *
+ * The minimum latency is taken over windows of {@link #MIN_LATENCY_WINDOW} requests, so the limiter
+ * follows a change in the no-load latency (e.g. a replica added in another data center).
+ *
+ * @author dhimal
+ */
+class TransactionAdmissionLimiter
+{
+	/**
+	 * Admitted work.
+	 */
+	interface Request<T>
+	{
+		T run() throws RemoteException;
+	}
+
+	private static double LATENCY_TOLERANCE = 2.0;
+
+	private static double BACKOFF_RATIO = 0.9;
+
+	private static int MIN_LATENCY_WINDOW = 1000;
+
+	private static double SMOOTHING = 0.05;
+
+	private static long MAX_RETRY_AFTER_MILLIS = 1000;
+
+	private String name;
+
+	private double minLimit;
+
+	private double maxLimit;
+
+	private int maxQueued;
+
+	private long queueTimeoutMillis;
+
+	private final Object monitor = new Object();
+
+	private double limit;
+
+	private int inFlight;
+
+	private int queued;
+
+	private long minLatencyNanos = Long.MAX_VALUE;
+
+	private long windowMinLatencyNanos = Long.MAX_VALUE;
+
+	private int windowSamples;
+
+	private double smoothedLatencyNanos;
+
+	private long lastDecreaseNanos;
+
+	private AtomicLong rejected;
+
+
+	TransactionAdmissionLimiter(
+			String name,
+			int initialLimit,
+			int minLimit,
+			int maxLimit,
+			int maxQueued,
+			long queueTimeoutMillis)
+	{
+		this.name = name;
+		this.limit = initialLimit;
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxQueued = maxQueued;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+		this.rejected = new AtomicLong();
+	}
+
+
+	/**
+	 * Reads the settings from the system properties transaction.admission.&lt;name&gt;.initialLimit,
+	 * .minLimit, .maxLimit, .maxQueued and .queueTimeoutMillis.
+	 */
+	static TransactionAdmissionLimiter fromSystemProperties(
+			String name,
+			int initialLimit,
+			int maxLimit,
+			int maxQueued,
+			long queueTimeoutMillis)
+	{
+		String prefix = "transaction.admission." + name + ".";
+		return new TransactionAdmissionLimiter(
+			name,
+			Integer.getInteger(prefix + "initialLimit", initialLimit),
+			Integer.getInteger(prefix + "minLimit", 1),
+			Integer.getInteger(prefix + "maxLimit", maxLimit),
+			Integer.getInteger(prefix + "maxQueued", maxQueued),
+			Long.getLong(prefix + "queueTimeoutMillis", queueTimeoutMillis));
+	}
+
+
+	/**
+	 * Runs the request once it is admitted.
+	 *
+	 * @throws TransactionOverloadedException if the request was rejected; it has not run
+	 */
+	<T> T call(Request<T> request) throws RemoteException
+	{
+		return call(request, result -> true);
+	}
+
+
+	/**
+	 * Runs the request once it is admitted, for requests that report a failure in their result.
+	 *
+	 * @param succeeded whether the result is a success; a failure lowers the limit like an exception
+	 * @throws TransactionOverloadedException if the request was rejected; it has not run
+	 */
+	<T> T call(Request<T> request, Predicate<T> succeeded) throws RemoteException
+	{
+		acquire();
+		long start = System.nanoTime();
+		boolean completed = false;
+		try
+		{
+			T result = request.run();
+			completed = succeeded.test(result);
+			return result;
+		}
+		finally
+		{
+			release(System.nanoTime() - start, completed);
+		}
+	}
+
+
+	private void acquire() throws TransactionOverloadedException
+	{
+		synchronized (monitor)
+		{
+			if (inFlight < (int) limit)
+			{
+				inFlight++;
+				return;
+			}
+			if (queued >= maxQueued)
+			{
+				throw reject("queue full");
+			}
+			queued++;
+			try
+			{
+				long deadline = System.currentTimeMillis() + queueTimeoutMillis;
+				while (inFlight >= (int) limit)
+				{
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+					{
+						throw reject("queue deadline passed");
+					}
+					monitor.wait(wait);
+				}
+				inFlight++;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw reject("interrupted while queued");
+			}
+			finally
+			{
+				queued--;
+			}
+		}
+	}
+
+
+	private TransactionOverloadedException reject(String reason)
+	{
+		long count = rejected.incrementAndGet();
+		if (count % 1000 == 1)
+		{
+			TransactionLog.warning("Rejecting requests: {}", this);
+		}
+		return new TransactionOverloadedException(
+			"Transaction server saturated (" + name + " " + reason + ")", retryAfterMillis());
+	}
+
+
+	/**
+	 * @return roughly the time until the queue ahead of a new request has drained
+	 */
+	private long retryAfterMillis()
+	{
+		double rounds = 1 + (double) queued / Math.max(1, limit);
+		long millis = (long) (rounds * smoothedLatencyNanos / 1000000);
+		return Math.max(1, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+	}
+
+
+	private void release(long latencyNanos, boolean completed)
+	{
+		synchronized (monitor)
+		{
+			inFlight--;
+			updateLimit(latencyNanos, completed);
+			monitor.notifyAll();
+		}
+	}
+
+
+	private void updateLimit(long latencyNanos, boolean completed)
+	{
+		smoothedLatencyNanos = smoothedLatencyNanos == 0
+			? latencyNanos
+			: smoothedLatencyNanos + SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+
+		windowMinLatencyNanos = Math.min(windowMinLatencyNanos, latencyNanos);
+		minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+		if (++windowSamples == MIN_LATENCY_WINDOW)
+		{
+			minLatencyNanos = windowMinLatencyNanos;
+			windowMinLatencyNanos = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+
+		long now = System.nanoTime();
+		if (completed && latencyNanos <= LATENCY_TOLERANCE * minLatencyNanos)
+		{
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		else if (now - lastDecreaseNanos > smoothedLatencyNanos)
+		{
+			limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+			lastDecreaseNanos = now;
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		synchronized (monitor)
+		{
+			return String.format("%s limit=%.1f inFlight=%d queued=%d rejected=%d minLatency=%.2fms latency=%.2fms",
+				name, limit, inFlight, queued, rejected.get(),
+				minLatencyNanos == Long.MAX_VALUE ? 0 : minLatencyNanos / 1e6, smoothedLatencyNanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,827 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Collects the transactions a replica commits and writes them to the database in batches.
+ *
+ * A committed transaction is first appended to a log file and synced, which is all commit() waits for,
+ * and then kept in memory with only the last write per key (the one with the highest transaction ID).
+ * Every {@link #FLUSH_INTERVAL_MILLIS} the net changes are applied to the database in a single SQLite
+ * transaction, so a key that is written many times in the interval costs one row write instead of one per
+ * commit.
+ *
+ * Reads see the buffered writes: get, getMany and find look at the buffer before the database, and a
+ * scan flushes the buffer first.
+ *
+ * The chunks of large values do not go through the buffer: they are staged in the database right away,
+ * and only the transaction that refers to them is buffered. Every write to the database is made under the
+ * same monitor, so that a staged chunk never ends up in a flush that is rolled back.
+ *
+ * Values read from the database are cached off the heap in a {@link TransactionMemtable}, which a flush
+ * keeps up to date with the writes it applies.
+ *
+ * Reads of keys the replica does not have are answered by a {@link TransactionKeyFilter} without a query.
+ * The filter is built from the database at startup and kept up to date by append() and deleteExpired().
+ *
+ * The log is split in segments, one per flush. A segment is deleted once its writes are in the database;
+ * segments left over from a crash are replayed into the database at startup.
+ *
+ * Record layout (big endian): type (byte, ordinal of {@link Transaction.TransactionType}), transaction ID
+ * (long), expiry time (long), upload (long), chunks (int), key and value (each an int length and UTF-8 bytes).
+ *
+ * @author dhimal
+ */
+class TransactionApplyBuffer
+{
+	static long FLUSH_INTERVAL_MILLIS = 10;
+
+	/**
+	 * A buffer with this many keys is flushed right away by the committing thread.
+	 */
+	private static int MAX_PENDING_KEYS = 10000;
+
+	/**
+	 * The key filter is sized for twice the keys in the database at startup, and at least this many.
+	 */
+	private static long MIN_FILTER_CAPACITY = 1 << 20;
+
+	private static long FILTER_METRICS_LOG_INTERVAL = 100000;
+
+	private TransactionDatabase database;
+
+	private File logPrefix;
+
+	private FileChannel log;
+
+	private File logFile;
+
+	private long segment;
+
+	/**
+	 * Segments whose writes are not in the database yet, apart from the current one.
+	 */
+	private List<File> unappliedSegments;
+
+	private volatile Map<String, Transaction> pending;
+
+	/**
+	 * The writes of the flush in progress, until they are in the database.
+	 */
+	private volatile Map<String, Transaction> flushing;
+
+	/**
+	 * Commits append under the read lock; a flush swaps the buffer and the log segment under the write lock.
+	 */
+	private ReadWriteLock swapLock;
+
+	private final Object applying = new Object();
+
+	private ScheduledExecutorService flusher;
+
+	private TransactionKeyFilter keyFilter;
+
+	private TransactionMemtable memtable;
+
+	/**
+	 * Commits look up and count their key under the read lock; expired keys are deleted and taken out of the
+	 * key filter under the write lock, so that a key put again just as it expires is counted exactly once.
+	 */
+	private ReadWriteLock filterLock;
+
+	/**
+	 * Concurrent commits share the syncs of the log, see {@link TransactionGroupCommit}.
+	 */
+	private TransactionGroupCommit groupCommit;
+
+	/**
+	 * Commits that were skipped because the key has the same or a newer write already.
+	 */
+	private AtomicLong superseded;
+
+
+	/**
+	 * @param logPrefix the log segments are named logPrefix.&lt;segment&gt;
+	 */
+	TransactionApplyBuffer(TransactionDatabase database, File logPrefix, TransactionMemtable memtable)
+	{
+		this.database = database;
+		this.logPrefix = logPrefix;
+		this.memtable = memtable;
+		this.pending = new ConcurrentHashMap<>();
+		this.flushing = Collections.emptyMap();
+		this.swapLock = new ReentrantReadWriteLock();
+		this.filterLock = new ReentrantReadWriteLock();
+		this.unappliedSegments = new ArrayList<>();
+		this.groupCommit = new TransactionGroupCommit(this::forceSegment);
+		this.superseded = new AtomicLong();
+		recover();
+		openSegment(segment + 1);
+		buildKeyFilter();
+	}
+
+
+	private void buildKeyFilter()
+	{
+		keyFilter = new TransactionKeyFilter(Math.max(MIN_FILTER_CAPACITY, 2 * database.countKeys()));
+		try
+		{
+			database.forEachKey(keyFilter::add);
+			Logger.getGlobal().info("Key filter built: " + keyFilter);
+		}
+		catch (SQLException e)
+		{
+			// a filter that misses keys would hide them, so fall back to one that lets every key through
+			Logger.getGlobal().severe("Could not build the key filter, reads of missing keys go to the database");
+			keyFilter = new TransactionKeyFilter(1);
+			keyFilter.add("");
+		}
+	}
+
+
+	/**
+	 * Starts the background thread that flushes the buffer.
+	 */
+	void start()
+	{
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-apply-buffer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "transaction-apply-buffer-flush"));
+	}
+
+
+	/**
+	 * Logs the committed transaction and buffers it.
+	 *
+	 * @return false if the transaction could not be logged; it is then not applied
+	 */
+	boolean commit(Transaction transaction)
+	{
+		return append(transaction) && sync();
+	}
+
+
+	/**
+	 * Appends the transaction to the log, without syncing it, and buffers it. Commits are appended in the
+	 * order the replica applies them; the sync that makes them durable can then run outside that order,
+	 * and one sync covers every record appended before it.
+	 *
+	 * A transaction that is not newer than the last write of the key, in the buffer or in the database, has
+	 * been committed already or is superseded (a retried commit, a recovered transaction that was committed
+	 * after all): it is skipped without a log record, and the database checks again when it applies the
+	 * writes, see {@link TransactionDatabase#apply(Collection)}.
+	 *
+	 * @return false if the transaction could not be logged; it is then not applied
+	 */
+	boolean append(Transaction transaction)
+	{
+		Optional<Transaction> buffered = buffered(transaction.getKey());
+		if (buffered.isPresent() && buffered.get().getGlobalID() >= transaction.getGlobalID())
+		{
+			return superseded(transaction);
+		}
+		ByteBuffer record = encode(transaction);
+		filterLock.readLock().lock();
+		try
+		{
+			Optional<Long> version = liveVersion(transaction.getKey());
+			if (version.isPresent() && version.get() >= transaction.getGlobalID())
+			{
+				return superseded(transaction);
+			}
+			boolean existed = version.isPresent();
+			swapLock.readLock().lock();
+			try
+			{
+				while (record.hasRemaining())
+				{
+					log.write(record);
+				}
+				groupCommit.written();
+				pending.merge(transaction.getKey(), transaction, TransactionApplyBuffer::newer);
+			}
+			catch (IOException e)
+			{
+				TransactionLog.severe("Could not log transaction {} on {}", transaction.getGlobalID(), transaction.getKey());
+				return false;
+			}
+			finally
+			{
+				swapLock.readLock().unlock();
+			}
+			if (Transaction.TransactionType.INSERT.equals(transaction.transactionType()) && !existed)
+			{
+				keyFilter.add(transaction.getKey());
+			}
+			else if (Transaction.TransactionType.DELETE.equals(transaction.transactionType()) && existed)
+			{
+				keyFilter.remove(transaction.getKey());
+			}
+		}
+		finally
+		{
+			filterLock.readLock().unlock();
+		}
+		if (pending.size() >= MAX_PENDING_KEYS)
+		{
+			flush();
+		}
+		return true;
+	}
+
+
+	private boolean superseded(Transaction transaction)
+	{
+		long count = superseded.incrementAndGet();
+		TransactionLog.info("Transaction {} on {} is already applied or superseded, skipped", transaction.getGlobalID(),
+			transaction.getKey());
+		if (count % FILTER_METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("{} superseded commits skipped", count);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Forces the records appended so far to disk, together with those of the concurrent commits.
+	 *
+	 * @return false if the log could not be synced
+	 */
+	boolean sync()
+	{
+		try
+		{
+			groupCommit.await(groupCommit.lastWritten());
+			return true;
+		}
+		catch (IOException e)
+		{
+			TransactionLog.severe("Could not sync the log segment {}", logFile);
+			return false;
+		}
+	}
+
+
+	/**
+	 * A segment is forced before it is rotated, so this only needs to force the current one.
+	 */
+	private void forceSegment() throws IOException
+	{
+		swapLock.readLock().lock();
+		try
+		{
+			log.force(false);
+		}
+		finally
+		{
+			swapLock.readLock().unlock();
+		}
+	}
+
+
+	String syncMetrics()
+	{
+		return groupCommit.toString();
+	}
+
+
+	/**
+	 * The version of the key if it has been counted in the key filter: it has a row in the database or a
+	 * buffered insert. Called with the key lock held, so no other commit changes the key meanwhile. When in
+	 * doubt the answer is nothing, which may count a key twice but never takes out a key that was not counted.
+	 */
+	private Optional<Long> liveVersion(String key)
+	{
+		if (!mightContain(key))
+		{
+			return Optional.empty();
+		}
+		Optional<Transaction> transaction = buffered(key);
+		if (transaction.isPresent())
+		{
+			return Transaction.TransactionType.INSERT.equals(transaction.get().transactionType())
+				? Optional.of(transaction.get().getGlobalID())
+				: Optional.empty();
+		}
+		try
+		{
+			Optional<Long> version = load(key).map(TransactionDatabase.StoredValue::getVersion);
+			if (!version.isPresent())
+			{
+				keyFilter.falsePositive();
+			}
+			return version;
+		}
+		catch (SQLException e)
+		{
+			TransactionLog.severe("Could not look up {} for the key filter", key);
+			return Optional.empty();
+		}
+	}
+
+
+	private boolean mightContain(String key)
+	{
+		boolean mightContain = keyFilter.mightContain(key);
+		if (keyFilter.lookups() % FILTER_METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Key filter: {}", keyFilter);
+		}
+		return mightContain;
+	}
+
+
+	private static Transaction newer(Transaction current, Transaction update)
+	{
+		return update.getGlobalID() > current.getGlobalID() ? update : current;
+	}
+
+
+	/**
+	 * @return the buffered last write of the key, if there is one
+	 */
+	private Optional<Transaction> buffered(String key)
+	{
+		Transaction transaction = pending.get(key);
+		if (transaction == null)
+		{
+			transaction = flushing.get(key);
+		}
+		return Optional.ofNullable(transaction);
+	}
+
+
+	private static boolean isLive(Transaction transaction)
+	{
+		return Transaction.TransactionType.INSERT.equals(transaction.transactionType())
+			&& (!transaction.hasExpiry() || transaction.getExpiresAt() > System.currentTimeMillis());
+	}
+
+
+	/**
+	 * @return the value the buffered transaction writes; a large value is read from its staged chunks
+	 */
+	private String valueOf(Transaction transaction) throws SQLException
+	{
+		return transaction.isChunked()
+			? database.readValue(transaction.getKey(), transaction.getUpload(), transaction.getChunks())
+			: transaction.getValue();
+	}
+
+
+	/**
+	 * Looks the key up in the memtable, and in the database if it is not cached there.
+	 */
+	private Optional<TransactionDatabase.StoredValue> load(String key) throws SQLException
+	{
+		Optional<TransactionDatabase.StoredValue> cached = memtable.get(key);
+		if (cached.isPresent())
+		{
+			return cached;
+		}
+		long generation = memtable.generation(key);
+		Optional<TransactionDatabase.StoredValue> found = database.find(key);
+		found.ifPresent(stored -> memtable.fill(key, stored, generation));
+		return found;
+	}
+
+
+	/**
+	 * @return the value, or "" if the key does not exist
+	 * @throws SQLException if the key could not be read, which is not the same as "" to the caller
+	 */
+	String get(String key) throws SQLException
+	{
+		Optional<Transaction> transaction = buffered(key);
+		if (!transaction.isPresent())
+		{
+			if (!mightContain(key))
+			{
+				return "";
+			}
+			Optional<TransactionDatabase.StoredValue> found = load(key);
+			if (!found.isPresent())
+			{
+				keyFilter.falsePositive();
+				return "";
+			}
+			return found.get().isChunked() ? database.get(key) : found.get().getValue();
+		}
+		return isLive(transaction.get()) ? valueOf(transaction.get()) : "";
+	}
+
+
+	Map<String, String> getMany(Collection<String> keys) throws SQLException
+	{
+		List<String> unbuffered = new ArrayList<>();
+		Map<String, String> values = new HashMap<>();
+		for (String key : keys)
+		{
+			Optional<Transaction> transaction = buffered(key);
+			if (!transaction.isPresent())
+			{
+				if (mightContain(key))
+				{
+					Optional<TransactionDatabase.StoredValue> cached = memtable.get(key);
+					if (cached.isPresent())
+					{
+						values.put(key, cached.get().getValue());
+					}
+					else
+					{
+						unbuffered.add(key);
+					}
+				}
+			}
+			else if (isLive(transaction.get()))
+			{
+				values.put(key, valueOf(transaction.get()));
+			}
+		}
+		if (!unbuffered.isEmpty())
+		{
+			Map<String, String> found = database.getMany(unbuffered);
+			for (int i = found.size(); i < unbuffered.size(); i++)
+			{
+				keyFilter.falsePositive();
+			}
+			values.putAll(found);
+		}
+		return values;
+	}
+
+
+	/**
+	 * Like {@link TransactionDatabase#find(String)}, a buffered write is found with its expiry and whether it
+	 * is chunked, so that a condition on a large value is checked against the value and not its placeholder.
+	 */
+	Optional<TransactionDatabase.StoredValue> find(String key) throws SQLException
+	{
+		Optional<Transaction> transaction = buffered(key);
+		if (transaction.isPresent())
+		{
+			Transaction buffered = transaction.get();
+			return isLive(buffered)
+				? Optional.of(new TransactionDatabase.StoredValue(buffered.getValue(), buffered.getGlobalID(),
+					buffered.getExpiresAt(), buffered.isChunked()))
+				: Optional.empty();
+		}
+		if (!mightContain(key))
+		{
+			return Optional.empty();
+		}
+		Optional<TransactionDatabase.StoredValue> found = load(key);
+		if (!found.isPresent())
+		{
+			keyFilter.falsePositive();
+		}
+		return found;
+	}
+
+
+	TransactionLargeValue largeValue(String key) throws SQLException
+	{
+		Optional<Transaction> transaction = buffered(key);
+		if (!transaction.isPresent())
+		{
+			return mightContain(key) ? database.largeValue(key) : TransactionLargeValue.inline("");
+		}
+		if (!isLive(transaction.get()))
+		{
+			return TransactionLargeValue.inline("");
+		}
+		return transaction.get().isChunked()
+			? TransactionLargeValue.chunked(transaction.get().getUpload(), transaction.get().getChunks())
+			: TransactionLargeValue.inline(transaction.get().getValue());
+	}
+
+
+	void stageChunk(String key, long upload, int sequence, byte[] data) throws SQLException
+	{
+		synchronized (applying)
+		{
+			database.stageChunk(key, upload, sequence, data);
+		}
+	}
+
+
+	/**
+	 * Deletes the chunks of abandoned uploads, after flushing so that every committed upload is referred to
+	 * by the database.
+	 */
+	void deleteAbandonedChunks(long beforeUpload)
+	{
+		synchronized (applying)
+		{
+			flush();
+			database.deleteAbandonedChunks(beforeUpload);
+		}
+	}
+
+
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws SQLException
+	{
+		flush();
+		return database.scan(startKey, endKey, cursor, pageSize);
+	}
+
+
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws SQLException
+	{
+		flush();
+		return database.scanPrefix(prefix, cursor, pageSize);
+	}
+
+
+	List<Transaction> changes(long fromVersion, String afterKey, int limit) throws SQLException
+	{
+		flush();
+		return database.changes(fromVersion, afterKey, limit);
+	}
+
+
+	/**
+	 * Deletes expired keys. Buffered writes of those keys are flushed first, so that an expiring write
+	 * that is still in the buffer does not reach the database after its expiry has been handled.
+	 */
+	void deleteExpired(List<TransactionTimingWheel.Timer> timers)
+	{
+		synchronized (applying)
+		{
+			filterLock.writeLock().lock();
+			try
+			{
+				flush();
+				for (String key : database.deleteExpired(timers))
+				{
+					keyFilter.remove(key);
+					memtable.remove(key);
+				}
+			}
+			finally
+			{
+				filterLock.writeLock().unlock();
+			}
+		}
+	}
+
+
+	void pruneTombstones(long beforeVersion)
+	{
+		synchronized (applying)
+		{
+			database.pruneTombstones(beforeVersion);
+		}
+	}
+
+
+	/**
+	 * Applies the buffered writes to the database and deletes the log segments that hold them. If the
+	 * database fails, the writes go back into the buffer and their segments are kept for the next flush.
+	 */
+	void flush()
+	{
+		synchronized (applying)
+		{
+			swapLock.writeLock().lock();
+			try
+			{
+				if (pending.isEmpty())
+				{
+					return;
+				}
+				flushing = pending;
+				pending = new ConcurrentHashMap<>();
+				unappliedSegments.add(logFile);
+				openSegment(segment + 1);
+			}
+			finally
+			{
+				swapLock.writeLock().unlock();
+			}
+
+			try
+			{
+				long applyNanos = System.nanoTime();
+				database.apply(flushing.values());
+				// before the writes leave the buffer, so that a read never finds an older value in the memtable
+				flushing.values().forEach(memtable::written);
+				for (Transaction transaction : flushing.values())
+				{
+					// after the commit was acknowledged; traced to see what the batched write costs
+					TransactionTracer.span(transaction, "database apply", flushing.size() + " keys", applyNanos);
+				}
+				unappliedSegments.forEach(TransactionApplyBuffer::deleteSegment);
+				unappliedSegments.clear();
+			}
+			catch (SQLException e)
+			{
+				TransactionLog.severe("Could not apply {} buffered writes, retrying with the next flush", flushing.size());
+				flushing.values().forEach(transaction ->
+					pending.merge(transaction.getKey(), transaction, TransactionApplyBuffer::newer));
+			}
+			flushing = Collections.emptyMap();
+		}
+	}
+
+
+	private void openSegment(long number)
+	{
+		if (log != null)
+		{
+			try
+			{
+				log.force(false);
+				log.close();
+			}
+			catch (IOException e)
+			{
+				Logger.getGlobal().warning("Could not sync and close the log segment " + logFile);
+			}
+		}
+		segment = number;
+		logFile = new File(logPrefix.getPath() + "." + number);
+		try
+		{
+			log = FileChannel.open(logFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not open the log segment " + logFile.getAbsolutePath(), e);
+		}
+	}
+
+
+	private static void deleteSegment(File file)
+	{
+		if (!file.delete() && file.exists())
+		{
+			Logger.getGlobal().warning("Could not delete the applied log segment " + file);
+		}
+	}
+
+
+	/**
+	 * Replays the log segments left by the previous session into the database.
+	 */
+	private void recover()
+	{
+		File directory = logPrefix.getAbsoluteFile().getParentFile();
+		String name = logPrefix.getName() + ".";
+		File[] files = directory.listFiles((dir, file) -> file.startsWith(name) && file.substring(name.length()).matches("\\d+"));
+		if (files == null || files.length == 0)
+		{
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(file -> Long.parseLong(file.getName().substring(name.length()))));
+
+		Map<String, Transaction> replayed = new HashMap<>();
+		for (File file : files)
+		{
+			replay(file, replayed);
+			segment = Math.max(segment, Long.parseLong(file.getName().substring(name.length())));
+		}
+		try
+		{
+			database.apply(replayed.values());
+			Arrays.stream(files).forEach(TransactionApplyBuffer::deleteSegment);
+			Logger.getGlobal().info(replayed.size() + " logged writes replayed from " + files.length + " log segments");
+		}
+		catch (SQLException e)
+		{
+			// keep the segments and serve the writes from the buffer until the next flush
+			Logger.getGlobal().severe("Could not replay the log segments, keeping them");
+			unappliedSegments.addAll(Arrays.asList(files));
+			pending.putAll(replayed);
+		}
+	}
+
+
+	private static void replay(File file, Map<String, Transaction> replayed)
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			while (true)
+			{
+				Transaction transaction;
+				try
+				{
+					transaction = decode(in, file.length());
+				}
+				catch (EOFException e)
+				{
+					// end of the segment, or a record that was cut short by the crash and never acknowledged
+					return;
+				}
+				replayed.merge(transaction.getKey(), transaction, TransactionApplyBuffer::newer);
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not read the log segment " + file);
+		}
+	}
+
+
+	/**
+	 * Reads a record written by {@link #encode(Transaction)}.
+	 *
+	 * @param maxLength upper bound of a string length, to tell a torn record from a huge one
+	 * @throws EOFException at the end of the log or at a record that was cut short
+	 */
+	static Transaction decode(DataInputStream in, long maxLength) throws IOException
+	{
+		Transaction.TransactionType[] types = Transaction.TransactionType.values();
+		int ordinal = in.readUnsignedByte();
+		if (ordinal >= types.length)
+		{
+			throw new EOFException();
+		}
+		long id = in.readLong();
+		long expiresAt = in.readLong();
+		long upload = in.readLong();
+		int chunks = in.readInt();
+		String key = readString(in, maxLength);
+		String value = readString(in, maxLength);
+		return new Transaction(id, types[ordinal], key, Optional.of(value), expiresAt).withChunks(upload, chunks);
+	}
+
+
+	static ByteBuffer encode(Transaction transaction)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + transaction.getValue().length());
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeByte(transaction.transactionType().ordinal());
+			out.writeLong(transaction.getGlobalID());
+			out.writeLong(transaction.getExpiresAt());
+			out.writeLong(transaction.getUpload());
+			out.writeInt(transaction.getChunks());
+			writeString(out, transaction.getKey());
+			writeString(out, transaction.getValue());
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+
+	/**
+	 * Not writeUTF(), which is limited to 65535 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	private static String readString(DataInputStream in, long maxLength) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0 || length > maxLength)
+		{
+			// a torn length
+			throw new EOFException();
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,265 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Compact binary audit trail of every committed transaction, written by the Transaction Manager.
+ *
+ * Enabled with the system property transaction.auditLog=&lt;file&gt;. Committing threads only put the
+ * transaction and its timing in a preallocated slot of a {@link TransactionRingBuffer}; a background thread
+ * encodes the records into a direct buffer and appends them to the file. The audit trail is not synced to
+ * disk, it is for offline analysis, not for recovery.
+ *
+ * File layout (big endian): the header {@link #MAGIC} (int) and {@link #FORMAT_VERSION} (short), then one
+ * record per committed transaction:
+ *   - type (byte, ordinal of {@link Transaction.TransactionType})
+ *   - transaction ID (long)
+ *   - commit time (long, epoch milliseconds)
+ *   - duration of the two phase commit (int, microseconds)
+ *   - key length (int) and key (UTF-8 bytes)
+ *   - value length (int, UTF-8 bytes; the value itself is not recorded)
+ *
+ * Decode a trail with: java TransactionAuditLog &lt;file&gt;
+ *
+ * @author dhimal
+ */
+class TransactionAuditLog
+{
+	static int MAGIC = 0x54584131;
+
+	static short FORMAT_VERSION = 1;
+
+	private static int CAPACITY = 16384;
+
+	private static int BUFFER_BYTES = 1 << 16;
+
+	private static long IDLE_PARK_NANOS = 1000000;
+
+	private static class Entry
+	{
+		private Transaction transaction;
+
+		private long committedAt;
+
+		private long durationNanos;
+	}
+
+	private TransactionRingBuffer<Entry> ring;
+
+	private FileChannel channel;
+
+	private ByteBuffer buffer;
+
+	private AtomicLong dropped;
+
+
+	private TransactionAuditLog(FileChannel channel)
+	{
+		this.channel = channel;
+		this.dropped = new AtomicLong();
+		if (channel != null)
+		{
+			this.ring = new TransactionRingBuffer<>(CAPACITY, Entry::new);
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			Thread writer = new Thread(this::writeForever, "transaction-audit-log");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "transaction-audit-log-flush"));
+		}
+	}
+
+
+	/**
+	 * @return the audit log configured by transaction.auditLog, or a disabled one
+	 */
+	static TransactionAuditLog fromSystemProperties()
+	{
+		String path = System.getProperty("transaction.auditLog");
+		if (path == null)
+		{
+			return new TransactionAuditLog(null);
+		}
+		try
+		{
+			File file = new File(path);
+			boolean newFile = !file.exists() || file.length() == 0;
+			FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			if (newFile)
+			{
+				ByteBuffer header = ByteBuffer.allocate(6);
+				header.putInt(MAGIC).putShort(FORMAT_VERSION).flip();
+				channel.write(header);
+			}
+			Logger.getGlobal().info("Writing the audit log to " + file.getAbsolutePath());
+			return new TransactionAuditLog(channel);
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not open the audit log " + path);
+			return new TransactionAuditLog(null);
+		}
+	}
+
+
+	boolean isEnabled()
+	{
+		return channel != null;
+	}
+
+
+	/**
+	 * Records a committed transaction. Never blocks; if the writer has fallen behind the record is dropped.
+	 *
+	 * @param startNanos System.nanoTime() when the two phase commit started
+	 */
+	void committed(Transaction transaction, long startNanos)
+	{
+		if (channel == null)
+		{
+			return;
+		}
+		long position = ring.claim();
+		if (position < 0)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		Entry entry = ring.get(position);
+		entry.transaction = transaction;
+		entry.committedAt = System.currentTimeMillis();
+		entry.durationNanos = System.nanoTime() - startNanos;
+		ring.publish(position);
+	}
+
+
+	private void writeForever()
+	{
+		while (true)
+		{
+			if (flush() == 0)
+			{
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+
+	private synchronized int flush()
+	{
+		int drained = ring.drain(this::encode, Integer.MAX_VALUE);
+		writeBuffer();
+		if (dropped.get() > 0)
+		{
+			TransactionLog.warning("{} audit records dropped", dropped.getAndSet(0));
+		}
+		return drained;
+	}
+
+
+	private void encode(Entry entry)
+	{
+		Transaction transaction = entry.transaction;
+		byte[] key = transaction.getKey().getBytes(StandardCharsets.UTF_8);
+		int valueLength = transaction.getValue().getBytes(StandardCharsets.UTF_8).length;
+		if (buffer.remaining() < 29 + key.length)
+		{
+			writeBuffer();
+		}
+		if (buffer.remaining() < 29 + key.length)
+		{
+			TransactionLog.severe("Key of transaction {} is too large for the audit log", transaction.getGlobalID());
+		}
+		else
+		{
+			buffer.put((byte) transaction.transactionType().ordinal());
+			buffer.putLong(transaction.getGlobalID());
+			buffer.putLong(entry.committedAt);
+			buffer.putInt((int) Math.min(Integer.MAX_VALUE, entry.durationNanos / 1000));
+			buffer.putInt(key.length);
+			buffer.put(key);
+			buffer.putInt(valueLength);
+		}
+		entry.transaction = null;
+	}
+
+
+	private void writeBuffer()
+	{
+		buffer.flip();
+		try
+		{
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not write the audit log");
+		}
+		buffer.clear();
+	}
+
+
+	/**
+	 * Offline decoder: prints one line per record of the given audit trail.
+	 *
+	 * @param args the audit log file
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: java TransactionAuditLog <audit-log-file>");
+			System.exit(1);
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				System.err.println(args[0] + " is not an audit log");
+				System.exit(1);
+			}
+			short version = in.readShort();
+			if (version != FORMAT_VERSION)
+			{
+				System.err.println("Unsupported audit log version " + version);
+				System.exit(1);
+			}
+			System.out.println("id\tcommitted\ttype\tkey\tvalueBytes\tdurationMicros");
+			Transaction.TransactionType[] types = Transaction.TransactionType.values();
+			while (true)
+			{
+				int type;
+				try
+				{
+					type = in.readUnsignedByte();
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+				long id = in.readLong();
+				long committedAt = in.readLong();
+				int durationMicros = in.readInt();
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				int valueLength = in.readInt();
+				System.out.println(id + "\t" + Instant.ofEpochMilli(committedAt) + "\t" + types[type] + "\t"
+					+ new String(key, StandardCharsets.UTF_8) + "\t" + valueLength + "\t" + durationMicros);
+			}
+		}
+	}
+}
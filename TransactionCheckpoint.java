@@ -0,0 +1,571 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Online checkpoints of a replica's data store, taken in the background while commits go on, and the
+ * tool to restore them.
+ *
+ * A checkpoint is a SQLite file in the checkpoint directory, checkpoint-&lt;number&gt;-&lt;full|incremental&gt;.db,
+ * with the KEYVALUE tables of the data store and a CHECKPOINT_INFO row that describes it:
+ *   - a full checkpoint holds every row (and the chunks of the large values)
+ *   - an incremental checkpoint holds the rows written since the checkpoint it is based on, and the
+ *     tombstones of the keys deleted since
+ *
+ * Checkpoints read the data store on a connection of their own, in one read transaction; the data store
+ * runs in write-ahead log mode, so this is a consistent snapshot that does not block the writes of the
+ * replica (the write-ahead log just grows until the checkpoint is done). Writes still in the apply buffer
+ * are not part of the snapshot, they are in the next checkpoint.
+ *
+ * The copy is made in pages of {@link #PAGE_ROWS} rows, paced to {@link #rowsPerSecond}. The commit
+ * latency of the replica is watched while it runs: when its 95th percentile is above
+ * {@link #maxCommitP95Millis}, the copy backs off between pages (up to {@link #MAX_BACKOFF_MILLIS}) until
+ * it is back under. The log line of every checkpoint reports the commit latency before and at worst
+ * during the copy. With rowsPerSecond=0 a full checkpoint is taken with a single VACUUM INTO instead.
+ *
+ * Incremental checkpoints pick rows by the apply batch that wrote them rather than by transaction ID:
+ * transactions from several servers reach the data store out of ID order, so "IDs above the last
+ * checkpoint" could miss a write. The transaction IDs a checkpoint covers are recorded in CHECKPOINT_INFO.
+ * A deleted key only leaves a tombstone while checkpoints are taken, so the first checkpoint after a
+ * start is always a full one.
+ *
+ * Settings: -Dtransaction.checkpoint.dir (enables checkpoints), .intervalMillis, .fullEvery,
+ * .rowsPerSecond, .maxCommitP95Millis.
+ *
+ * Restoring: java TransactionCheckpoint restore &lt;checkpoint-dir&gt; &lt;database-file&gt; [number] rebuilds a data
+ * store from the last full checkpoint up to number and the incremental checkpoints after it.
+ *
+ * @author dhimal
+ */
+class TransactionCheckpoint
+{
+	private static int PAGE_ROWS = 1000;
+
+	private static long MAX_BACKOFF_MILLIS = 1000;
+
+	private static Pattern FILE_NAME = Pattern.compile("checkpoint-(\\d+)-(full|incremental)\\.db");
+
+	private File directory;
+
+	private String databaseUrl;
+
+	private TransactionLatencyTracker commitLatency;
+
+	/**
+	 * Called with the last batch of a checkpoint once it is written, so that the tombstones it holds may be dropped.
+	 */
+	private LongConsumer checkpointed;
+
+	private long intervalMillis;
+
+	private int fullEvery;
+
+	private int rowsPerSecond;
+
+	private long maxCommitP95Millis;
+
+	private boolean fullTaken;
+
+	private long backoffMillis;
+
+	private long pausedMillis;
+
+	private long worstCommitP95Nanos;
+
+
+	/**
+	 * Description of a checkpoint, from its CHECKPOINT_INFO row.
+	 */
+	private static class Info
+	{
+		private long number;
+
+		private boolean full;
+
+		private long base;
+
+		private long toBatch;
+
+		private File file;
+	}
+
+
+	TransactionCheckpoint(
+			File directory,
+			String databaseUrl,
+			TransactionLatencyTracker commitLatency,
+			LongConsumer checkpointed,
+			long intervalMillis,
+			int fullEvery,
+			int rowsPerSecond,
+			long maxCommitP95Millis)
+	{
+		this.directory = directory;
+		this.databaseUrl = databaseUrl;
+		this.commitLatency = commitLatency;
+		this.checkpointed = checkpointed;
+		this.intervalMillis = intervalMillis;
+		this.fullEvery = fullEvery;
+		this.rowsPerSecond = rowsPerSecond;
+		this.maxCommitP95Millis = maxCommitP95Millis;
+	}
+
+
+	/**
+	 * @param subdirectory of transaction.checkpoint.dir for the checkpoints of this database, "" for none
+	 * @return the checkpoints configured with the system properties, nothing if transaction.checkpoint.dir is not set
+	 */
+	static Optional<TransactionCheckpoint> fromSystemProperties(
+			String databaseUrl,
+			String subdirectory,
+			TransactionLatencyTracker commitLatency,
+			LongConsumer checkpointed)
+	{
+		String path = System.getProperty("transaction.checkpoint.dir");
+		if (path == null)
+		{
+			return Optional.empty();
+		}
+		return Optional.of(new TransactionCheckpoint(
+			subdirectory.isEmpty() ? new File(path) : new File(path, subdirectory),
+			databaseUrl,
+			commitLatency,
+			checkpointed,
+			Long.getLong("transaction.checkpoint.intervalMillis", 15 * 60 * 1000),
+			Integer.getInteger("transaction.checkpoint.fullEvery", 24),
+			Integer.getInteger("transaction.checkpoint.rowsPerSecond", 20000),
+			Long.getLong("transaction.checkpoint.maxCommitP95Millis", 20)));
+	}
+
+
+	void start()
+	{
+		if (!directory.exists() && !directory.mkdirs())
+		{
+			Logger.getGlobal().severe("Could not create the checkpoint directory " + directory.getAbsolutePath());
+			return;
+		}
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-checkpoint");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::take, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Takes the next checkpoint: a full one every {@link #fullEvery} checkpoints, and whenever there is
+	 * nothing to base an incremental one on.
+	 */
+	synchronized void take()
+	{
+		try
+		{
+			List<Info> existing = list(directory);
+			Optional<Info> last = existing.isEmpty() ? Optional.empty() : Optional.of(existing.get(existing.size() - 1));
+			long number = last.map(info -> info.number + 1).orElse(1L);
+			boolean full = !fullTaken || !last.isPresent() || sinceFull(existing) + 1 >= fullEvery;
+
+			File file = new File(directory, String.format("checkpoint-%06d-%s.db", number, full ? "full" : "incremental"));
+			File temporary = new File(directory, file.getName() + ".tmp");
+			Files.deleteIfExists(temporary.toPath());
+
+			long startMillis = System.currentTimeMillis();
+			long commitP95Before = commitLatency.p95Nanos();
+			worstCommitP95Nanos = commitP95Before;
+			pausedMillis = 0;
+			backoffMillis = 0;
+			long rows = full && rowsPerSecond <= 0
+				? vacuumInto(temporary)
+				: copy(temporary, full ? -1 : last.get().toBatch);
+			long toBatch = describe(temporary, number, full, full ? 0 : last.get().number, full ? 0 : last.get().toBatch);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+			fullTaken |= full;
+			checkpointed.accept(toBatch);
+			Logger.getGlobal().info(String.format(
+				"Checkpoint %s: %d rows in %d ms (paused %d ms), commit p95 %.2f ms before, %.2f ms at worst during",
+				file.getName(), rows, System.currentTimeMillis() - startMillis, pausedMillis,
+				Math.max(0, commitP95Before) / 1e6, Math.max(0, worstCommitP95Nanos) / 1e6));
+		}
+		catch (SQLException | IOException e)
+		{
+			Logger.getGlobal().severe("Could not take a checkpoint: " + e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private static int sinceFull(List<Info> existing)
+	{
+		int count = 0;
+		for (int i = existing.size() - 1; i >= 0 && !existing.get(i).full; i--)
+		{
+			count++;
+		}
+		return count;
+	}
+
+
+	/**
+	 * Copies the rows written after the given batch (all rows for -1), with their chunks and tombstones,
+	 * page by page in one read transaction.
+	 *
+	 * @return the number of rows copied
+	 */
+	private long copy(File target, long sinceBatch) throws SQLException, InterruptedException
+	{
+		try (Connection connection = DriverManager.getConnection(databaseUrl))
+		{
+			attach(connection, target);
+			connection.setAutoCommit(false);
+			try (Statement statement = connection.createStatement();
+				 PreparedStatement rows = connection.prepareStatement(
+					"INSERT INTO target.KEYVALUE SELECT * FROM main.KEYVALUE"
+						+ " WHERE (? IS NULL OR k > ?) AND applied_batch > ? ORDER BY k LIMIT ?");
+				 PreparedStatement lastKey = connection.prepareStatement("SELECT MAX(k) FROM target.KEYVALUE");
+				 PreparedStatement chunks = connection.prepareStatement(
+					"INSERT INTO target.KEYVALUE_CHUNK SELECT c.* FROM main.KEYVALUE_CHUNK c"
+						+ " JOIN main.KEYVALUE v ON v.k = c.k AND v.upload = c.upload"
+						+ " WHERE (? IS NULL OR v.k > ?) AND v.k <= ? AND v.applied_batch > ? AND v.chunks > 0");
+				 PreparedStatement tombstones = connection.prepareStatement(
+					"INSERT INTO target.KEYVALUE_TOMBSTONE SELECT * FROM main.KEYVALUE_TOMBSTONE WHERE applied_batch > ?"))
+			{
+				createSchema(statement);
+				long copied = 0;
+				String cursor = null;
+				while (true)
+				{
+					rows.setString(1, cursor);
+					rows.setString(2, cursor);
+					rows.setLong(3, sinceBatch);
+					rows.setInt(4, PAGE_ROWS);
+					int page = rows.executeUpdate();
+					if (page == 0)
+					{
+						break;
+					}
+					ResultSet resultSet = lastKey.executeQuery();
+					resultSet.next();
+					String pageEnd = resultSet.getString(1);
+					chunks.setString(1, cursor);
+					chunks.setString(2, cursor);
+					chunks.setString(3, pageEnd);
+					chunks.setLong(4, sinceBatch);
+					chunks.executeUpdate();
+					cursor = pageEnd;
+					copied += page;
+					pace(page);
+				}
+				if (sinceBatch >= 0)
+				{
+					tombstones.setLong(1, sinceBatch);
+					tombstones.executeUpdate();
+				}
+				connection.commit();
+				return copied;
+			}
+			finally
+			{
+				connection.rollback();
+				connection.setAutoCommit(true);
+				detach(connection);
+			}
+		}
+	}
+
+
+	/**
+	 * @return the number of rows in the snapshot
+	 */
+	private long vacuumInto(File target) throws SQLException
+	{
+		try (Connection connection = DriverManager.getConnection(databaseUrl);
+			 PreparedStatement vacuum = connection.prepareStatement("VACUUM INTO ?"))
+		{
+			vacuum.setString(1, target.getAbsolutePath());
+			vacuum.executeUpdate();
+		}
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + target.getAbsolutePath());
+			 Statement statement = connection.createStatement())
+		{
+			// a full checkpoint carries no tombstones
+			statement.executeUpdate("DELETE FROM KEYVALUE_TOMBSTONE");
+			ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM KEYVALUE");
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+	}
+
+
+	/**
+	 * Sleeps after a page for the configured rate, and longer while the commit latency is over its bound.
+	 */
+	private void pace(int rows) throws InterruptedException
+	{
+		long p95 = commitLatency.p95Nanos();
+		worstCommitP95Nanos = Math.max(worstCommitP95Nanos, p95);
+		if (p95 > TimeUnit.MILLISECONDS.toNanos(maxCommitP95Millis))
+		{
+			backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(10, backoffMillis * 2));
+		}
+		else
+		{
+			backoffMillis = 0;
+		}
+		long sleepMillis = (rowsPerSecond > 0 ? rows * 1000L / rowsPerSecond : 0) + backoffMillis;
+		pausedMillis += sleepMillis;
+		Thread.sleep(sleepMillis);
+	}
+
+
+	/**
+	 * Creates the KEYVALUE tables and indexes of the data store in the attached target, from their definitions
+	 * in the data store, so the checkpoint has exactly the same schema.
+	 */
+	private static void createSchema(Statement statement) throws SQLException
+	{
+		List<String> definitions = new ArrayList<>();
+		ResultSet resultSet = statement.executeQuery(
+			"SELECT type, sql FROM main.sqlite_master WHERE name LIKE 'KEYVALUE%' AND sql IS NOT NULL ORDER BY type DESC");
+		while (resultSet.next())
+		{
+			String sql = resultSet.getString("sql");
+			definitions.add("table".equals(resultSet.getString("type"))
+				? sql.replaceFirst("(?i)^CREATE TABLE (IF NOT EXISTS )?", "CREATE TABLE target.")
+				: sql.replaceFirst("(?i)^CREATE INDEX (IF NOT EXISTS )?", "CREATE INDEX target."));
+		}
+		for (String definition : definitions)
+		{
+			statement.execute(definition);
+		}
+	}
+
+
+	/**
+	 * Writes the CHECKPOINT_INFO row of the checkpoint.
+	 *
+	 * @param sinceBatch the last batch of the checkpoint this one is based on, 0 for a full one
+	 * @return the last batch in the checkpoint
+	 */
+	private static long describe(File file, long number, boolean full, long base, long sinceBatch) throws SQLException
+	{
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+			 Statement statement = connection.createStatement())
+		{
+			statement.execute("CREATE TABLE CHECKPOINT_INFO"
+				+ "(number INTEGER NOT NULL,"
+				+ "	kind TEXT NOT NULL,"
+				+ "	base INTEGER NOT NULL,"
+				+ "	from_batch INTEGER NOT NULL,"
+				+ "	to_batch INTEGER NOT NULL,"
+				+ "	min_version INTEGER NOT NULL,"
+				+ "	max_version INTEGER NOT NULL,"
+				+ "	created_at INTEGER NOT NULL"
+				+ ");");
+			ResultSet resultSet = statement.executeQuery(
+				"SELECT MAX(batch), MIN(version), MAX(version) FROM"
+					+ " (SELECT applied_batch AS batch, version FROM KEYVALUE UNION ALL SELECT applied_batch, version FROM KEYVALUE_TOMBSTONE)");
+			resultSet.next();
+			long toBatch = Math.max(sinceBatch, resultSet.getLong(1));
+			long minVersion = resultSet.getLong(2);
+			long maxVersion = resultSet.getLong(3);
+			try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO CHECKPOINT_INFO VALUES(?, ?, ?, ?, ?, ?, ?, ?)"))
+			{
+				insert.setLong(1, number);
+				insert.setString(2, full ? "full" : "incremental");
+				insert.setLong(3, base);
+				insert.setLong(4, sinceBatch);
+				insert.setLong(5, toBatch);
+				insert.setLong(6, minVersion);
+				insert.setLong(7, maxVersion);
+				insert.setLong(8, System.currentTimeMillis());
+				insert.executeUpdate();
+			}
+			return toBatch;
+		}
+	}
+
+
+	private static void attach(Connection connection, File file) throws SQLException
+	{
+		try (PreparedStatement attach = connection.prepareStatement("ATTACH DATABASE ? AS target"))
+		{
+			attach.setString(1, file.getAbsolutePath());
+			attach.execute();
+		}
+	}
+
+
+	private static void detach(Connection connection) throws SQLException
+	{
+		try (Statement statement = connection.createStatement())
+		{
+			statement.execute("DETACH DATABASE target");
+		}
+	}
+
+
+	/**
+	 * @return the checkpoints in the directory, in order
+	 */
+	private static List<Info> list(File directory) throws SQLException
+	{
+		List<Info> checkpoints = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files == null)
+		{
+			return checkpoints;
+		}
+		for (File file : files)
+		{
+			Matcher matcher = FILE_NAME.matcher(file.getName());
+			if (!matcher.matches())
+			{
+				continue;
+			}
+			try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+				 Statement statement = connection.createStatement())
+			{
+				ResultSet resultSet = statement.executeQuery("SELECT number, kind, base, to_batch FROM CHECKPOINT_INFO");
+				if (resultSet.next())
+				{
+					Info info = new Info();
+					info.number = resultSet.getLong("number");
+					info.full = "full".equals(resultSet.getString("kind"));
+					info.base = resultSet.getLong("base");
+					info.toBatch = resultSet.getLong("to_batch");
+					info.file = file;
+					checkpoints.add(info);
+				}
+			}
+		}
+		checkpoints.sort(Comparator.comparingLong(info -> info.number));
+		return checkpoints;
+	}
+
+
+	/**
+	 * Rebuilds a data store from the last full checkpoint up to the given number and the incremental
+	 * checkpoints after it, which must form an unbroken chain.
+	 */
+	static void restore(File directory, File databaseFile, long upToNumber) throws SQLException, IOException
+	{
+		if (databaseFile.exists())
+		{
+			throw new IOException(databaseFile + " exists, restore into a new file");
+		}
+		List<Info> chain = new ArrayList<>();
+		for (Info info : list(directory))
+		{
+			if (info.number > upToNumber)
+			{
+				break;
+			}
+			if (info.full)
+			{
+				chain.clear();
+			}
+			else if (chain.isEmpty() || chain.get(chain.size() - 1).number != info.base)
+			{
+				throw new IOException("Checkpoint " + info.number + " is based on " + info.base + ", which is missing");
+			}
+			chain.add(info);
+		}
+		if (chain.isEmpty())
+		{
+			throw new IOException("No full checkpoint in " + directory);
+		}
+
+		Files.copy(chain.get(0).file.toPath(), databaseFile.toPath());
+		try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getAbsolutePath());
+			 Statement statement = connection.createStatement())
+		{
+			for (Info increment : chain.subList(1, chain.size()))
+			{
+				attach(connection, increment.file);
+				connection.setAutoCommit(false);
+				try
+				{
+					statement.executeUpdate("INSERT OR REPLACE INTO KEYVALUE SELECT * FROM target.KEYVALUE");
+					statement.executeUpdate("INSERT OR REPLACE INTO KEYVALUE_CHUNK SELECT * FROM target.KEYVALUE_CHUNK");
+					// a key can have a row and a tombstone in the same increment; the newer one wins
+					statement.executeUpdate("DELETE FROM KEYVALUE WHERE EXISTS (SELECT 1 FROM target.KEYVALUE_TOMBSTONE t"
+						+ " WHERE t.k = KEYVALUE.k AND t.version > KEYVALUE.version)");
+					connection.commit();
+				}
+				catch (SQLException e)
+				{
+					connection.rollback();
+					throw e;
+				}
+				finally
+				{
+					connection.setAutoCommit(true);
+					detach(connection);
+				}
+				System.out.println("Applied " + increment.file.getName());
+			}
+			statement.executeUpdate("DELETE FROM KEYVALUE_TOMBSTONE");
+			statement.executeUpdate("DELETE FROM KEYVALUE_CHUNK WHERE NOT EXISTS (SELECT 1 FROM KEYVALUE"
+				+ " WHERE KEYVALUE.k = KEYVALUE_CHUNK.k AND KEYVALUE.upload = KEYVALUE_CHUNK.upload)");
+			statement.execute("DROP TABLE CHECKPOINT_INFO");
+		}
+		System.out.println("Restored " + databaseFile + " from " + chain.get(0).file.getName()
+			+ " and " + (chain.size() - 1) + " incremental checkpoints");
+	}
+
+
+	/**
+	 * java TransactionCheckpoint list &lt;checkpoint-dir&gt;
+	 * java TransactionCheckpoint restore &lt;checkpoint-dir&gt; &lt;database-file&gt; [number]
+	 *
+	 * Needs the SQLite JAR on the classpath, like the replica.
+	 */
+	public static void main(String[] args) throws SQLException, IOException
+	{
+		if (args.length == 2 && "list".equals(args[0]))
+		{
+			System.out.println("number\tkind\tbase\tfile\tmodified");
+			for (Info info : list(new File(args[1])))
+			{
+				System.out.println(info.number + "\t" + (info.full ? "full" : "incremental") + "\t" + info.base
+					+ "\t" + info.file.getName() + "\t" + Instant.ofEpochMilli(info.file.lastModified()));
+			}
+		}
+		else if ((args.length == 3 || args.length == 4) && "restore".equals(args[0]))
+		{
+			restore(new File(args[1]), new File(args[2]), args.length == 4 ? Long.parseLong(args[3]) : Long.MAX_VALUE);
+		}
+		else
+		{
+			System.err.println("Usage: java TransactionCheckpoint list <checkpoint-dir>");
+			System.err.println("       java TransactionCheckpoint restore <checkpoint-dir> <database-file> [number]");
+			System.exit(1);
+		}
+	}
+}
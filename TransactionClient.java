@@ -1,6 +1,3 @@
-import java.net.MalformedURLException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.InputMismatchException;
 import java.util.Scanner;
@@ -12,7 +9,7 @@ import java.util.logging.Logger;
  *
  * Takes in the following arguments from the user:
  * 		"1. The port number this UDP Client should be running at.\n" +
- * 		"2. The IP address of the UDP server.\n" +
+ * 		"2. The IP address of the UDP server (or a comma separated ip[:port] list of transaction servers).\n" +
  * 		"3. The port number of the UDP server.\n" +
  * 		"4. debug option\n");
  *
@@ -97,10 +94,13 @@ public class TransactionClient
 			Logger.getGlobal().setLevel(Level.WARNING);
 		}
 
+		TransactionSocketFactory.install();
+
 		try
 		{
-			TransactionInterfaceServerToClient remoteObject = (TransactionInterfaceServerToClient) Naming.lookup(
-				"rmi://" + serverIPAddress + ":" + serverPort + TransactionServer.SERVER_RMI_LOCATION);
+			// discovers all transaction servers from the given ones and spreads the calls over them
+			TransactionInterfaceServerToClient remoteObject = TransactionCoordinators.connect(
+				TransactionCoordinators.parse(serverIPAddress, serverPort));
 
 			// Logger.getGlobal().info("Message received : " + remoteObject.getInformation());
 
@@ -127,7 +127,11 @@ public class TransactionClient
 						System.out.println("Enter the value");
 						String value = scanner.next();
 
-						if (!remoteObject.put(key, value))
+						long trace = TransactionTracer.sampleClient();
+						long start = System.nanoTime();
+						boolean put = TransactionOverloadedException.retrying(() -> remoteObject.put(key, value));
+						TransactionTracer.span(trace, TransactionTracer.CLIENT, "put " + key, start);
+						if (!put)
 						{
 						    // TODO - is this really happening?
 							Logger.getGlobal().severe("Looks like the transaction didn't go through. Try again.");
@@ -138,7 +142,7 @@ public class TransactionClient
 						System.out.println("Enter the key:");
 						key = scanner.next();
 
-						if (!remoteObject.del(key))
+						if (!TransactionOverloadedException.retrying(() -> remoteObject.del(key)))
 						{
 						    // TODO - is this really happening
 							Logger.getGlobal().severe("Looks like the transaction didn't go through. Try again.");
@@ -149,7 +153,7 @@ public class TransactionClient
 						System.out.println("Enter the key:");
 						key = scanner.next();
 
-						String value = remoteObject.get(key);
+						String value = TransactionOverloadedException.retrying(() -> remoteObject.get(key));
 
 						// todo - how does the client know if it fails?
 						System.out.println(value);
@@ -165,9 +169,14 @@ public class TransactionClient
 					scanner.next();
 					Logger.getGlobal().severe("Input mismatch.");
 				}
+				catch (RemoteException e)
+				{
+					// the other servers have been tried as well, see TransactionCoordinators
+					Logger.getGlobal().severe("The request failed: " + e.getMessage() + ". Try again.");
+				}
 			}
 		}
-		catch (RemoteException | NotBoundException | MalformedURLException e)
+		catch (RemoteException e)
 		{
 			Logger.getGlobal().severe("Could not contact the server.");
 			System.exit(0);
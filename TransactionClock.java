@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Hybrid logical clock that issues the 64-bit transaction IDs.
+ *
+ * An ID is laid out as
+ *   - 1 bit: sign, always 0
+ *   - 40 bits: physical time, milliseconds since {@link #EPOCH_MILLIS} (good until 2053)
+ *   - 13 bits: logical counter, for IDs issued within the same millisecond
+ *   - 10 bits: node id of the issuing transaction server
+ *
+ * so IDs of different transaction servers never collide, and comparing two IDs orders them by time
+ * (and by node id as a tie breaker). The replicas use this order as the version of a key. IDs are always
+ * positive, so they compare correctly as signed longs, in Java and in SQLite; a clock refuses to start
+ * once the physical time no longer fits.
+ *
+ * Threads take IDs from blocks of {@link #BLOCK_SIZE} that they reserve with a single compare-and-set, so
+ * issuing an ID normally touches no shared state. A block is dropped once the clock has moved on to the
+ * next millisecond, so an idle thread never hands out an old ID.
+ *
+ * IDs stay monotonic across restarts, even if the wall clock moves backwards: the clock persists a lease
+ * on the physical time it may use (now + {@link #LEASE_MILLIS}) and starts after the last lease on restart.
+ * The lease is renewed in the background well before the clock reaches it, so issuing an ID does not wait
+ * for the lease file to be synced; only a clock that jumps ahead (see {@link #observe(long)}) or a renewal
+ * that falls behind extends it on the spot. A new lease is written to a temporary file, synced and moved over
+ * the old one, so a crash leaves either lease whole. A lease file that exists but cannot be read stops the
+ * clock from starting, since starting without it could issue IDs below ones issued before.
+ *
+ * @author dhimal
+ */
+class TransactionClock
+{
+	/**
+	 * 2019-01-01T00:00:00Z
+	 */
+	static long EPOCH_MILLIS = 1546300800000L;
+
+	private static int NODE_BITS = 10;
+
+	private static int LOGICAL_BITS = 13;
+
+	private static int PHYSICAL_BITS = 40;
+
+	static int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+	private static int BLOCK_SIZE = 64;
+
+	private static long LEASE_MILLIS = 10000;
+
+	private static long LEASE_RENEWAL_MILLIS = LEASE_MILLIS / 4;
+
+	private int nodeId;
+
+	/**
+	 * The next free clock value: physical time << LOGICAL_BITS | logical counter.
+	 */
+	private AtomicLong state;
+
+	private ThreadLocal<long[]> blocks;
+
+	private File leaseFile;
+
+	private volatile long leaseUntil;
+
+
+	TransactionClock(int nodeId, File leaseFile)
+	{
+		if (nodeId < 0 || nodeId > MAX_NODE_ID)
+		{
+			throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+		}
+		this.nodeId = nodeId;
+		this.leaseFile = leaseFile;
+		this.blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+		long physical = Math.max(physicalNow(), readLease());
+		if (physical + LEASE_MILLIS >= 1L << PHYSICAL_BITS)
+		{
+			throw new IllegalStateException("The physical time no longer fits in the transaction IDs");
+		}
+		this.state = new AtomicLong(physical << LOGICAL_BITS);
+		if (!writeLease(physical + LEASE_MILLIS))
+		{
+			throw new IllegalStateException("Could not write the clock lease " + leaseFile.getAbsolutePath());
+		}
+		startLeaseRenewal();
+	}
+
+
+	/**
+	 * Creates the clock for the node id in the system property transaction.nodeId (default 0). Every
+	 * transaction server that shares replicas must have its own node id.
+	 */
+	static TransactionClock fromSystemProperties()
+	{
+		int nodeId = Integer.getInteger("transaction.nodeId", 0);
+		File leaseFile = new File(System.getProperty("transaction.clockLeaseFile", "transaction-clock-" + nodeId + ".lease"));
+		Logger.getGlobal().info("Transaction clock node id " + nodeId + ", lease file " + leaseFile.getAbsolutePath());
+		return new TransactionClock(nodeId, leaseFile);
+	}
+
+
+	/**
+	 * @return a new transaction ID, greater than every ID this clock has issued or observed before
+	 * (per thread; IDs of different threads are unique but interleave within a millisecond)
+	 */
+	long next()
+	{
+		long[] block = blocks.get();
+		if (block[0] == block[1] || (block[0] >>> LOGICAL_BITS) < physicalNow())
+		{
+			block[0] = reserve(BLOCK_SIZE);
+			block[1] = block[0] + BLOCK_SIZE;
+		}
+		return (block[0]++ << NODE_BITS) | nodeId;
+	}
+
+
+	/**
+	 * @return a new transaction ID that is greater than every ID issued by this clock so far, on any thread.
+	 * Bypasses the per-thread block, so it costs a compare-and-set on the shared state.
+	 */
+	long nextFresh()
+	{
+		blocks.get()[1] = blocks.get()[0];
+		return (reserve(1) << NODE_BITS) | nodeId;
+	}
+
+
+	/**
+	 * Moves the clock past an ID seen from another transaction server, so that the IDs issued from now
+	 * on are ordered after it.
+	 */
+	void observe(long transactionID)
+	{
+		long observed = (transactionID >>> NODE_BITS) + 1;
+		state.accumulateAndGet(observed, Math::max);
+	}
+
+
+	/**
+	 * @return the physical time part of an ID, in epoch milliseconds
+	 */
+	static long physicalMillis(long transactionID)
+	{
+		return (transactionID >>> (NODE_BITS + LOGICAL_BITS)) + EPOCH_MILLIS;
+	}
+
+
+	/**
+	 * @return the lowest ID any clock can issue at the given time, to compare IDs with a point in time
+	 */
+	static long firstID(long epochMillis)
+	{
+		return (epochMillis - EPOCH_MILLIS) << (NODE_BITS + LOGICAL_BITS);
+	}
+
+
+	int nodeId()
+	{
+		return nodeId;
+	}
+
+
+	static int nodeId(long transactionID)
+	{
+		return (int) (transactionID & MAX_NODE_ID);
+	}
+
+
+	private long reserve(int count)
+	{
+		while (true)
+		{
+			long current = state.get();
+			long start = Math.max(current, physicalNow() << LOGICAL_BITS);
+			// a full logical counter simply carries into the physical part
+			if (state.compareAndSet(current, start + count))
+			{
+				long physical = (start + count) >>> LOGICAL_BITS;
+				if (physical >= leaseUntil)
+				{
+					extendLease(physical);
+				}
+				return start;
+			}
+		}
+	}
+
+
+	private void startLeaseRenewal()
+	{
+		ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-clock-lease");
+			thread.setDaemon(true);
+			return thread;
+		});
+		renewal.scheduleWithFixedDelay(this::renewLease, LEASE_RENEWAL_MILLIS, LEASE_RENEWAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Extends the lease once less than half of it is left ahead of the clock.
+	 */
+	private void renewLease()
+	{
+		long physical = Math.max(physicalNow(), state.get() >>> LOGICAL_BITS);
+		extendLease(physical + LEASE_MILLIS / 2);
+	}
+
+
+	private synchronized void extendLease(long physical)
+	{
+		if (physical >= leaseUntil)
+		{
+			writeLease(physical + LEASE_MILLIS);
+		}
+	}
+
+
+	private static long physicalNow()
+	{
+		return System.currentTimeMillis() - EPOCH_MILLIS;
+	}
+
+
+	/**
+	 * @return the last lease, 0 if there is none
+	 * @throws IllegalStateException if there is a lease that cannot be read
+	 */
+	private long readLease()
+	{
+		if (!leaseFile.exists())
+		{
+			return 0;
+		}
+		try
+		{
+			return Long.parseLong(new String(Files.readAllBytes(leaseFile.toPath()), StandardCharsets.UTF_8).trim());
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			Logger.getGlobal().severe("Could not read the clock lease " + leaseFile.getAbsolutePath());
+			throw new IllegalStateException("Could not read the clock lease " + leaseFile.getAbsolutePath()
+				+ "; the IDs issued before it are unknown", e);
+		}
+	}
+
+
+	/**
+	 * The lease only moves once the new one is on disk; until then the clock keeps trying to extend it.
+	 *
+	 * @return false if the lease could not be written
+	 */
+	private boolean writeLease(long physical)
+	{
+		File next = new File(leaseFile.getAbsoluteFile().getParentFile(), leaseFile.getName() + ".tmp");
+		try
+		{
+			try (RandomAccessFile file = new RandomAccessFile(next, "rw"))
+			{
+				file.setLength(0);
+				file.write(Long.toString(physical).getBytes(StandardCharsets.UTF_8));
+				file.getFD().sync();
+			}
+			Files.move(next.toPath(), leaseFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not write the clock lease " + leaseFile.getAbsolutePath());
+			return false;
+		}
+		leaseUntil = physical;
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Replica side reordering of the phase two messages of the Transaction Managers' pipelines, see
+ * {@link TransactionReplicaPipeline}.
+ *
+ * Each pipeline (stream) numbers its messages 0, 1, 2, ... A message is applied once all messages before
+ * it in its stream have been applied; one that arrives early waits for them. Streams are independent of
+ * each other.
+ *
+ * Every message also carries the first sequence number its pipeline has not had an answer for yet: the
+ * messages before it have been applied here, or their call failed and the pipeline has given up on them.
+ * A stream starts there, so the replica does not need to have seen the stream before (e.g. after a
+ * restart), and it moves past a message that never arrives as soon as the pipeline knows its call failed.
+ * A message that arrives after the stream has moved past it was given up on, and is applied right away.
+ *
+ * A message that still waits for a gap after {@link #GAP_TIMEOUT_MILLIS}, because no later message has
+ * told the replica the gap was given up on, is not applied out of order: {@link #inOrder} returns null
+ * without running it, and the caller keeps the transaction prepared until its outcome is known, see
+ * {@link TransactionReplica#commit(Transaction, long, long, long)}.
+ *
+ * Streams that have not sent anything for {@link #IDLE_STREAM_MILLIS} are forgotten; the Transaction
+ * Manager starts a new one every time it starts.
+ *
+ * Only the ordered step runs in order; see {@link TransactionReplica#commit(Transaction, long, long, long)}.
+ *
+ * @author dhimal
+ */
+class TransactionCommitSequencer
+{
+	static long GAP_TIMEOUT_MILLIS = 1000;
+
+	static long IDLE_STREAM_MILLIS = 600000;
+
+	private static class Stream
+	{
+		/**
+		 * Next sequence number to apply.
+		 */
+		private long expected;
+
+		private long lastSeen;
+
+		private int waiting;
+
+
+		Stream(long expected)
+		{
+			this.expected = expected;
+		}
+	}
+
+	private Map<Long, Stream> streams = new HashMap<>();
+
+	private long lastEviction = System.currentTimeMillis();
+
+
+	/**
+	 * Runs the action in sequence order of its stream.
+	 *
+	 * @param firstPending the first sequence number the stream has not had an answer for
+	 * @return the result of the action, or null if the action did not run because of a gap
+	 */
+	<T> T inOrder(long stream, long sequence, long firstPending, Supplier<T> action)
+	{
+		Boolean ordered = awaitTurn(stream, sequence, firstPending);
+		if (ordered == null)
+		{
+			return null;
+		}
+		try
+		{
+			return action.get();
+		}
+		finally
+		{
+			if (ordered)
+			{
+				advance(stream, sequence);
+			}
+		}
+	}
+
+
+	/**
+	 * @return true when it is the message's turn, false if the message is late and runs out of order, null
+	 * if its turn has not come within the gap timeout
+	 */
+	private synchronized Boolean awaitTurn(long stream, long sequence, long firstPending)
+	{
+		long now = System.currentTimeMillis();
+		evictIdleStreams(now);
+		Stream state = streams.computeIfAbsent(stream, started -> new Stream(firstPending));
+		state.lastSeen = now;
+		if (firstPending > state.expected)
+		{
+			// the messages before firstPending have been answered, or given up on by the pipeline
+			state.expected = firstPending;
+			notifyAll();
+		}
+		if (sequence < state.expected)
+		{
+			return false;
+		}
+		long deadline = now + GAP_TIMEOUT_MILLIS;
+		state.waiting++;
+		try
+		{
+			while (sequence > state.expected)
+			{
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+				{
+					TransactionLog.warning("Message {} of stream {} is still waiting for message {}",
+						sequence, stream, state.expected);
+					return null;
+				}
+				wait(wait);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		finally
+		{
+			state.waiting--;
+		}
+		return true;
+	}
+
+
+	private synchronized void advance(long stream, long sequence)
+	{
+		Stream state = streams.get(stream);
+		if (state != null && state.expected == sequence)
+		{
+			state.expected = sequence + 1;
+		}
+		notifyAll();
+	}
+
+
+	private void evictIdleStreams(long now)
+	{
+		if (now - lastEviction < IDLE_STREAM_MILLIS)
+		{
+			return;
+		}
+		lastEviction = now;
+		for (Iterator<Stream> iterator = streams.values().iterator(); iterator.hasNext(); )
+		{
+			Stream state = iterator.next();
+			if (state.waiting == 0 && now - state.lastSeen > IDLE_STREAM_MILLIS)
+			{
+				iterator.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Client side discovery of the transaction servers (coordinators).
+ *
+ * Several transaction servers can share the same replicas. Each replica is started with the list of
+ * servers it registers with, and every server can therefore tell a client about all of them through
+ * {@link TransactionInterfaceServerToClient#coordinators()}. A client only needs one or more seed
+ * addresses: {@link #connect(List)} asks the seeds for the full list and returns a stub that sends every
+ * call to one coordinator picked at random, and fails over to the next one if that coordinator does not
+ * answer. Clients are thereby spread over all coordinators.
+ *
+ * Addresses are written as ip:port, and lists of them as comma separated ip[:port] entries.
+ *
+ * @author dhimal
+ */
+class TransactionCoordinators
+{
+	/**
+	 * @param addresses comma separated ip[:port] list
+	 * @param defaultPort port for the entries without one
+	 * @return the addresses as ip:port
+	 */
+	static List<String> parse(String addresses, int defaultPort)
+	{
+		List<String> parsed = new ArrayList<>();
+		for (String address : addresses.split(","))
+		{
+			String trimmed = address.trim();
+			if (!trimmed.isEmpty())
+			{
+				parsed.add(trimmed.contains(":") ? trimmed : trimmed + ":" + defaultPort);
+			}
+		}
+		return parsed;
+	}
+
+
+	static TransactionInterfaceServerToClient lookup(String address)
+			throws RemoteException, NotBoundException, MalformedURLException
+	{
+		return (TransactionInterfaceServerToClient) Naming.lookup(
+			"rmi://" + address + TransactionServer.SERVER_RMI_LOCATION);
+	}
+
+
+	/**
+	 * Discovers the coordinators from the seeds and returns a stub that spreads the calls over them.
+	 *
+	 * @throws RemoteException if none of the seeds can be reached
+	 */
+	static TransactionInterfaceServerToClient connect(List<String> seeds) throws RemoteException
+	{
+		Set<String> addresses = new LinkedHashSet<>(seeds);
+		boolean reachable = false;
+		for (String seed : seeds)
+		{
+			try
+			{
+				addresses.addAll(lookup(seed).coordinators());
+				reachable = true;
+				break;
+			}
+			catch (RemoteException | NotBoundException | MalformedURLException e)
+			{
+				Logger.getGlobal().warning("Could not contact the transaction server at " + seed);
+			}
+		}
+		if (!reachable)
+		{
+			throw new RemoteException("None of the transaction servers " + seeds + " could be reached");
+		}
+		Logger.getGlobal().info("Transaction servers: " + addresses);
+
+		List<String> coordinators = new ArrayList<>(addresses);
+		Collections.shuffle(coordinators);
+		return (TransactionInterfaceServerToClient) Proxy.newProxyInstance(
+			TransactionInterfaceServerToClient.class.getClassLoader(),
+			new Class<?>[] { TransactionInterfaceServerToClient.class },
+			new FailoverHandler(coordinators));
+	}
+
+
+	/**
+	 * Sends every call to the current coordinator and moves on to the next one when it fails. Only
+	 * connection problems are retried; a call that reached the server and failed there is not repeated,
+	 * since a write may already have been committed.
+	 */
+	private static class FailoverHandler implements InvocationHandler
+	{
+		private List<String> coordinators;
+
+		private int current;
+
+		private TransactionInterfaceServerToClient stub;
+
+
+		FailoverHandler(List<String> coordinators)
+		{
+			this.coordinators = coordinators;
+		}
+
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			if ("equals".equals(method.getName()) && method.getParameterCount() == 1)
+			{
+				return proxy == args[0];
+			}
+			if (method.getDeclaringClass() == Object.class)
+			{
+				return method.invoke(this, args);
+			}
+			RemoteException lastFailure = null;
+			for (int attempt = 0; attempt < coordinators.size(); attempt++)
+			{
+				try
+				{
+					return method.invoke(stub(), args);
+				}
+				catch (InvocationTargetException e)
+				{
+					if (!(e.getCause() instanceof java.rmi.ConnectException)
+						&& !(e.getCause() instanceof java.rmi.ConnectIOException))
+					{
+						throw e.getCause();
+					}
+					lastFailure = (RemoteException) e.getCause();
+				}
+				catch (NotBoundException | MalformedURLException e)
+				{
+					lastFailure = new RemoteException("Could not look up " + coordinators.get(current), e);
+				}
+				catch (RemoteException e)
+				{
+					lastFailure = e;
+				}
+				Logger.getGlobal().warning("Transaction server " + coordinators.get(current) + " failed, trying the next one");
+				nextCoordinator();
+			}
+			throw lastFailure;
+		}
+
+
+		private synchronized TransactionInterfaceServerToClient stub()
+				throws RemoteException, NotBoundException, MalformedURLException
+		{
+			if (stub == null)
+			{
+				stub = lookup(coordinators.get(current));
+			}
+			return stub;
+		}
+
+
+		private synchronized void nextCoordinator()
+		{
+			stub = null;
+			current = (current + 1) % coordinators.size();
+		}
+	}
+}
@@ -1,4 +1,6 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
@@ -6,6 +8,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +40,8 @@ import java.util.logging.Logger;
  * - add key,value to the database
  * - remove key,value from the database
  * - query key,value from the database
+ * - expire key,value pairs that were stored with a time to live
+ * - store large values as chunks, see {@link TransactionLargeValue}
  *
  *
  * @author dhimal
@@ -38,12 +54,93 @@ public class TransactionDatabase
 
 	static String FILE_EXT = ".db";
 
+	/**
+	 * SQLite limits the number of host parameters in one statement (999 for the bundled driver),
+	 * so larger multi-key queries are split into several IN (...) queries of at most this many keys.
+	 */
+	private static int MAX_KEYS_PER_QUERY = 500;
+
+	/**
+	 * Condition appended to every read so that an expired key reads as absent, even before the replica
+	 * has removed it. Takes the current time in epoch milliseconds as parameter.
+	 */
+	private static String NOT_EXPIRED = " AND (expires_at IS NULL OR expires_at > ?)";
+
 	private File directory;
 
 	private String database_url;
 
 	private Connection connection;
 
+	/**
+	 * Number of the last batch written by {@link #apply(Collection)}. Every row and tombstone records the
+	 * batch that wrote it, so a checkpoint can pick up what changed since the previous one.
+	 */
+	private long appliedBatch;
+
+	/**
+	 * The last batch that is in a checkpoint. Tombstones of later batches are kept for the next incremental
+	 * checkpoint, see {@link TransactionCheckpoint}; without checkpoints every batch counts as taken.
+	 */
+	private volatile long checkpointedBatch = Long.MAX_VALUE;
+
+	/**
+	 * A value as stored, with its version: the ID of the transaction that wrote it.
+	 */
+	static class StoredValue
+	{
+		private String value;
+
+		private long version;
+
+		private long expiresAt;
+
+		private boolean chunked;
+
+
+		StoredValue(String value, long version)
+		{
+			this(value, version, 0, false);
+		}
+
+
+		/**
+		 * @param expiresAt epoch milliseconds at which the key expires, or 0 if it never expires
+		 * @param chunked whether the value is in chunks; value is then empty
+		 */
+		StoredValue(String value, long version, long expiresAt, boolean chunked)
+		{
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+			this.chunked = chunked;
+		}
+
+
+		String getValue()
+		{
+			return value;
+		}
+
+
+		long getVersion()
+		{
+			return version;
+		}
+
+
+		long getExpiresAt()
+		{
+			return expiresAt;
+		}
+
+
+		boolean isChunked()
+		{
+			return chunked;
+		}
+	}
+
 
 	/**
 	 *
@@ -60,6 +157,31 @@ public class TransactionDatabase
 
 		createNewDatabase();
 		createNewTable();
+		this.appliedBatch = maxAppliedBatch();
+	}
+
+
+	String url()
+	{
+		return database_url;
+	}
+
+
+	/**
+	 * Keeps the tombstones until a checkpoint has taken them, see {@link #checkpointed(long)}.
+	 */
+	void keepTombstonesForCheckpoints()
+	{
+		this.checkpointedBatch = 0;
+	}
+
+
+	/**
+	 * @param upToBatch the last batch in the checkpoint that was just written
+	 */
+	void checkpointed(long upToBatch)
+	{
+		this.checkpointedBatch = upToBatch;
 	}
 
 
@@ -119,58 +241,543 @@ public class TransactionDatabase
 
 
 	/**
-	 * Inserts key/value into the database. This method is invoked by the replicas.
+	 * Applies the net writes of a batch of committed transactions in one database transaction: inserts
+	 * replace the current value of the key, deletes remove it. Either all of them are applied or none.
+	 *
+	 * Every write is conditional on the last transaction applied to the key, which is the version of its
+	 * row or, for a deleted key, of its tombstone: a transaction that is not newer than that one (a retried
+	 * commit, or a log segment that is replayed again) changes nothing. The check is a lookup of the primary
+	 * key within the same statement, so a replay costs no more than the original write.
 	 *
+	 * The batch gets the next batch number; deletes leave a tombstone behind, see {@link #pruneTombstones(long)}.
+	 *
+	 * @param transactions at most one per key
+	 * @throws SQLException if the batch could not be applied; the database is left as it was
+	 */
+	void apply(Collection<Transaction> transactions) throws SQLException
+	{
+		if (transactions.isEmpty())
+		{
+			return;
+		}
+		Connection connection = connection();
+		PreparedStatement insert = null;
+		PreparedStatement delete = null;
+		PreparedStatement deleteChunks = null;
+		PreparedStatement tombstone = null;
+		long batch = appliedBatch + 1;
+		connection.setAutoCommit(false);
+		try
+		{
+			// the WHERE of the SELECT also keeps SQLite from reading ON CONFLICT as a join constraint
+			insert = connection.prepareStatement(
+				"INSERT INTO KEYVALUE(k,v,expires_at,version,upload,chunks,applied_batch) SELECT ?, ?, ?, ?, ?, ?, ?"
+					+ " WHERE NOT EXISTS (SELECT 1 FROM KEYVALUE_TOMBSTONE WHERE k = ? AND version >= ?)"
+					+ " ON CONFLICT(k) DO UPDATE SET v = excluded.v, expires_at = excluded.expires_at,"
+					+ " version = excluded.version, upload = excluded.upload, chunks = excluded.chunks,"
+					+ " applied_batch = excluded.applied_batch WHERE excluded.version > KEYVALUE.version");
+			tombstone = connection.prepareStatement(
+				"INSERT INTO KEYVALUE_TOMBSTONE(k,version,applied_batch) SELECT ?, ?, ?"
+					+ " WHERE NOT EXISTS (SELECT 1 FROM KEYVALUE WHERE k = ? AND version > ?)"
+					+ " ON CONFLICT(k) DO UPDATE SET version = excluded.version, applied_batch = excluded.applied_batch"
+					+ " WHERE excluded.version > KEYVALUE_TOMBSTONE.version");
+			delete = connection.prepareStatement("DELETE FROM KEYVALUE where k = ? AND version < ?");
+			// the chunks of the value being replaced, and of older uploads of the key that were never committed;
+			// none if a newer value is stored, as its chunks could be among them
+			deleteChunks = connection.prepareStatement("DELETE FROM KEYVALUE_CHUNK WHERE k = ? AND upload <> ? AND upload < ?"
+				+ " AND NOT EXISTS (SELECT 1 FROM KEYVALUE WHERE k = ? AND version > ?)");
+			for (Transaction transaction : transactions)
+			{
+				deleteChunks.setString(1, transaction.getKey());
+				deleteChunks.setLong(2, transaction.getUpload());
+				deleteChunks.setLong(3, transaction.getGlobalID());
+				deleteChunks.setString(4, transaction.getKey());
+				deleteChunks.setLong(5, transaction.getGlobalID());
+				deleteChunks.addBatch();
+				if (Transaction.TransactionType.INSERT.equals(transaction.transactionType()))
+				{
+					insert.setString(1, transaction.getKey());
+					insert.setString(2, transaction.getValue());
+					if (transaction.hasExpiry())
+					{
+						insert.setLong(3, transaction.getExpiresAt());
+					}
+					else
+					{
+						insert.setNull(3, Types.INTEGER);
+					}
+					insert.setLong(4, transaction.getGlobalID());
+					insert.setLong(5, transaction.getUpload());
+					insert.setInt(6, transaction.getChunks());
+					insert.setLong(7, batch);
+					insert.setString(8, transaction.getKey());
+					insert.setLong(9, transaction.getGlobalID());
+					insert.addBatch();
+				}
+				else if (Transaction.TransactionType.DELETE.equals(transaction.transactionType()))
+				{
+					delete.setString(1, transaction.getKey());
+					delete.setLong(2, transaction.getGlobalID());
+					delete.addBatch();
+					tombstone.setString(1, transaction.getKey());
+					tombstone.setLong(2, transaction.getGlobalID());
+					tombstone.setLong(3, batch);
+					tombstone.setString(4, transaction.getKey());
+					tombstone.setLong(5, transaction.getGlobalID());
+					tombstone.addBatch();
+				}
+			}
+			deleteChunks.executeBatch();
+			int stale = 0;
+			for (int count : insert.executeBatch())
+			{
+				stale += count == 0 ? 1 : 0;
+			}
+			delete.executeBatch();
+			for (int count : tombstone.executeBatch())
+			{
+				stale += count == 0 ? 1 : 0;
+			}
+			connection.commit();
+			appliedBatch = batch;
+			TransactionLog.info("{} writes applied to the database, {} of them older than the stored version",
+				transactions.size(), stale);
+		}
+		catch (SQLException e)
+		{
+			connection.rollback();
+			throw e;
+		}
+		finally
+		{
+			close(insert);
+			close(delete);
+			close(deleteChunks);
+			close(tombstone);
+			connection.setAutoCommit(true);
+		}
+	}
+
+
+	/**
+	 * Retrieves the value using the given key from the database. This method is invoked by the replicas.
 	 * @param keyString
-	 * @param valueString
+	 * @return the value, or "" if the key does not exist
+	 * @throws SQLException
 	 */
-	void insert(String keyString, String valueString)
+	String get(String keyString) throws SQLException
 	{
-		String sql = "INSERT INTO KEYVALUE(k,v) VALUES(?, ?)";
+		String sql = "SELECT k, v, upload, chunks FROM KEYVALUE where k = ?" + NOT_EXPIRED;
 		PreparedStatement preparedStatement = null;
 		try
 		{
 			preparedStatement = connection().prepareStatement(sql);
 			preparedStatement.setString(1, keyString);
-			preparedStatement.setString(2, valueString);
-			preparedStatement.executeUpdate();
-			Logger.getGlobal().info(keyString + ":" + valueString + " inserted into the database");
+			preparedStatement.setLong(2, System.currentTimeMillis());
+			ResultSet resultSet = preparedStatement.executeQuery();
+			String value = resultSet.next() ? value(resultSet) : "";
+			TransactionLog.info("{} queried from the database", keyString);
+			return value;
 		}
-		catch (SQLException e)
+		finally
 		{
-			if (e.toString().contains("UNIQUE constraint failed"))
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Looks up the current value and version of a key for the checks in phase one. Unlike get, a key
+	 * that is not there is reported as such, and a failing query is passed on instead of being read as "".
+	 *
+	 * @param keyString
+	 * @return the value, or nothing if the key does not exist (or has expired)
+	 * @throws SQLException
+	 */
+	Optional<StoredValue> find(String keyString) throws SQLException
+	{
+		String sql = "SELECT v, version, expires_at, chunks FROM KEYVALUE where k = ?" + NOT_EXPIRED;
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setString(1, keyString);
+			preparedStatement.setLong(2, System.currentTimeMillis());
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next()
+				? Optional.of(new StoredValue(resultSet.getString("v"), resultSet.getLong("version"),
+					resultSet.getLong("expires_at"), resultSet.getInt("chunks") > 0))
+				: Optional.empty();
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Retrieves the values of several keys at once. This method is invoked by the replicas.
+	 *
+	 * The keys are looked up with SELECT ... WHERE k IN (...) over the primary key, one query per
+	 * {@link #MAX_KEYS_PER_QUERY} keys, instead of one query per key.
+	 *
+	 * @param keys
+	 * @return the key/value pairs that were found
+	 * @throws SQLException if one of the queries fails; a partial result would look like missing keys
+	 */
+	Map<String, String> getMany(Collection<String> keys) throws SQLException
+	{
+		Map<String, String> values = new HashMap<>();
+		List<String> keyList = new ArrayList<>(keys);
+
+		for (int from = 0; from < keyList.size(); from += MAX_KEYS_PER_QUERY)
+		{
+			List<String> batch = keyList.subList(from, Math.min(from + MAX_KEYS_PER_QUERY, keyList.size()));
+			String sql = "SELECT k, v, upload, chunks FROM KEYVALUE where k IN ("
+				+ String.join(",", Collections.nCopies(batch.size(), "?")) + ")" + NOT_EXPIRED;
+			PreparedStatement preparedStatement = null;
+			try
+			{
+				preparedStatement = connection().prepareStatement(sql);
+				for (int i = 0; i < batch.size(); i++)
+				{
+					preparedStatement.setString(i + 1, batch.get(i));
+				}
+				preparedStatement.setLong(batch.size() + 1, System.currentTimeMillis());
+				ResultSet resultSet = preparedStatement.executeQuery();
+				while (resultSet.next())
+				{
+					values.put(resultSet.getString("k"), value(resultSet));
+				}
+			}
+			finally
+			{
+				close(preparedStatement);
+			}
+		}
+		TransactionLog.info("{} of {} keys queried from the database", values.size(), keyList.size());
+		return values;
+	}
+
+
+	/**
+	 * Returns one page of the keys in [startKey, endKey) after the cursor, in key order.
+	 *
+	 * The range is a condition on the primary key k, so SQLite walks the index from the start of the page
+	 * instead of scanning the table. One row more than the page size is read to find out whether there
+	 * is a next page.
+	 *
+	 * @param startKey first key (inclusive), or null
+	 * @param endKey last key (exclusive), or null
+	 * @param cursor last key of the previous page (exclusive), or null
+	 * @param pageSize
+	 * @return
+	 * @throws SQLException if the page could not be read; a partial page would end the scan early
+	 */
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws SQLException
+	{
+		StringBuilder sql = new StringBuilder("SELECT k, v, upload, chunks FROM KEYVALUE WHERE 1 = 1" + NOT_EXPIRED);
+		List<String> parameters = new ArrayList<>();
+		if (startKey != null)
+		{
+			sql.append(" AND k >= ?");
+			parameters.add(startKey);
+		}
+		if (cursor != null)
+		{
+			sql.append(" AND k > ?");
+			parameters.add(cursor);
+		}
+		if (endKey != null)
+		{
+			sql.append(" AND k < ?");
+			parameters.add(endKey);
+		}
+		sql.append(" ORDER BY k LIMIT ?");
+
+		LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+		String lastKey = null;
+		boolean morePages = false;
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql.toString());
+			preparedStatement.setLong(1, System.currentTimeMillis());
+			for (int i = 0; i < parameters.size(); i++)
 			{
-				Logger.getGlobal().severe(keyString + " is not a unique key to this database");
+				preparedStatement.setString(i + 2, parameters.get(i));
 			}
-			Logger.getGlobal().severe("Could not insert " + keyString + ":" + valueString);
+			preparedStatement.setInt(parameters.size() + 2, pageSize + 1);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			while (resultSet.next())
+			{
+				if (entries.size() == pageSize)
+				{
+					morePages = true;
+					break;
+				}
+				lastKey = resultSet.getString("k");
+				entries.put(lastKey, value(resultSet));
+			}
+			TransactionLog.info("{} keys scanned from the database", entries.size());
 		}
 		finally
 		{
 			close(preparedStatement);
 		}
+		return new TransactionScanPage(entries, morePages ? Optional.of(lastKey) : Optional.empty());
 	}
 
 
 	/**
-	 * Deletes a key/value pair using the key from the database. This method is invoked by the replicas.
+	 * Returns one page of the keys starting with prefix. This is a range scan from the prefix up to
+	 * (but not including) the first string that is greater than every key with that prefix.
 	 *
-	 * @param keyString
+	 * @param prefix
+	 * @param cursor last key of the previous page (exclusive), or null
+	 * @param pageSize
+	 * @return
+	 */
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws SQLException
+	{
+		return scan(prefix.isEmpty() ? null : prefix, prefixEnd(prefix), cursor, pageSize);
+	}
+
+
+	/**
+	 * Returns the keys written by a transaction from fromVersion on, rows and tombstones, in key order and
+	 * as the transactions that wrote them (a large value with its upload, whose chunks are read separately),
+	 * for a replica that has missed some commits and catches up from this one.
+	 *
+	 * @param afterKey last key of the previous page (exclusive), or null
+	 * @return at most limit transactions, fewer on the last page
+	 */
+	List<Transaction> changes(long fromVersion, String afterKey, int limit) throws SQLException
+	{
+		String page = " WHERE version >= ? AND (? IS NULL OR k > ?) ORDER BY k LIMIT ?";
+		TreeMap<String, Transaction> changes = new TreeMap<>(TransactionScanPage.KEY_ORDER);
+		PreparedStatement rows = null;
+		PreparedStatement tombstones = null;
+		try
+		{
+			rows = connection().prepareStatement("SELECT k, v, version, expires_at, upload, chunks FROM KEYVALUE" + page);
+			for (ResultSet resultSet = changesPage(rows, fromVersion, afterKey, limit); resultSet.next(); )
+			{
+				Transaction write = new Transaction(resultSet.getLong("version"), Transaction.TransactionType.INSERT,
+					resultSet.getString("k"), Optional.of(resultSet.getString("v")), resultSet.getLong("expires_at"));
+				changes.put(write.getKey(), resultSet.getInt("chunks") > 0
+					? write.withChunks(resultSet.getLong("upload"), resultSet.getInt("chunks"))
+					: write);
+			}
+			tombstones = connection().prepareStatement("SELECT k, version FROM KEYVALUE_TOMBSTONE" + page);
+			for (ResultSet resultSet = changesPage(tombstones, fromVersion, afterKey, limit); resultSet.next(); )
+			{
+				Transaction delete = new Transaction(resultSet.getLong("version"), Transaction.TransactionType.DELETE,
+					resultSet.getString("k"), Optional.empty());
+				changes.merge(delete.getKey(), delete,
+					(current, deleted) -> deleted.getGlobalID() > current.getGlobalID() ? deleted : current);
+			}
+		}
+		finally
+		{
+			close(rows);
+			close(tombstones);
+		}
+		// both queries return their first keys after afterKey, so the first limit of the two are complete
+		List<Transaction> changed = new ArrayList<>(changes.values());
+		return changed.size() > limit ? new ArrayList<>(changed.subList(0, limit)) : changed;
+	}
+
+
+	private static ResultSet changesPage(PreparedStatement preparedStatement, long fromVersion, String afterKey, int limit)
+			throws SQLException
+	{
+		preparedStatement.setLong(1, fromVersion);
+		preparedStatement.setString(2, afterKey);
+		preparedStatement.setString(3, afterKey);
+		preparedStatement.setInt(4, limit);
+		return preparedStatement.executeQuery();
+	}
+
+
+	/**
+	 * Keys are compared by their UTF-8 bytes, i.e. by code point (see {@link TransactionScanPage#KEY_ORDER}),
+	 * so the end of the prefix is the prefix with its last code point incremented. A last code point that
+	 * can not be incremented is dropped and the one before it is incremented instead.
+	 */
+	private static String prefixEnd(String prefix)
+	{
+		int end = prefix.length();
+		while (end > 0)
+		{
+			int last = prefix.codePointBefore(end);
+			int start = end - Character.charCount(last);
+			if (last < Character.MAX_CODE_POINT)
+			{
+				// the surrogate code points are not valid in UTF-8, U+E000 is the next one that is
+				int next = last + 1 == Character.MIN_SURROGATE ? Character.MAX_SURROGATE + 1 : last + 1;
+				return new StringBuilder(prefix.substring(0, start)).appendCodePoint(next).toString();
+			}
+			end = start;
+		}
+		return null;
+	}
+
+
+	/**
+	 * @return the value of the current row; a large value is put together from its chunks
+	 */
+	private String value(ResultSet resultSet) throws SQLException
+	{
+		int chunks = resultSet.getInt("chunks");
+		if (chunks == 0)
+		{
+			return resultSet.getString("v");
+		}
+		return readValue(resultSet.getString("k"), resultSet.getLong("upload"), chunks);
+	}
+
+
+	/**
+	 * Puts a large value together from its chunks. This is for the callers that want the value as a
+	 * String (get, getMany, scan); streaming readers fetch one chunk at a time with {@link #readChunk}.
+	 */
+	String readValue(String keyString, long upload, int chunks) throws SQLException
+	{
+		ByteArrayOutputStream value = new ByteArrayOutputStream();
+		for (int sequence = 0; sequence < chunks; sequence++)
+		{
+			byte[] chunk = readChunk(keyString, upload, sequence);
+			if (chunk == null)
+			{
+				throw new SQLException("Chunk " + sequence + " of " + keyString + " is missing");
+			}
+			value.write(chunk, 0, chunk.length);
+		}
+		return new String(value.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * @return how the value of the key is stored, for streaming it; an absent key reads as an empty inline value
+	 */
+	TransactionLargeValue largeValue(String keyString) throws SQLException
+	{
+		String sql = "SELECT v, upload, chunks FROM KEYVALUE where k = ?" + NOT_EXPIRED;
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setString(1, keyString);
+			preparedStatement.setLong(2, System.currentTimeMillis());
+			ResultSet resultSet = preparedStatement.executeQuery();
+			if (!resultSet.next())
+			{
+				return TransactionLargeValue.inline("");
+			}
+			int chunks = resultSet.getInt("chunks");
+			return chunks > 0
+				? TransactionLargeValue.chunked(resultSet.getLong("upload"), chunks)
+				: TransactionLargeValue.inline(resultSet.getString("v"));
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Stores one chunk of a large value under its upload. The chunk is not visible until a transaction
+	 * that refers to the upload is applied. Sending the same chunk again replaces it.
 	 */
-	void delete(String keyString)
+	void stageChunk(String keyString, long upload, int sequence, byte[] data) throws SQLException
 	{
-		String sql = "DELETE FROM KEYVALUE where k = ?";
+		String sql = "INSERT OR REPLACE INTO KEYVALUE_CHUNK(k,upload,seq,data) VALUES(?, ?, ?, ?)";
 		PreparedStatement preparedStatement = null;
 		try
 		{
 			preparedStatement = connection().prepareStatement(sql);
 			preparedStatement.setString(1, keyString);
+			preparedStatement.setLong(2, upload);
+			preparedStatement.setInt(3, sequence);
+			preparedStatement.setBytes(4, data);
 			preparedStatement.executeUpdate();
-			// todo - deleting a key that was not existent is not a problem?
-			Logger.getGlobal().info(keyString + " deleted from the database");
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * @return the number of chunks staged for the upload, to check in phase one that none is missing
+	 */
+	int countChunks(String keyString, long upload) throws SQLException
+	{
+		String sql = "SELECT COUNT(*) FROM KEYVALUE_CHUNK WHERE k = ? AND upload = ?";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setString(1, keyString);
+			preparedStatement.setLong(2, upload);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getInt(1) : 0;
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * @return the chunk, or null if there is no such chunk (e.g. the value has been replaced since)
+	 */
+	byte[] readChunk(String keyString, long upload, int sequence) throws SQLException
+	{
+		String sql = "SELECT data FROM KEYVALUE_CHUNK WHERE k = ? AND upload = ? AND seq = ?";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setString(1, keyString);
+			preparedStatement.setLong(2, upload);
+			preparedStatement.setInt(3, sequence);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getBytes("data") : null;
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Deletes the chunks of uploads older than the given one that no key refers to: uploads that were
+	 * abandoned by their client, and values that have expired.
+	 *
+	 * @param beforeUpload uploads with a lower ID are old enough to be given up
+	 */
+	void deleteAbandonedChunks(long beforeUpload)
+	{
+		String sql = "DELETE FROM KEYVALUE_CHUNK WHERE upload < ? AND NOT EXISTS "
+			+ "(SELECT 1 FROM KEYVALUE WHERE KEYVALUE.k = KEYVALUE_CHUNK.k AND KEYVALUE.upload = KEYVALUE_CHUNK.upload)";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setLong(1, beforeUpload);
+			int deleted = preparedStatement.executeUpdate();
+			Logger.getGlobal().info(deleted + " abandoned chunks deleted from the database");
 		}
 		catch (SQLException e)
 		{
-			Logger.getGlobal().severe("Could not remove " + keyString);
+			Logger.getGlobal().severe("Could not delete the abandoned chunks");
 		}
 		finally
 		{
@@ -180,27 +787,134 @@ public class TransactionDatabase
 
 
 	/**
-	 * Retrieves the value using the given key from the database. This method is invoked by the replicas.
-	 * @param keyString
+	 * @return the highest version (transaction ID) in the database, 0 if it is empty
+	 */
+	long maxVersion()
+	{
+		String sql = "SELECT MAX(version) FROM KEYVALUE";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+		catch (SQLException e)
+		{
+			Logger.getGlobal().severe("Could not query the highest version");
+			return 0;
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * @return the number of the last batch applied to the database, from its rows and tombstones
+	 */
+	private long maxAppliedBatch()
+	{
+		String sql = "SELECT MAX(batch) FROM (SELECT MAX(applied_batch) AS batch FROM KEYVALUE"
+			+ " UNION ALL SELECT MAX(applied_batch) FROM KEYVALUE_TOMBSTONE)";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : 0;
+		}
+		catch (SQLException e)
+		{
+			Logger.getGlobal().severe("Could not query the last applied batch");
+			return 0;
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Deletes the tombstones of deletes older than the given version that a checkpoint has picked up. A
+	 * tombstone holds the last transaction applied to a deleted key, so a commit of an older transaction
+	 * that arrives after this can write the key again.
+	 *
+	 * @param beforeVersion the first transaction ID whose tombstone is kept
+	 */
+	void pruneTombstones(long beforeVersion)
+	{
+		String sql = "DELETE FROM KEYVALUE_TOMBSTONE WHERE version < ? AND applied_batch <= ?";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			preparedStatement.setLong(1, beforeVersion);
+			preparedStatement.setLong(2, checkpointedBatch);
+			TransactionLog.info("{} tombstones deleted from the database", preparedStatement.executeUpdate());
+		}
+		catch (SQLException e)
+		{
+			Logger.getGlobal().severe("Could not delete the tombstones before version " + beforeVersion);
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Returns all keys that have an expiry time, with that time. The replica uses this at startup to
+	 * rebuild its timing wheel; the query walks the expires_at index instead of the table.
+	 *
 	 * @return
 	 */
-	String get(String keyString)
+	Map<String, Long> expiringKeys()
 	{
-		String sql = "SELECT v FROM KEYVALUE where k = ?";
+		String sql = "SELECT k, expires_at FROM KEYVALUE WHERE expires_at IS NOT NULL ORDER BY expires_at";
+		Map<String, Long> expiring = new LinkedHashMap<>();
 		PreparedStatement preparedStatement = null;
 		try
 		{
 			preparedStatement = connection().prepareStatement(sql);
-			preparedStatement.setString(1, keyString);
 			ResultSet resultSet = preparedStatement.executeQuery();
-			String value = resultSet.getString("v");
-			Logger.getGlobal().info(keyString + " queried from the database");
-			return value;
+			while (resultSet.next())
+			{
+				expiring.put(resultSet.getString("k"), resultSet.getLong("expires_at"));
+			}
+		}
+		catch (SQLException e)
+		{
+			Logger.getGlobal().severe("Could not query the expiring keys");
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+		return expiring;
+	}
+
+
+	/**
+	 * @return the number of rows, including expired ones that have not been deleted yet
+	 */
+	long countKeys()
+	{
+		String sql = "SELECT COUNT(*) FROM KEYVALUE";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			return resultSet.next() ? resultSet.getLong(1) : 0;
 		}
 		catch (SQLException e)
 		{
-			Logger.getGlobal().severe("Could not query " + keyString);
-			return "";
+			Logger.getGlobal().severe("Could not count the keys");
+			return 0;
 		}
 		finally
 		{
@@ -209,6 +923,76 @@ public class TransactionDatabase
 	}
 
 
+	/**
+	 * Passes every key in the database, including expired ones that have not been deleted yet, to the
+	 * consumer. The replica uses this at startup to build its key filter.
+	 *
+	 * @throws SQLException if the keys could not be read; some may have been passed on already
+	 */
+	void forEachKey(Consumer<String> consumer) throws SQLException
+	{
+		String sql = "SELECT k FROM KEYVALUE";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			ResultSet resultSet = preparedStatement.executeQuery();
+			while (resultSet.next())
+			{
+				consumer.accept(resultSet.getString(1));
+			}
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+	}
+
+
+	/**
+	 * Deletes keys whose time to live has run out. A key is only deleted if it still has the given
+	 * expiry time, so a key that was put again in the meantime is left alone. Every replica deletes
+	 * exactly the same versions, whenever its timing wheel gets to them.
+	 *
+	 * @param timers
+	 * @return the keys that were deleted
+	 */
+	List<String> deleteExpired(List<TransactionTimingWheel.Timer> timers)
+	{
+		List<String> deleted = new ArrayList<>();
+		String sql = "DELETE FROM KEYVALUE WHERE k = ? AND expires_at = ?";
+		PreparedStatement preparedStatement = null;
+		try
+		{
+			preparedStatement = connection().prepareStatement(sql);
+			for (TransactionTimingWheel.Timer timer : timers)
+			{
+				preparedStatement.setString(1, timer.getKey());
+				preparedStatement.setLong(2, timer.getExpiresAt());
+				preparedStatement.addBatch();
+			}
+			int[] counts = preparedStatement.executeBatch();
+			for (int i = 0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					deleted.add(timers.get(i).getKey());
+				}
+			}
+			TransactionLog.info("{} expired keys deleted from the database", deleted.size());
+		}
+		catch (SQLException e)
+		{
+			TransactionLog.severe("Could not delete {} expired keys", timers.size());
+		}
+		finally
+		{
+			close(preparedStatement);
+		}
+		return deleted;
+	}
+
+
 	/**
 	 * Utility method to close the prepared statements.
 	 *
@@ -239,19 +1023,56 @@ public class TransactionDatabase
 	 * The name of the table here is KEYVALUE, has the following:
 	 *   - k of type TEXT that is also a primary key. K cannot be null;
 	 *   - v of type TEXT. v cannot be null;
+	 *   - expires_at of type INTEGER, epoch milliseconds at which the key expires. NULL if it never expires;
+	 *   - version of type INTEGER, the ID of the transaction that wrote v. 0 for values from before versions;
+	 *   - upload and chunks of type INTEGER: for a large value, the upload its chunks are stored under and
+	 *     their number (v is then empty). 0 for values stored inline;
+	 *   - applied_batch of type INTEGER, the number of the batch that wrote the row, see {@link #apply(Collection)};
+	 *
+	 * The chunks of large values are in KEYVALUE_CHUNK, keyed by (k, upload, seq). Deleted keys leave a
+	 * tombstone in KEYVALUE_TOMBSTONE with the ID of the delete, until {@link #pruneTombstones(long)}.
 	 *
+	 * The database runs in write-ahead log mode, so that a checkpoint can read a consistent snapshot on
+	 * a connection of its own while writes go on.
+	 *
+	 * expires_at is indexed so that the expiring keys can be found without scanning the table.
+	 * Data stores from before expires_at or version existed get the columns added.
 	 */
 	private void createNewTable()
 	{
 		// SQL statement for creating a new table
 		String sql = "CREATE TABLE IF NOT EXISTS KEYVALUE"
 			+ "(k TEXT PRIMARY KEY NOT NULL,"
-			+ "	v TEXT NOT NULL"
+			+ "	v TEXT NOT NULL,"
+			+ "	expires_at INTEGER,"
+			+ "	version INTEGER NOT NULL DEFAULT 0,"
+			+ "	upload INTEGER NOT NULL DEFAULT 0,"
+			+ "	chunks INTEGER NOT NULL DEFAULT 0,"
+			+ "	applied_batch INTEGER NOT NULL DEFAULT 0"
 			+ ");";
 		try
 		{
 			Statement statement = connection().createStatement();
+			statement.execute("PRAGMA journal_mode=WAL;");
 			statement.execute(sql);
+			addColumnIfMissing("expires_at", "INTEGER");
+			addColumnIfMissing("version", "INTEGER NOT NULL DEFAULT 0");
+			addColumnIfMissing("upload", "INTEGER NOT NULL DEFAULT 0");
+			addColumnIfMissing("chunks", "INTEGER NOT NULL DEFAULT 0");
+			addColumnIfMissing("applied_batch", "INTEGER NOT NULL DEFAULT 0");
+			statement.execute("CREATE TABLE IF NOT EXISTS KEYVALUE_CHUNK"
+				+ "(k TEXT NOT NULL,"
+				+ "	upload INTEGER NOT NULL,"
+				+ "	seq INTEGER NOT NULL,"
+				+ "	data BLOB NOT NULL,"
+				+ "	PRIMARY KEY (k, upload, seq)"
+				+ ");");
+			statement.execute("CREATE TABLE IF NOT EXISTS KEYVALUE_TOMBSTONE"
+				+ "(k TEXT PRIMARY KEY NOT NULL,"
+				+ "	version INTEGER NOT NULL,"
+				+ "	applied_batch INTEGER NOT NULL"
+				+ ");");
+			statement.execute("CREATE INDEX IF NOT EXISTS KEYVALUE_EXPIRES_AT ON KEYVALUE(expires_at);");
 			Logger.getGlobal().info("New table KEYVALUE has been created");
 		}
 		catch (SQLException e)
@@ -261,6 +1082,26 @@ public class TransactionDatabase
 	}
 
 
+	private void addColumnIfMissing(String column, String definition) throws SQLException
+	{
+		Statement statement = connection().createStatement();
+		ResultSet resultSet = statement.executeQuery("PRAGMA table_info(KEYVALUE);");
+		while (resultSet.next())
+		{
+			if (column.equalsIgnoreCase(resultSet.getString("name")))
+			{
+				close(statement);
+				return;
+			}
+		}
+		close(statement);
+		Statement alter = connection().createStatement();
+		alter.execute("ALTER TABLE KEYVALUE ADD COLUMN " + column + " " + definition + ";");
+		close(alter);
+		Logger.getGlobal().info("Column " + column + " added to KEYVALUE");
+	}
+
+
 	private void createNewDatabase()
 	{
 		try
@@ -309,15 +1150,17 @@ public class TransactionDatabase
 	/**
 	 * @param args the command line arguments
 	 */
-	public static void main(String[] args)
+	public static void main(String[] args) throws SQLException
 	{
 		TransactionDatabase app = new TransactionDatabase("sqlite-db", "db1.db");
 		app.createNewDatabase();
 		app.createNewTable();
 
-		app.insert("key1", "value1");
-		app.insert("key2", "value2");
-		app.insert("key2", "value3");
+		app.apply(Arrays.asList(
+			new Transaction(1, Transaction.TransactionType.INSERT, "key1", Optional.of("value1")),
+			new Transaction(2, Transaction.TransactionType.INSERT, "key2", Optional.of("value2"))));
+		app.apply(Collections.singletonList(
+			new Transaction(3, Transaction.TransactionType.INSERT, "key2", Optional.of("value3"))));
 
 		String query = app.get("key2");
 
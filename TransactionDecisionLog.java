@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Durable record of the transactions a Transaction Manager has decided to commit, so that it can tell a
+ * replica the outcome of a transaction the replica voted YES for whatever happened to the Transaction
+ * Manager in between, see {@link TransactionManager#outcome(long)}.
+ *
+ * Only commits are logged (presumed abort): a commit is on disk before the first replica is told, so a
+ * transaction of this Transaction Manager that is not in the log and is not in progress was aborted. The
+ * records of concurrent commits are forced together, see {@link TransactionGroupCommit}.
+ *
+ * The log is split in segments. Every segment starts with a fresh transaction ID taken when it was
+ * started: a transaction with a higher ID was started after the segment, so its commit is in that
+ * segment or a later one. The log is therefore complete for the IDs from the first record of its oldest
+ * segment on ({@link #coveredFrom()}), and looking up an ID only reads the segments that may hold it. A
+ * new segment is started when the current one is larger than {@link #SEGMENT_BYTES} and at startup, and
+ * segments are deleted once everything they cover is older than the retention.
+ *
+ * Record layout (big endian): the segment header and every record are a transaction ID (long).
+ *
+ * @author dhimal
+ */
+class TransactionDecisionLog
+{
+	static long SEGMENT_BYTES = 64L << 20;
+
+	static long DEFAULT_RETENTION_HOURS = 7 * 24;
+
+	private static long METRICS_LOG_INTERVAL = 100000;
+
+	private TransactionClock transactionClock;
+
+	private File logPrefix;
+
+	private long retentionMillis;
+
+	private FileChannel log;
+
+	private AtomicLong segmentBytes;
+
+	/**
+	 * Appends take the read lock; starting a new segment takes the write lock.
+	 */
+	private ReadWriteLock swapLock;
+
+	private TransactionGroupCommit groupCommit;
+
+	/**
+	 * The segments with their header, oldest first. Only changed under the write lock.
+	 */
+	private volatile List<Segment> segments;
+
+	private static class Segment
+	{
+		private File file;
+
+		private long firstID;
+
+
+		Segment(File file, long firstID)
+		{
+			this.file = file;
+			this.firstID = firstID;
+		}
+	}
+
+
+	/**
+	 * @param logPrefix the log segments are named logPrefix.&lt;segment&gt;
+	 */
+	TransactionDecisionLog(TransactionClock transactionClock, File logPrefix, long retentionMillis)
+	{
+		this.transactionClock = transactionClock;
+		this.logPrefix = logPrefix;
+		this.retentionMillis = retentionMillis;
+		this.segmentBytes = new AtomicLong();
+		this.swapLock = new ReentrantReadWriteLock();
+		this.groupCommit = new TransactionGroupCommit(this::forceSegment);
+		this.segments = recover();
+		startSegment();
+		Logger.getGlobal().info("Decision log " + logPrefix.getAbsolutePath() + " has " + segments.size() + " segments");
+	}
+
+
+	/**
+	 * Opens the log named by the system property transaction.decisionLog (default
+	 * transaction-decisions-&lt;nodeId&gt;), keeping the decisions of transaction.decisionLog.retentionHours.
+	 */
+	static TransactionDecisionLog fromSystemProperties(TransactionClock transactionClock)
+	{
+		int nodeId = Integer.getInteger("transaction.nodeId", 0);
+		File logPrefix = new File(System.getProperty("transaction.decisionLog", "transaction-decisions-" + nodeId));
+		long retentionHours = Long.getLong("transaction.decisionLog.retentionHours", DEFAULT_RETENTION_HOURS);
+		return new TransactionDecisionLog(transactionClock, logPrefix, TimeUnit.HOURS.toMillis(retentionHours));
+	}
+
+
+	/**
+	 * Logs the commit of the transaction and waits until the record is on disk.
+	 *
+	 * @throws IOException if the record could not be written or forced; it may or may not be in the log
+	 */
+	void committed(long transactionID) throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(Long.BYTES);
+		record.putLong(transactionID).flip();
+		groupCommit.await(append(record));
+		if (groupCommit.lastWritten() % METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Decision log: {}", groupCommit);
+		}
+		if (segmentBytes.get() > SEGMENT_BYTES)
+		{
+			startSegment();
+		}
+	}
+
+
+	/**
+	 * @return the lowest ID the log has the decision of: a transaction with a lower ID may have been
+	 * committed in a segment that has been deleted since
+	 */
+	long coveredFrom()
+	{
+		return segments.get(0).firstID;
+	}
+
+
+	/**
+	 * Reads the segments that may hold the transaction; only used to answer replicas that are in doubt.
+	 *
+	 * @return true if the commit of the transaction is in the log
+	 */
+	boolean contains(long transactionID) throws IOException
+	{
+		List<Segment> current = segments;
+		for (int i = 0; i < current.size(); i++)
+		{
+			// a transaction started before the next segment can only be in this one or a later one
+			if (i + 1 < current.size() && current.get(i + 1).firstID <= transactionID)
+			{
+				continue;
+			}
+			if (contains(current.get(i).file, transactionID))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	private static boolean contains(File file, long transactionID) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			in.readLong();
+			while (true)
+			{
+				if (in.readLong() == transactionID)
+				{
+					return true;
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			// end of the segment, or a record that is being written
+			return false;
+		}
+	}
+
+
+	/**
+	 * @return the ticket of the record, see {@link TransactionGroupCommit}
+	 */
+	private long append(ByteBuffer record) throws IOException
+	{
+		swapLock.readLock().lock();
+		try
+		{
+			int length = record.remaining();
+			while (record.hasRemaining())
+			{
+				log.write(record);
+			}
+			segmentBytes.addAndGet(length);
+			return groupCommit.written();
+		}
+		finally
+		{
+			swapLock.readLock().unlock();
+		}
+	}
+
+
+	private void forceSegment() throws IOException
+	{
+		swapLock.readLock().lock();
+		try
+		{
+			log.force(false);
+		}
+		finally
+		{
+			swapLock.readLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Starts a new segment, and deletes the segments whose successor was started before the retention.
+	 * The current segment is forced first, so that every record written to it is durable.
+	 */
+	private void startSegment()
+	{
+		swapLock.writeLock().lock();
+		try
+		{
+			if (log != null && segmentBytes.get() <= SEGMENT_BYTES)
+			{
+				// another thread has just started one
+				return;
+			}
+			if (log != null)
+			{
+				log.force(false);
+				log.close();
+			}
+			List<Segment> started = new ArrayList<>(segments);
+			long number = started.isEmpty() ? 1 : number(started.get(started.size() - 1).file) + 1;
+			File file = new File(logPrefix.getPath() + "." + number);
+			long firstID = transactionClock.nextFresh();
+			log = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+			header.putLong(firstID).flip();
+			while (header.hasRemaining())
+			{
+				log.write(header);
+			}
+			log.force(false);
+			segmentBytes.set(Long.BYTES);
+			started.add(new Segment(file, firstID));
+
+			long expired = TransactionClock.firstID(System.currentTimeMillis() - retentionMillis);
+			while (started.size() > 1 && started.get(1).firstID < expired)
+			{
+				File obsolete = started.remove(0).file;
+				if (!obsolete.delete() && obsolete.exists())
+				{
+					Logger.getGlobal().warning("Could not delete the decision log segment " + obsolete);
+				}
+			}
+			segments = started;
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not start a decision log segment of " + logPrefix.getAbsolutePath(), e);
+		}
+		finally
+		{
+			swapLock.writeLock().unlock();
+		}
+	}
+
+
+	private long number(File segment)
+	{
+		return Long.parseLong(segment.getName().substring(logPrefix.getName().length() + 1));
+	}
+
+
+	/**
+	 * @return the segments left by the previous session, oldest first
+	 */
+	private List<Segment> recover()
+	{
+		File directory = logPrefix.getAbsoluteFile().getParentFile();
+		String name = logPrefix.getName() + ".";
+		File[] files = directory.listFiles((dir, file) -> file.startsWith(name) && file.substring(name.length()).matches("\\d+"));
+		List<Segment> recovered = new ArrayList<>();
+		if (files == null)
+		{
+			return recovered;
+		}
+		Arrays.sort(files, Comparator.comparingLong(this::number));
+		for (File file : files)
+		{
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+			{
+				recovered.add(new Segment(file, in.readLong()));
+			}
+			catch (EOFException e)
+			{
+				// a segment that was being started when the server stopped; it has no records
+				if (!file.delete() && file.exists())
+				{
+					Logger.getGlobal().warning("Could not delete the decision log segment " + file);
+				}
+			}
+			catch (IOException e)
+			{
+				// starting without it could presume a committed transaction aborted
+				throw new IllegalStateException("Could not read the decision log segment " + file, e);
+			}
+		}
+		return recovered;
+	}
+}
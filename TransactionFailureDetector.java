@@ -0,0 +1,153 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phi accrual failure detector for the replicas (Hayashibara et al.).
+ *
+ * Instead of a yes/no answer after a single failed call, the detector keeps the recent intervals
+ * between heartbeats of every replica and computes phi, the suspicion level that the replica is down:
+ * phi = -log10(probability that a heartbeat arrives this late), with the intervals modelled as a normal
+ * distribution. phi = 1 means a 10% chance of being wrong, phi = 8 about one in a hundred million.
+ *
+ * A replica is suspected while its phi is above {@link #phiThreshold}, and available again as soon as
+ * a heartbeat arrives.
+ *
+ * @author dhimal
+ */
+class TransactionFailureDetector
+{
+	static double DEFAULT_PHI_THRESHOLD = 8.0;
+
+	private static int WINDOW = 100;
+
+	/**
+	 * Lower bound for the standard deviation, so that very regular heartbeats do not make the
+	 * detector suspect a replica after a few milliseconds of jitter.
+	 */
+	private static double MIN_STD_DEVIATION_MILLIS = 100;
+
+	private static class HeartbeatHistory
+	{
+		private long[] intervals = new long[WINDOW];
+
+		private int count;
+
+		private int next;
+
+		private double sum;
+
+		private double sumOfSquares;
+
+		private long lastHeartbeat;
+
+
+		HeartbeatHistory(long now, long expectedIntervalMillis)
+		{
+			// bootstrap with the expected interval so that phi is meaningful from the first heartbeat on
+			add(expectedIntervalMillis);
+			add(expectedIntervalMillis + expectedIntervalMillis / 4);
+			lastHeartbeat = now;
+		}
+
+
+		synchronized void heartbeat(long now)
+		{
+			add(now - lastHeartbeat);
+			lastHeartbeat = now;
+		}
+
+
+		private void add(long interval)
+		{
+			if (count == WINDOW)
+			{
+				sum -= intervals[next];
+				sumOfSquares -= (double) intervals[next] * intervals[next];
+			}
+			else
+			{
+				count++;
+			}
+			intervals[next] = interval;
+			sum += interval;
+			sumOfSquares += (double) interval * interval;
+			next = (next + 1) % WINDOW;
+		}
+
+
+		synchronized double phi(long now)
+		{
+			double mean = sum / count;
+			double variance = Math.max(0, sumOfSquares / count - mean * mean);
+			double stdDeviation = Math.max(Math.sqrt(variance), MIN_STD_DEVIATION_MILLIS);
+			double y = (now - lastHeartbeat - mean) / stdDeviation;
+			// logistic approximation of the normal cumulative distribution function
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			double pLater = y > 0 ? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+			return -Math.log10(Math.max(pLater, Double.MIN_VALUE));
+		}
+
+
+		synchronized long lastHeartbeat()
+		{
+			return lastHeartbeat;
+		}
+	}
+
+	private Map<TransactionInterfaceReplicaToTM, HeartbeatHistory> histories;
+
+	private long expectedIntervalMillis;
+
+	private double phiThreshold;
+
+
+	TransactionFailureDetector(long expectedIntervalMillis, double phiThreshold)
+	{
+		this.histories = new ConcurrentHashMap<>();
+		this.expectedIntervalMillis = expectedIntervalMillis;
+		this.phiThreshold = phiThreshold;
+	}
+
+
+	/**
+	 * Records a successful heartbeat (or any successful call) from the replica.
+	 */
+	void heartbeat(TransactionInterfaceReplicaToTM replica)
+	{
+		long now = System.currentTimeMillis();
+		HeartbeatHistory history = histories.putIfAbsent(replica, new HeartbeatHistory(now, expectedIntervalMillis));
+		if (history != null)
+		{
+			history.heartbeat(now);
+		}
+	}
+
+
+	double phi(TransactionInterfaceReplicaToTM replica)
+	{
+		HeartbeatHistory history = histories.get(replica);
+		return history == null ? 0 : history.phi(System.currentTimeMillis());
+	}
+
+
+	boolean isAvailable(TransactionInterfaceReplicaToTM replica)
+	{
+		return phi(replica) < phiThreshold;
+	}
+
+
+	/**
+	 * @return milliseconds since the last heartbeat of the replica, or 0 if it has never been seen
+	 */
+	long silenceMillis(TransactionInterfaceReplicaToTM replica)
+	{
+		HeartbeatHistory history = histories.get(replica);
+		return history == null ? 0 : System.currentTimeMillis() - history.lastHeartbeat();
+	}
+
+
+	void remove(TransactionInterfaceReplicaToTM replica)
+	{
+		histories.remove(replica);
+	}
+}
@@ -0,0 +1,157 @@
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Client side follower reads: gets go straight to the replicas instead of through the transaction server.
+ *
+ * The client keeps a session token, the highest transaction ID it has written or read. Writes go to the
+ * transaction server as usual, which returns the ID of the transaction that committed them, and the token
+ * is raised to it; reads raise it to the version of the value they return. Every read asks the replica
+ * for at least the token, so the client always sees its own writes and never reads older data than it has
+ * seen before.
+ *
+ * A replica serves the read if the key itself has a version at least that new, or once its applied
+ * watermark has passed the token (see {@link TransactionWatermark}): reading back a key that was just
+ * written is served right away, other keys once the replica has been sent the next closed IDs, which the
+ * transaction servers do every 50 ms. A replica that is behind waits a little and otherwise says so; the
+ * read is then redirected to the next replica, and to the transaction server when no replica is fresh enough.
+ *
+ * The replica list is published by the transaction server and refreshed every {@link #REFRESH_MILLIS}.
+ *
+ * @author dhimal
+ */
+class TransactionFollowerReads
+{
+	static long DEFAULT_MAX_WAIT_MILLIS = 20;
+
+	private static long REFRESH_MILLIS = 10000;
+
+	private TransactionInterfaceServerToClient server;
+
+	private long maxWaitMillis;
+
+	private AtomicLong token;
+
+	private Random random;
+
+	private volatile List<TransactionInterfaceReplicaToClient> replicas;
+
+	private volatile long refreshedAt;
+
+
+	/**
+	 * @param maxWaitMillis how long a replica may wait to catch up with the token before the read is redirected
+	 */
+	TransactionFollowerReads(TransactionInterfaceServerToClient server, long maxWaitMillis)
+	{
+		this.server = server;
+		this.maxWaitMillis = maxWaitMillis;
+		this.token = new AtomicLong();
+		this.random = new Random();
+		this.replicas = new ArrayList<>();
+	}
+
+
+	boolean put(String key, String value) throws RemoteException
+	{
+		return wrote(server.putVersioned(key, value));
+	}
+
+
+	boolean del(String key) throws RemoteException
+	{
+		return wrote(server.delVersioned(key));
+	}
+
+
+	/**
+	 * @param transactionID the ID the write was committed with, 0 if it was not
+	 */
+	private boolean wrote(long transactionID)
+	{
+		observe(transactionID);
+		return transactionID != 0;
+	}
+
+
+	/**
+	 * Raises the token, e.g. with a transaction ID another session has passed on.
+	 */
+	void observe(long transactionID)
+	{
+		token.accumulateAndGet(transactionID, Math::max);
+	}
+
+
+	long token()
+	{
+		return token.get();
+	}
+
+
+	/**
+	 * @return the value of the key, from a replica that has applied at least the token, or from the server
+	 */
+	String get(String key) throws RemoteException
+	{
+		List<TransactionInterfaceReplicaToClient> candidates = replicas();
+		int offset = candidates.isEmpty() ? 0 : random.nextInt(candidates.size());
+		for (int i = 0; i < candidates.size(); i++)
+		{
+			try
+			{
+				TransactionReadResult result = candidates.get((offset + i) % candidates.size())
+					.getAtLeast(key, token.get(), maxWaitMillis);
+				if (result.isServed())
+				{
+					observe(result.getVersion());
+					return result.getValue();
+				}
+			}
+			catch (RemoteException e)
+			{
+				Logger.getGlobal().warning("Follower read of " + key + " failed, trying the next replica");
+				refreshedAt = 0;
+			}
+		}
+		return server.get(key);
+	}
+
+
+	private List<TransactionInterfaceReplicaToClient> replicas()
+	{
+		if (System.currentTimeMillis() - refreshedAt > REFRESH_MILLIS)
+		{
+			List<TransactionInterfaceReplicaToClient> found = new ArrayList<>();
+			try
+			{
+				for (String address : server.replicas())
+				{
+					try
+					{
+						found.add((TransactionInterfaceReplicaToClient) Naming.lookup(
+							"rmi://" + address + TransactionReplica.REPLICA_RMI_LOCATION));
+					}
+					catch (NotBoundException | MalformedURLException | RemoteException e)
+					{
+						Logger.getGlobal().warning("Could not look up the replica at " + address);
+					}
+				}
+				replicas = found;
+			}
+			catch (RemoteException e)
+			{
+				Logger.getGlobal().warning("Could not get the replicas from the transaction server");
+			}
+			refreshedAt = System.currentTimeMillis();
+		}
+		return replicas;
+	}
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit for an append-only log: threads that need their records on disk at the same time share
+ * one force of the log.
+ *
+ * Every record gets a ticket once it has been written. A thread that waits for its ticket either finds
+ * it durable already, waits for the force in progress, or, if none is, forces the log itself and thereby
+ * makes durable every record written before the force started. While one force runs, the records of all
+ * the threads that arrive meanwhile pile up for the next one, so the number of forces per second is
+ * bounded by the latency of a force and does not grow with the number of writing threads.
+ *
+ * @author dhimal
+ */
+class TransactionGroupCommit
+{
+	/**
+	 * Forces the log to disk.
+	 */
+	interface Force
+	{
+		void force() throws IOException;
+	}
+
+	private Force force;
+
+	private final Object monitor = new Object();
+
+	private AtomicLong written = new AtomicLong();
+
+	private long durable;
+
+	private boolean forcing;
+
+	private AtomicLong forces = new AtomicLong();
+
+
+	TransactionGroupCommit(Force force)
+	{
+		this.force = force;
+	}
+
+
+	/**
+	 * Called after a record has been written to the log.
+	 *
+	 * @return the ticket of the record
+	 */
+	long written()
+	{
+		return written.incrementAndGet();
+	}
+
+
+	/**
+	 * @return the ticket of the last record written so far
+	 */
+	long lastWritten()
+	{
+		return written.get();
+	}
+
+
+	/**
+	 * Waits until the record with the ticket, and every record before it, is on disk.
+	 *
+	 * @throws IOException if the force that was to cover the record failed
+	 */
+	void await(long ticket) throws IOException
+	{
+		while (true)
+		{
+			long target;
+			synchronized (monitor)
+			{
+				while (durable < ticket && forcing)
+				{
+					try
+					{
+						monitor.wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for the log to be forced");
+					}
+				}
+				if (durable >= ticket)
+				{
+					return;
+				}
+				forcing = true;
+				target = written.get();
+			}
+
+			boolean forced = false;
+			try
+			{
+				force.force();
+				forced = true;
+				forces.incrementAndGet();
+			}
+			finally
+			{
+				synchronized (monitor)
+				{
+					if (forced)
+					{
+						durable = Math.max(durable, target);
+					}
+					forcing = false;
+					monitor.notifyAll();
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		long records = written.get();
+		long count = forces.get();
+		return String.format("records=%d forces=%d recordsPerForce=%.1f", records, count, count == 0 ? 0 : (double) records / count);
+	}
+}
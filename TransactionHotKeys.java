@@ -0,0 +1,106 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Top-K sketch of the most requested keys (Space-Saving): at most {@link #capacity} keys are counted.
+ * When a key that is not counted arrives and the sketch is full, it takes over the counter of the least
+ * requested key, count included, so a count may overestimate a key by at most the count it took over
+ * (kept as the error). Any key requested more often than 1/capacity of the time is guaranteed to be in
+ * the sketch.
+ *
+ * For every key it also counts the requests that were collapsed into a fetch already in flight, see
+ * {@link TransactionSingleFlight}, which shows the keys that benefit from collapsing.
+ *
+ * @author dhimal
+ */
+class TransactionHotKeys
+{
+	private static class Counter
+	{
+		private String key;
+
+		private long count;
+
+		private long error;
+
+		private long collapsed;
+	}
+
+	private int capacity;
+
+	private Map<String, Counter> counters;
+
+
+	TransactionHotKeys(int capacity)
+	{
+		this.capacity = capacity;
+		this.counters = new HashMap<>();
+	}
+
+
+	synchronized void record(String key, boolean collapsed)
+	{
+		Counter counter = counters.get(key);
+		if (counter == null)
+		{
+			if (counters.size() < capacity)
+			{
+				counter = new Counter();
+			}
+			else
+			{
+				counter = counters.values().stream().min(Comparator.comparingLong(c -> c.count)).get();
+				counters.remove(counter.key);
+				counter.error = counter.count;
+				counter.collapsed = 0;
+			}
+			counter.key = key;
+			counters.put(key, counter);
+		}
+		counter.count++;
+		if (collapsed)
+		{
+			counter.collapsed++;
+		}
+	}
+
+
+	/**
+	 * @return the n most requested keys with their estimated request counts, most requested first
+	 */
+	synchronized Map<String, Long> top(int n)
+	{
+		Map<String, Long> top = new LinkedHashMap<>();
+		sorted().stream().limit(n).forEach(counter -> top.put(counter.key, counter.count));
+		return top;
+	}
+
+
+	private List<Counter> sorted()
+	{
+		List<Counter> sorted = new ArrayList<>(counters.values());
+		sorted.sort(Comparator.comparingLong((Counter c) -> c.count).reversed());
+		return sorted;
+	}
+
+
+	/**
+	 * @return the ten most requested keys as key=count (error, collapsed)
+	 */
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder string = new StringBuilder();
+		for (Counter counter : sorted().subList(0, Math.min(10, counters.size())))
+		{
+			string.append(string.length() == 0 ? "" : " ")
+				.append(counter.key).append('=').append(counter.count)
+				.append(" (+-").append(counter.error).append(", collapsed ").append(counter.collapsed).append(')');
+		}
+		return string.toString();
+	}
+}
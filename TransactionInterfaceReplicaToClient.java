@@ -0,0 +1,30 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface that the transaction replicas provide to the clients directly, for reads that do not need to
+ * go through the transaction server (follower reads).
+ *
+ * A replica only knows the transactions it has applied, so the client tells it how fresh the answer has
+ * to be: the highest transaction ID the client has written or read (see {@link TransactionFollowerReads}).
+ * The replica serves the read once its applied watermark has passed that ID, i.e. every transaction up to
+ * it that is ever committed has been applied here (see {@link TransactionWatermark}), or right away if the
+ * key itself has at least that version. This gives a client read-your-writes without any load on the
+ * transaction server.
+ *
+ * @author dhimal
+ */
+public interface TransactionInterfaceReplicaToClient extends Remote
+{
+    /**
+     * Reads the key if this replica has applied every transaction up to minTransactionID, or the key has
+     * that version or a newer one, waiting at most maxWaitMillis for the replica to get there.
+     *
+     * @param key to query
+     * @param minTransactionID the oldest state the client accepts, 0 for any
+     * @param maxWaitMillis how long the replica may wait to catch up before it gives up
+     * @return the value with its version, or a result that is not served if the replica is behind
+     * @throws RemoteException
+     */
+	TransactionReadResult getAtLeast(String key, long minTransactionID, long maxWaitMillis) throws RemoteException;
+}
@@ -1,5 +1,8 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface that the transaction replicas provide to the Transaction Manager (TM).
@@ -21,10 +24,84 @@ public interface TransactionInterfaceReplicaToTM extends Remote
 	String get(String key) throws RemoteException;
 
 
+    /**
+     * Batched version of {@link #get(String)}. The Transaction Manager splits a multi-key query into
+     * sub-batches and sends one sub-batch to each replica; the replica answers it with a single query
+     * against its data store.
+     *
+     * @param keys to query
+     * @return the key/value pairs that were found, keys that are not in the data store are left out
+     * @throws RemoteException
+     */
+	Map<String, String> getMany(Collection<String> keys) throws RemoteException;
+
+
+    /**
+     * Returns one page of the keys in [startKey, endKey) in key order, using the primary key index.
+     *
+     * @param startKey first key (inclusive), or null to start at the smallest key
+     * @param endKey last key (exclusive), or null to scan to the end
+     * @param cursor the cursor of the previous page (exclusive), or null for the first page
+     * @param pageSize maximum number of entries in the page
+     * @return the page and the cursor to resume from
+     * @throws RemoteException
+     */
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws RemoteException;
+
+
+    /**
+     * Returns one page of the keys that start with prefix, see {@link #scan(String, String, String, int)}.
+     *
+     * @param prefix
+     * @param cursor the cursor of the previous page (exclusive), or null for the first page
+     * @param pageSize maximum number of entries in the page
+     * @return the page and the cursor to resume from
+     * @throws RemoteException
+     */
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws RemoteException;
+
+
+    /**
+     * Stores one chunk of a large value that is being uploaded, see {@link TransactionLargeValue}. The
+     * chunk only becomes part of the value when the transaction that refers to its upload is committed.
+     *
+     * @param key
+     * @param upload the upload ID from the transaction server
+     * @param sequence position of the chunk in the value, from 0
+     * @param data at most {@link TransactionLargeValue#CHUNK_BYTES}
+     * @return false if the chunk could not be stored
+     * @throws RemoteException
+     */
+	boolean stageChunk(String key, long upload, int sequence, byte[] data) throws RemoteException;
+
+
+    /**
+     * @param key
+     * @return how the value of the key is stored: inline, or the upload and number of its chunks
+     * @throws RemoteException
+     */
+	TransactionLargeValue largeValue(String key) throws RemoteException;
+
+
+    /**
+     * @param key
+     * @param upload from {@link #largeValue(String)}
+     * @param sequence
+     * @return the chunk, or null if the value has been replaced in the meantime
+     * @throws RemoteException
+     */
+	byte[] getChunk(String key, long upload, int sequence) throws RemoteException;
+
+
     /**
      * When the transaction manager need to collect votes from all the replicas it simply invokes this method.
      * A replica will:
-     *   - return true if its up and running
+     *   - lock the key of the transaction until commit() or abort(). If the key is already locked by
+     *     another transaction, an older transaction (lower ID) waits a little for the lock, a younger one
+     *     gets a NO vote right away (wait-die), so two coordinators can not lock each other out for ever
+     *   - check the condition of a conditional write against its data store, under the key lock
+     *   - return YES if it can apply the transaction, or the reason why not (see {@link TransactionVote}),
+     *     with the newer version of the key if the transaction is stale (see {@link TransactionVoteResult})
      *   - not return anything (which will be counted as a no vote (false).
      *
      * When the server doesnot hear back from one of the replicas, it invokes the test() method below
@@ -34,7 +111,7 @@ public interface TransactionInterfaceReplicaToTM extends Remote
      * @return
      * @throws RemoteException
      */
-	boolean phaseOneRequest(Transaction transaction) throws RemoteException;
+	TransactionVoteResult phaseOneRequest(Transaction transaction) throws RemoteException;
 
 
     /**
@@ -42,25 +119,35 @@ public interface TransactionInterfaceReplicaToTM extends Remote
      * this method is invoted to actually commit the transaction. This is phase two of the
      * two phase commit process.
      *
+     * Each Transaction Manager sends its commits and aborts through a pipeline with several messages in
+     * flight, numbered per pipeline; the replica applies them in that order, see {@link TransactionReplicaPipeline}.
+     *
      * @param transaction
+     * @param stream identifies the pipeline of the Transaction Manager
+     * @param sequence position of the message in the pipeline
+     * @param firstPending the first position in the pipeline that has not been answered yet; the replica
+     *                     does not wait for the messages before it (see {@link TransactionCommitSequencer})
      * @return
      * @throws RemoteException
      */
-	boolean commit(Transaction transaction) throws RemoteException;
+	boolean commit(Transaction transaction, long stream, long sequence, long firstPending) throws RemoteException;
 
     /**
      * After the voting is done and at least one of the replicas failed to reply to commit the transaction,
      * this method is invoted to abort the transaction. This is phase two of the
      * two phase commit process.
      *
-     * There is actually no operation required to abort the transaction on the replicas because the transaction was
-     * never commited. The transaction is simply "dropped".
+     * The transaction was never commited, so the only thing to undo is the key lock taken in phase one.
+     * The transaction is simply "dropped".
      *
      * @param transaction
+     * @param stream identifies the pipeline of the Transaction Manager
+     * @param sequence position of the message in the pipeline, shared with commit()
+     * @param firstPending see commit()
      * @return
      * @throws RemoteException
      */
-	boolean abort(Transaction transaction) throws RemoteException;
+	boolean abort(Transaction transaction, long stream, long sequence, long firstPending) throws RemoteException;
 
 
     /**
@@ -73,4 +160,53 @@ public interface TransactionInterfaceReplicaToTM extends Remote
      * @throws RemoteException
      */
 	void test() throws RemoteException;
+
+
+    /**
+     * Catch-up of a replica that has missed commits while the Transaction Manager suspected it: the
+     * Transaction Manager reads what was written since from the other replicas with changes(), stages the
+     * chunks of large values with stageChunk() and hands the rest to the replica with applyChanges().
+     *
+     * @param fromVersion the first transaction ID the replica may have missed
+     * @param afterKey the last key of the previous page (exclusive), or null for the first page
+     * @param limit maximum number of keys in the page
+     * @return the latest write of each key written from fromVersion on, deletes included, in key order;
+     * fewer than limit on the last page
+     * @throws RemoteException also if the deletes of that time are no longer known
+     */
+	List<Transaction> changes(long fromVersion, String afterKey, int limit) throws RemoteException;
+
+
+    /**
+     * Applies writes read from another replica with changes(). A write that is not newer than the version
+     * the key already has here is skipped.
+     *
+     * @param changes
+     * @return false if some of them could not be applied (their keys are locked, or the log failed); applying
+     * them again is harmless
+     * @throws RemoteException
+     */
+	boolean applyChanges(List<Transaction> changes) throws RemoteException;
+
+
+    /**
+     * Every Transaction Manager tells each replica, a few times a second, an ID below which it will not
+     * commit anything the replica has not been sent: the replica's applied watermark for follower reads
+     * can not pass it, see {@link TransactionWatermark}.
+     *
+     * @param stream identifies the Transaction Manager, as in commit()
+     * @param closedBefore the closed ID
+     * @throws RemoteException
+     */
+	void closed(long stream, long closedBefore) throws RemoteException;
+
+
+    /**
+     * Several transaction servers (coordinators) can share the same replicas; a replica registers with
+     * all the servers it is started with. The servers use this to tell clients about each other.
+     *
+     * @return the addresses (ip:port) of the transaction servers this replica registered with
+     * @throws RemoteException
+     */
+	List<String> coordinators() throws RemoteException;
 }
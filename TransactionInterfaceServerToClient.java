@@ -1,5 +1,8 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 /**
  * An interface that the transaction server provides to the client (user-facing)
@@ -8,8 +11,41 @@ import java.rmi.RemoteException;
  *  - del(key): deletes any record associated with the key "key".
  *  - value = get(key): retrieves and returns the value associated with the key "key".
  *
- * There is one exception here: {@link addNewReplica(java.lang.String, int).
+ * put(key, value, ttlMillis) stores a value that expires after ttlMillis milliseconds. An expired key
+ * reads as absent right away; the replicas remove it from their data store shortly after.
+ *
+ * Conditional writes do a read-modify-write in one two-phase commit round. Each replica checks the condition
+ * in phase one, under the key lock, and the write is aborted if it does not hold:
+ *  - putIfAbsent(key, value): stores the value only if the key does not exist.
+ *  - compareAndSet(key, expectedValue, newValue): stores newValue only if the key currently has expectedValue.
+ *  - deleteIfEquals(key, expectedValue): deletes the key only if it currently has expectedValue.
+ *
+ * For clients that need many keys at once there is also getMany(keys), which retrieves all of the
+ * keys in one call instead of one round trip per key. Keys that are not found are left out of the result;
+ * if the keys cannot all be read, the call fails with a RemoteException rather than returning fewer of them.
+ *
+ * The key space can be enumerated with scan(startKey, endKey) and scanPrefix(prefix). Both return bounded
+ * pages with a resume cursor; {@link TransactionScanIterator} walks the pages on the client.
+ *
+ * Values larger than {@link TransactionLargeValue#CHUNK_BYTES} can be written and read in chunks, so that
+ * neither side holds the whole value in memory: beginLargePut, putChunk for every chunk and commitLargePut
+ * to write, largeValue and getChunk to read. {@link TransactionValueStream} does this for the client.
+ *
+ * Clients can also read from the replicas directly: replicas() lists them, and putVersioned(key, value) and
+ * delVersioned(key) write like put and del but return the ID of the committing transaction (0 if it was not
+ * committed), which a replica has to have applied for the client to see the write. See
+ * {@link TransactionFollowerReads}.
+ *
+ * hotKeys(count) returns the most requested keys of get, with their estimated number of requests.
+ * Concurrent gets of such a key are collapsed into one replica read, see {@link TransactionSingleFlight}.
+ *
+ * Several transaction servers can share the same replicas. coordinators() returns the addresses of all
+ * of them, which {@link TransactionCoordinators} uses to spread clients over the servers.
+ *
+ * There are two exceptions here: {@link addNewReplica(java.lang.String, int).
  * A replica will use this interface to join the server's list of available replicas.
+ * And outcome(transactionID), which a replica that has a transaction it voted for, but never heard the
+ * outcome of (e.g. after a restart), uses to ask for it, see {@link TransactionPrepareLog}.
  *
  * @author dhimal
  */
@@ -19,11 +55,65 @@ public interface TransactionInterfaceServerToClient extends Remote
 	boolean put(String key, String value) throws RemoteException;
 
 
+	boolean put(String key, String value, long ttlMillis) throws RemoteException;
+
+
 	boolean del(String key) throws RemoteException;
 
 
+	long putVersioned(String key, String value) throws RemoteException;
+
+
+	long delVersioned(String key) throws RemoteException;
+
+
+	boolean putIfAbsent(String key, String value) throws RemoteException;
+
+
+	boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException;
+
+
+	boolean deleteIfEquals(String key, String expectedValue) throws RemoteException;
+
+
+	long beginLargePut(String key) throws RemoteException;
+
+
+	boolean putChunk(String key, long upload, int sequence, byte[] data) throws RemoteException;
+
+
+	boolean commitLargePut(String key, long upload, int chunks) throws RemoteException;
+
+
 	String get(String key) throws RemoteException;
 
 
+	Map<String, String> getMany(Collection<String> keys) throws RemoteException;
+
+
+	TransactionLargeValue largeValue(String key) throws RemoteException;
+
+
+	byte[] getChunk(String key, long upload, int sequence) throws RemoteException;
+
+
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws RemoteException;
+
+
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws RemoteException;
+
+
+	List<String> replicas() throws RemoteException;
+
+
+	List<String> coordinators() throws RemoteException;
+
+
+	Map<String, Long> hotKeys(int count) throws RemoteException;
+
+
 	void addNewReplica(String ipAddress, int port) throws RemoteException;
+
+
+	TransactionOutcome outcome(long transactionID) throws RemoteException;
 }
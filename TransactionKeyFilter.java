@@ -0,0 +1,191 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counting Bloom filter over the keys of a replica, so that a read of a key the replica does not have
+ * is answered without a query against the data store.
+ *
+ * Each key sets {@link #hashes} of the 4-bit counters; a key is possibly present if all of its counters
+ * are above zero, and certainly absent otherwise. Counters (rather than bits) allow a deleted key to be
+ * taken out again. A counter that reaches 15 sticks there, since it no longer knows how many keys share it.
+ *
+ * The filter must never miss a key that is present, so a key may only be removed if it was added: the
+ * callers add a key when it goes from absent to present and remove it when it goes the other way. Any
+ * doubt is resolved towards keeping the counters, which only costs false positives.
+ *
+ * Sized for the expected number of keys at {@link #TARGET_FALSE_POSITIVE_RATE}; with more keys the false
+ * positive rate grows, which the metrics show. The counters are packed eight to an int and updated with
+ * compare-and-set, so lookups take no lock.
+ *
+ * @author dhimal
+ */
+class TransactionKeyFilter
+{
+	static double TARGET_FALSE_POSITIVE_RATE = 0.01;
+
+	private static int MAX_COUNT = 15;
+
+	private AtomicIntegerArray counters;
+
+	private int size;
+
+	private int hashes;
+
+	private long capacity;
+
+	private AtomicLong keys = new AtomicLong();
+
+	private AtomicLong lookups = new AtomicLong();
+
+	private AtomicLong definiteMisses = new AtomicLong();
+
+	private AtomicLong falsePositives = new AtomicLong();
+
+
+	/**
+	 * @param capacity expected number of keys
+	 */
+	TransactionKeyFilter(long capacity)
+	{
+		this.capacity = Math.max(1, capacity);
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-this.capacity * Math.log(TARGET_FALSE_POSITIVE_RATE) / (ln2 * ln2));
+		this.size = (int) Math.min(Integer.MAX_VALUE - 7, Math.max(64, bits));
+		this.hashes = Math.max(1, (int) Math.round((double) size / this.capacity * ln2));
+		this.counters = new AtomicIntegerArray((size + 7) / 8);
+	}
+
+
+	void add(String key)
+	{
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++)
+		{
+			update(index(hash, i), 1);
+		}
+		keys.incrementAndGet();
+	}
+
+
+	/**
+	 * Takes out a key that was added before.
+	 */
+	void remove(String key)
+	{
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++)
+		{
+			update(index(hash, i), -1);
+		}
+		keys.decrementAndGet();
+	}
+
+
+	/**
+	 * @return false if the key is certainly not there, true if it may be
+	 */
+	boolean mightContain(String key)
+	{
+		lookups.incrementAndGet();
+		long hash = hash(key);
+		for (int i = 0; i < hashes; i++)
+		{
+			if (count(index(hash, i)) == 0)
+			{
+				definiteMisses.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Tells the filter that a key it let through was not there after all.
+	 */
+	void falsePositive()
+	{
+		falsePositives.incrementAndGet();
+	}
+
+
+	/**
+	 * @return the observed fraction of absent keys that the filter let through
+	 */
+	double falsePositiveRate()
+	{
+		long positives = falsePositives.get();
+		long absent = positives + definiteMisses.get();
+		return absent == 0 ? 0 : (double) positives / absent;
+	}
+
+
+	long lookups()
+	{
+		return lookups.get();
+	}
+
+
+	private void update(int index, int delta)
+	{
+		int word = index >>> 3;
+		int shift = (index & 7) * 4;
+		while (true)
+		{
+			int current = counters.get(word);
+			int count = (current >>> shift) & 0xF;
+			if (count == MAX_COUNT || (delta < 0 && count == 0))
+			{
+				return;
+			}
+			int updated = (current & ~(0xF << shift)) | ((count + delta) << shift);
+			if (counters.compareAndSet(word, current, updated))
+			{
+				return;
+			}
+		}
+	}
+
+
+	private int count(int index)
+	{
+		return (counters.get(index >>> 3) >>> ((index & 7) * 4)) & 0xF;
+	}
+
+
+	/**
+	 * Double hashing: the i-th index is h1 + i * h2, from the two halves of a 64-bit hash.
+	 */
+	private int index(long hash, int i)
+	{
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		return Math.floorMod(h1 + i * h2, size);
+	}
+
+
+	/**
+	 * 64-bit FNV-1a over the characters of the key, with a final mix so that both halves are usable.
+	 */
+	private static long hash(String key)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++)
+		{
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("keys=%d capacity=%d lookups=%d definiteMisses=%d falsePositives=%d falsePositiveRate=%.4f",
+			keys.get(), capacity, lookups.get(), definiteMisses.get(), falsePositives.get(), falsePositiveRate());
+	}
+}
@@ -0,0 +1,73 @@
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Describes how the value of a key is stored, so that a client can stream it:
+ *   - a value of at most {@link #CHUNK_BYTES} is stored inline and carried here
+ *   - a larger value is stored as chunks of {@link #CHUNK_BYTES} (the last one may be shorter), under the
+ *     upload they were staged with; the chunks are fetched one by one with getChunk
+ *
+ * Large values are written in three steps, so that no process ever holds more than one chunk of them:
+ * beginLargePut() returns an upload ID, putChunk() sends each chunk through the transaction server to
+ * every replica, which stages it in its data store, and commitLargePut() runs the two-phase commit that
+ * makes the staged chunks the value of the key. See {@link TransactionValueStream} for the client side.
+ *
+ * @author dhimal
+ */
+public class TransactionLargeValue implements Serializable
+{
+	static int CHUNK_BYTES = 256 * 1024;
+
+	private long upload;
+
+	private int chunks;
+
+	private byte[] inline;
+
+
+	private TransactionLargeValue(long upload, int chunks, byte[] inline)
+	{
+		this.upload = upload;
+		this.chunks = chunks;
+		this.inline = inline;
+	}
+
+
+	/**
+	 * @param value the value, "" if the key does not exist
+	 */
+	static TransactionLargeValue inline(String value)
+	{
+		return new TransactionLargeValue(0, 0, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	static TransactionLargeValue chunked(long upload, int chunks)
+	{
+		return new TransactionLargeValue(upload, chunks, new byte[0]);
+	}
+
+
+	public boolean isChunked()
+	{
+		return chunks > 0;
+	}
+
+
+	public long getUpload()
+	{
+		return upload;
+	}
+
+
+	public int getChunks()
+	{
+		return chunks;
+	}
+
+
+	public byte[] getInline()
+	{
+		return inline;
+	}
+}
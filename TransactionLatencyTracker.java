@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+/**
+ * Keeps a sliding window of the most recent call latencies of one replica.
+ *
+ * The percentile is recomputed every {@link #RECOMPUTE_INTERVAL} samples rather than on every read,
+ * so reading it is just a volatile load.
+ *
+ * @author dhimal
+ */
+class TransactionLatencyTracker
+{
+	private static int WINDOW = 256;
+
+	private static int RECOMPUTE_INTERVAL = 16;
+
+	/**
+	 * Fewer samples than this are not enough to trust the percentile.
+	 */
+	private static int MIN_SAMPLES = 20;
+
+	private long[] samples;
+
+	private int count;
+
+	private int next;
+
+	private int sinceRecompute;
+
+	private volatile long p95Nanos;
+
+
+	TransactionLatencyTracker()
+	{
+		samples = new long[WINDOW];
+		p95Nanos = -1;
+	}
+
+
+	synchronized void record(long nanos)
+	{
+		samples[next] = nanos;
+		next = (next + 1) % WINDOW;
+		count = Math.min(count + 1, WINDOW);
+		if (++sinceRecompute >= RECOMPUTE_INTERVAL && count >= MIN_SAMPLES)
+		{
+			sinceRecompute = 0;
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+			p95Nanos = sorted[(int) Math.ceil(count * 0.95) - 1];
+		}
+	}
+
+
+	/**
+	 * @return the 95th percentile latency in nanoseconds, or -1 if there are not enough samples yet
+	 */
+	long p95Nanos()
+	{
+		return p95Nanos;
+	}
+}
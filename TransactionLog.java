@@ -0,0 +1,191 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous logging for the hot paths (replica reads and writes, votes, aborts).
+ *
+ * The level is checked before anything else, so a disabled message costs one comparison and no string
+ * is built. An enabled message is not formatted on the calling thread either: the format and the
+ * arguments are put in a preallocated slot of a {@link TransactionRingBuffer}, and a background thread
+ * formats them and passes them to the global {@link Logger}, so the configured levels and handlers still
+ * apply. If the buffer is full the message is dropped (and counted) rather than blocking the caller.
+ *
+ * Formats use {} for the arguments, e.g. TransactionLog.info("{} inserted into the database", key).
+ *
+ * @author dhimal
+ */
+class TransactionLog
+{
+	private static int CAPACITY = 8192;
+
+	private static int DRAIN_BATCH = 256;
+
+	private static long IDLE_PARK_NANOS = 1000000;
+
+	private static class Entry
+	{
+		private Level level;
+
+		private String format;
+
+		private Object argument0;
+
+		private Object argument1;
+
+		private Object argument2;
+	}
+
+	private static TransactionRingBuffer<Entry> ring = new TransactionRingBuffer<>(CAPACITY, Entry::new);
+
+	private static AtomicLong dropped = new AtomicLong();
+
+	private static StringBuilder message = new StringBuilder();
+
+	static
+	{
+		Thread writer = new Thread(TransactionLog::drainForever, "transaction-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(TransactionLog::drain, "transaction-log-flush"));
+	}
+
+
+	private TransactionLog()
+	{
+	}
+
+
+	static void info(String format, Object argument0)
+	{
+		log(Level.INFO, format, argument0, null, null);
+	}
+
+
+	static void info(String format, Object argument0, Object argument1)
+	{
+		log(Level.INFO, format, argument0, argument1, null);
+	}
+
+
+	static void info(String format, Object argument0, Object argument1, Object argument2)
+	{
+		log(Level.INFO, format, argument0, argument1, argument2);
+	}
+
+
+	static void warning(String format, Object argument0)
+	{
+		log(Level.WARNING, format, argument0, null, null);
+	}
+
+
+	static void warning(String format, Object argument0, Object argument1)
+	{
+		log(Level.WARNING, format, argument0, argument1, null);
+	}
+
+
+	static void warning(String format, Object argument0, Object argument1, Object argument2)
+	{
+		log(Level.WARNING, format, argument0, argument1, argument2);
+	}
+
+
+	static void severe(String format, Object argument0)
+	{
+		log(Level.SEVERE, format, argument0, null, null);
+	}
+
+
+	static void severe(String format, Object argument0, Object argument1)
+	{
+		log(Level.SEVERE, format, argument0, argument1, null);
+	}
+
+
+	static void severe(String format, Object argument0, Object argument1, Object argument2)
+	{
+		log(Level.SEVERE, format, argument0, argument1, argument2);
+	}
+
+
+	/**
+	 * @return number of messages dropped because the buffer was full
+	 */
+	static long dropped()
+	{
+		return dropped.get();
+	}
+
+
+	private static void log(Level level, String format, Object argument0, Object argument1, Object argument2)
+	{
+		if (!Logger.getGlobal().isLoggable(level))
+		{
+			return;
+		}
+		long position = ring.claim();
+		if (position < 0)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		Entry entry = ring.get(position);
+		entry.level = level;
+		entry.format = format;
+		entry.argument0 = argument0;
+		entry.argument1 = argument1;
+		entry.argument2 = argument2;
+		ring.publish(position);
+	}
+
+
+	private static void drainForever()
+	{
+		while (true)
+		{
+			if (drain() == 0)
+			{
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+
+	private static synchronized int drain()
+	{
+		int total = 0;
+		int drained;
+		do
+		{
+			drained = ring.drain(TransactionLog::write, DRAIN_BATCH);
+			total += drained;
+		}
+		while (drained == DRAIN_BATCH);
+		return total;
+	}
+
+
+	private static void write(Entry entry)
+	{
+		message.setLength(0);
+		Object[] arguments = { entry.argument0, entry.argument1, entry.argument2 };
+		int next = 0;
+		int from = 0;
+		int placeholder;
+		while (next < arguments.length && (placeholder = entry.format.indexOf("{}", from)) >= 0)
+		{
+			message.append(entry.format, from, placeholder).append(arguments[next++]);
+			from = placeholder + 2;
+		}
+		message.append(entry.format, from, entry.format.length());
+		Logger.getGlobal().logp(entry.level, null, null, message.toString());
+
+		// do not keep keys and values reachable from the buffer
+		entry.argument0 = null;
+		entry.argument1 = null;
+		entry.argument2 = null;
+	}
+}
@@ -1,16 +1,188 @@
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 class TransactionManager
 {
 	private List<TransactionInterfaceReplicaToTM> replicas;
 
-	private AtomicInteger transactionID;
+	private TransactionClock transactionClock;
+
+	/**
+	 * Smallest sub-batch worth its own replica round trip in {@link #getMany(Collection)}.
+	 */
+	private static int MIN_KEYS_PER_SUB_BATCH = 16;
+
+	/**
+	 * Largest scan page a replica is asked for, whatever the client requests.
+	 */
+	private static int MAX_SCAN_PAGE_SIZE = 1000;
+
+	private ExecutorService readExecutor;
+
+	/**
+	 * Hedged reads, see {@link #get(String)}.
+	 */
+	private static long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+
+	private static long MIN_HEDGE_DELAY_MILLIS = 1;
+
+	private static double MAX_HEDGE_FRACTION = 0.05;
+
+	private static double HEDGE_BURST = 10;
+
+	private static long METRICS_LOG_INTERVAL = 1000;
+
+	private Map<TransactionInterfaceReplicaToTM, TransactionLatencyTracker> latencyTrackers;
+
+	private TransactionReadMetrics readMetrics;
+
+	/**
+	 * Collapses concurrent gets of the same key into one replica read, see {@link TransactionSingleFlight}.
+	 */
+	private TransactionSingleFlight getFlights;
+
+	private static int HOT_KEYS_CAPACITY = 100;
+
+	private TransactionAuditLog auditLog;
+
+	private final Object hedgeBudgetLock = new Object();
+
+	private double hedgeTokens;
+
+	/**
+	 * Failure detection: every replica gets a test() heartbeat every {@link #HEARTBEAT_INTERVAL_MILLIS}.
+	 * Replicas that the failure detector suspects are left out of votes and reads until they answer again,
+	 * and replicas that stay silent for {@link #REPLICA_REMOVAL_MILLIS} are removed. A replica that has
+	 * missed commits meanwhile votes again right away, but only serves reads once it has caught up, see
+	 * {@link #catchUp(TransactionInterfaceReplicaToTM, String)}.
+	 */
+	private static long HEARTBEAT_INTERVAL_MILLIS = 500;
+
+	private static long REPLICA_REMOVAL_MILLIS = 60000;
+
+	private TransactionFailureDetector failureDetector;
+
+	/**
+	 * A transaction that loses a key lock or version conflict against a transaction of another
+	 * coordinator is retried this many times before the client is told it failed.
+	 */
+	private static int MAX_CONFLICT_RETRIES = 3;
+
+	private static long CONFLICT_BACKOFF_MILLIS = 5;
+
+	private static long COORDINATORS_CACHE_MILLIS = 10000;
+
+	private volatile List<String> coordinators = new ArrayList<>();
+
+	private volatile long coordinatorsFetchedAt;
+
+	private ScheduledExecutorService heartbeatExecutor;
+
+	/**
+	 * Where the replicas can be reached (ip:port), published to clients for follower reads.
+	 */
+	private Map<TransactionInterfaceReplicaToTM, String> replicaAddresses;
+
+	/**
+	 * Closed IDs for follower reads: every {@link #CLOSE_INTERVAL_MILLIS} each replica is told an ID below
+	 * which this Transaction Manager commits nothing it has not sent to the replica, see {@link #closeTransactions()}
+	 * and {@link TransactionWatermark}. The lag keeps the transactions that have just taken their ID above it.
+	 */
+	private static long CLOSE_INTERVAL_MILLIS = 50;
+
+	private static long CLOSED_LAG_MILLIS = 20;
+
+	/**
+	 * The closed ID each replica has been told, by replica name (see {@link #replicaName}).
+	 */
+	private Map<String, Long> closedSent;
+
+	/**
+	 * The replicas that have missed commits (they were suspected or removed), by replica name, until they
+	 * have caught up. Their closed ID stays below the first commit they missed.
+	 */
+	private Map<String, Missed> missed;
+
+	private final Object closedLock = new Object();
+
+	private static class Missed
+	{
+		/**
+		 * ID of the first transaction the replica missed.
+		 */
+		private long from;
+
+		/**
+		 * Number of transactions it missed, so a catch-up can tell whether it missed more while it ran.
+		 */
+		private long transactions;
+
+
+		Missed(long from)
+		{
+			this.from = from;
+		}
+	}
+
+	/**
+	 * The replicas each running transaction has left out, by transaction ID: they catch up once none is running.
+	 */
+	private Map<Long, Set<String>> missedInFlight;
+
+	private Set<String> catchingUp;
+
+	private static int CATCH_UP_PAGE_SIZE = 1000;
+
+	/**
+	 * One outbound pipeline per replica, see {@link TransactionReplicaPipeline}. The stream ID is taken
+	 * from the clock at startup, so the replicas can tell this Transaction Manager's pipelines from those
+	 * of other transaction servers and of earlier runs.
+	 */
+	private Map<TransactionInterfaceReplicaToTM, TransactionReplicaPipeline> pipelines;
+
+	private long pipelineStream;
+
+	private int pipelineWindow;
+
+	/**
+	 * Outcomes of the most recent transactions, for replicas that are in doubt about a transaction they
+	 * voted YES for. An outcome is recorded before the replicas are told; older commits are looked up in
+	 * the decision log, see {@link #outcome(long)}.
+	 */
+	private Map<Long, Boolean> decisions;
+
+	private static int DECISIONS_CAPACITY = 100000;
+
+	private TransactionDecisionLog decisionLog;
+
+	/**
+	 * Transactions that replicas may have voted for and that are not decided yet, by ID.
+	 */
+	private Set<Long> undecided;
 
 
 	/**
@@ -19,80 +191,854 @@ class TransactionManager
 	 * it uses two-phase commit to commit that state-changing operation to all replicas.
 	 * When the master receives a "get" operation, it selects a replica at random to issue the request against.
 	 * <p>
+	 * Transaction IDs come from a hybrid logical clock, so they are unique across transaction servers
+	 * with different node ids and keep increasing across restarts.
+	 */
+	TransactionManager(TransactionClock transactionClock)
+	{
+		this.transactionClock = transactionClock;
+		replicas = new CopyOnWriteArrayList<>();
+		replicaAddresses = new ConcurrentHashMap<>();
+		closedSent = new HashMap<>();
+		missed = new HashMap<>();
+		missedInFlight = new ConcurrentHashMap<>();
+		catchingUp = ConcurrentHashMap.newKeySet();
+		pipelines = new ConcurrentHashMap<>();
+		pipelineStream = transactionClock.nextFresh();
+		pipelineWindow = Integer.getInteger("transaction.pipeline.window", TransactionReplicaPipeline.DEFAULT_WINDOW);
+		decisions = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>()
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest)
+			{
+				return size() > DECISIONS_CAPACITY;
+			}
+		});
+		decisionLog = TransactionDecisionLog.fromSystemProperties(transactionClock);
+		undecided = ConcurrentHashMap.newKeySet();
+		latencyTrackers = new ConcurrentHashMap<>();
+		readMetrics = new TransactionReadMetrics();
+		getFlights = new TransactionSingleFlight(new TransactionHotKeys(HOT_KEYS_CAPACITY));
+		auditLog = TransactionAuditLog.fromSystemProperties();
+		hedgeTokens = HEDGE_BURST;
+		readExecutor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-manager-read");
+			thread.setDaemon(true);
+			return thread;
+		});
+		failureDetector = new TransactionFailureDetector(
+			HEARTBEAT_INTERVAL_MILLIS, TransactionFailureDetector.DEFAULT_PHI_THRESHOLD);
+		heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-manager-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeatExecutor.scheduleWithFixedDelay(
+			this::sendHeartbeats, HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		heartbeatExecutor.scheduleWithFixedDelay(
+			this::closeTransactions, CLOSE_INTERVAL_MILLIS, CLOSE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	private long getNextTransactionID()
+	{
+		return transactionClock.next();
+	}
+
+
+	private List<TransactionInterfaceReplicaToTM> getReplicas()
+	{
+		return replicas;
+	}
+
+
+	void addReplica(TransactionInterfaceReplicaToTM replica)
+	{
+		failureDetector.heartbeat(replica);
+		getReplicas().add(replica);
+	}
+
+
+	/**
+	 * @param address ip:port the replica can be reached at by clients
+	 */
+	void addReplica(TransactionInterfaceReplicaToTM replica, String address)
+	{
+		replicaAddresses.put(replica, address);
+		addReplica(replica);
+	}
+
+
+	private void removeReplicas(List<TransactionInterfaceReplicaToTM> replica)
+	{
+		getReplicas().removeAll(replica);
+		replica.forEach(failureDetector::remove);
+		replica.forEach(replicaAddresses::remove);
+		replica.forEach(removed -> {
+			TransactionReplicaPipeline pipeline = pipelines.remove(removed);
+			if (pipeline != null)
+			{
+				pipeline.close();
+			}
+		});
+	}
+
+
+	/**
+	 * @return the addresses (ip:port) of the replicas that are available and up to date, for follower reads
+	 */
+	List<String> replicaAddresses()
+	{
+		return readReplicas().stream()
+			.map(replicaAddresses::get)
+			.filter(address -> address != null)
+			.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * @return the replicas that the failure detector does not suspect
+	 */
+	private List<TransactionInterfaceReplicaToTM> availableReplicas()
+	{
+		return getReplicas().stream()
+			.filter(failureDetector::isAvailable)
+			.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * @return the available replicas that have not missed any commits, for reads
+	 */
+	private List<TransactionInterfaceReplicaToTM> readReplicas()
+	{
+		Set<String> behind = behindReplicas();
+		return availableReplicas().stream()
+			.filter(replica -> !behind.contains(replicaName(replica)))
+			.collect(Collectors.toList());
+	}
+
+
+	/**
+	 * @return the names of the replicas that have missed commits and not caught up yet
+	 */
+	private Set<String> behindReplicas()
+	{
+		synchronized (closedLock)
+		{
+			return missed.isEmpty() ? Collections.emptySet() : new HashSet<>(missed.keySet());
+		}
+	}
+
+
+	/**
+	 * All transaction servers that share replicas with this one, as reported by the replicas (a replica
+	 * registers with every server it is started with). Cached for {@link #COORDINATORS_CACHE_MILLIS}.
+	 *
+	 * @return addresses as ip:port
+	 */
+	List<String> coordinators()
+	{
+		if (System.currentTimeMillis() - coordinatorsFetchedAt > COORDINATORS_CACHE_MILLIS)
+		{
+			Set<String> addresses = new LinkedHashSet<>();
+			availableReplicas().forEach(replica -> {
+				try
+				{
+					addresses.addAll(replica.coordinators());
+				}
+				catch (RemoteException e)
+				{
+					Logger.getGlobal().warning("Could not get the coordinators of a replica");
+				}
+			});
+			coordinators = new ArrayList<>(addresses);
+			coordinatorsFetchedAt = System.currentTimeMillis();
+		}
+		return coordinators;
+	}
+
+
+	/**
+	 * Sends test() to every replica in parallel. Each call is bounded by the RMI read timeout, see
+	 * {@link TransactionSocketFactory}, so a hung replica does not hold up the others.
+	 */
+	private void sendHeartbeats()
+	{
+		List<TransactionInterfaceReplicaToTM> replicasToRemove = new ArrayList<>();
+		getReplicas().forEach(replica -> {
+			if (failureDetector.silenceMillis(replica) > REPLICA_REMOVAL_MILLIS)
+			{
+				replicasToRemove.add(replica);
+				Logger.getGlobal().severe("Replica removed after " + REPLICA_REMOVAL_MILLIS + " ms without heartbeat");
+				return;
+			}
+			readExecutor.submit(() -> {
+				boolean wasAvailable = failureDetector.isAvailable(replica);
+				try
+				{
+					replica.test();
+					failureDetector.heartbeat(replica);
+					if (!wasAvailable)
+					{
+						Logger.getGlobal().warning("Replica is available again");
+					}
+				}
+				catch (RemoteException e)
+				{
+					if (wasAvailable && !failureDetector.isAvailable(replica))
+					{
+						Logger.getGlobal().warning("Replica suspected, phi = " + failureDetector.phi(replica));
+					}
+				}
+			});
+		});
+		removeReplicas(replicasToRemove);
+		startCatchUps();
+	}
+
+
+	/**
+	 * Starts the catch-up of every available replica that has missed commits, once none of the transactions
+	 * it missed is still running: from then on it takes part in every commit, so a copy of what the other
+	 * replicas have is all it needs.
+	 */
+	private void startCatchUps()
+	{
+		Set<String> behind = behindReplicas();
+		if (behind.isEmpty())
+		{
+			return;
+		}
+		Set<String> running = new HashSet<>();
+		missedInFlight.values().forEach(running::addAll);
+		for (TransactionInterfaceReplicaToTM replica : availableReplicas())
+		{
+			String name = replicaName(replica);
+			if (behind.contains(name) && !running.contains(name) && catchingUp.add(name))
+			{
+				readExecutor.submit(() -> {
+					try
+					{
+						catchUp(replica, name);
+					}
+					finally
+					{
+						catchingUp.remove(name);
+					}
+				});
+			}
+		}
+	}
+
+
+	/**
+	 * Catch-up (anti-entropy) of a replica: copies every key written since the first commit it missed from
+	 * each of the other available replicas, which between them have every commit. The writes are version
+	 * checked, so a copy never overwrites a newer commit the replica has taken part in. The replica joins
+	 * the reads again if it has missed nothing more meanwhile; otherwise, or if the copy fails, it is tried
+	 * again after the next heartbeats.
+	 */
+	private void catchUp(TransactionInterfaceReplicaToTM replica, String name)
+	{
+		long from;
+		long transactions;
+		synchronized (closedLock)
+		{
+			Missed replicaMissed = missed.get(name);
+			if (replicaMissed == null)
+			{
+				return;
+			}
+			from = replicaMissed.from;
+			transactions = replicaMissed.transactions;
+		}
+		List<TransactionInterfaceReplicaToTM> sources = availableReplicas().stream()
+			.filter(source -> source != replica)
+			.collect(Collectors.toList());
+		if (sources.isEmpty())
+		{
+			return;
+		}
+		long copied = 0;
+		try
+		{
+			for (TransactionInterfaceReplicaToTM source : sources)
+			{
+				copied += copyChanges(source, replica, from);
+			}
+		}
+		catch (RemoteException e)
+		{
+			TransactionLog.warning("Catch-up of replica {} failed, trying again: {}", name, e.getMessage());
+			return;
+		}
+		synchronized (closedLock)
+		{
+			Missed replicaMissed = missed.get(name);
+			if (replicaMissed == null || replicaMissed.transactions != transactions)
+			{
+				return;
+			}
+			missed.remove(name);
+		}
+		TransactionLog.info("Replica {} has caught up, {} writes copied", name, copied);
+	}
+
+
+	/**
+	 * @return the number of writes copied
+	 */
+	private long copyChanges(
+			TransactionInterfaceReplicaToTM source,
+			TransactionInterfaceReplicaToTM target,
+			long fromVersion) throws RemoteException
+	{
+		long copied = 0;
+		String afterKey = null;
+		while (true)
+		{
+			List<Transaction> changes = source.changes(fromVersion, afterKey, CATCH_UP_PAGE_SIZE);
+			List<Transaction> copies = new ArrayList<>();
+			for (Transaction change : changes)
+			{
+				if (!change.isChunked() || copyChunks(source, target, change))
+				{
+					copies.add(change);
+				}
+			}
+			boolean applied = target.applyChanges(copies);
+			for (int retry = 0; !applied && retry < MAX_CONFLICT_RETRIES; retry++)
+			{
+				// keys locked by transactions in progress
+				backOff(retry);
+				applied = target.applyChanges(copies);
+			}
+			if (!applied)
+			{
+				throw new RemoteException("The replica could not apply " + copies.size() + " writes");
+			}
+			copied += copies.size();
+			if (changes.size() < CATCH_UP_PAGE_SIZE)
+			{
+				return copied;
+			}
+			afterKey = changes.get(changes.size() - 1).getKey();
+		}
+	}
+
+
+	/**
+	 * @return false if the value has been replaced on the source since; the replica has the newer one
+	 */
+	private boolean copyChunks(
+			TransactionInterfaceReplicaToTM source,
+			TransactionInterfaceReplicaToTM target,
+			Transaction change) throws RemoteException
+	{
+		for (int sequence = 0; sequence < change.getChunks(); sequence++)
+		{
+			byte[] data = source.getChunk(change.getKey(), change.getUpload(), sequence);
+			if (data == null)
+			{
+				return false;
+			}
+			if (!target.stageChunk(change.getKey(), change.getUpload(), sequence, data))
+			{
+				throw new RemoteException("The replica could not stage chunk " + sequence + " of " + change.getKey());
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Tells every available replica its closed ID: the lowest of now minus {@link #CLOSED_LAG_MILLIS}, the
+	 * transactions in progress, and the first transaction the replica has missed. It never goes down. A
+	 * transaction that is still below it when it is prepared is refused by the replica and retried.
+	 */
+	private void closeTransactions()
+	{
+		long closed = TransactionClock.firstID(System.currentTimeMillis() - CLOSED_LAG_MILLIS);
+		for (long transactionID : undecided)
+		{
+			closed = Math.min(closed, transactionID);
+		}
+		for (TransactionInterfaceReplicaToTM replica : availableReplicas())
+		{
+			long closedBefore = closedBefore(replica, closed);
+			readExecutor.submit(() -> {
+				try
+				{
+					replica.closed(pipelineStream, closedBefore);
+				}
+				catch (RemoteException e)
+				{
+					// the heartbeats find out whether it is down
+					TransactionLog.warning("Could not send the closed ID to replica {}", replicaName(replica));
+				}
+			});
+		}
+	}
+
+
+	private long closedBefore(TransactionInterfaceReplicaToTM replica, long closed)
+	{
+		String name = replicaName(replica);
+		synchronized (closedLock)
+		{
+			Missed replicaMissed = missed.get(name);
+			long closedBefore = Math.max(closedSent.getOrDefault(name, 0L),
+				replicaMissed == null ? closed : Math.min(closed, replicaMissed.from));
+			closedSent.put(name, closedBefore);
+			return closedBefore;
+		}
+	}
+
+
+	/**
+	 * Records the transaction as missed by every known replica that is not a participant, also the removed
+	 * ones, before it is sent to any replica. If one of them has been told a closed ID above the transaction,
+	 * the transaction takes a fresh ID first.
+	 */
+	private Transaction missedBy(Transaction transaction, List<TransactionInterfaceReplicaToTM> participants)
+	{
+		Set<String> participating = participants.stream().map(this::replicaName).collect(Collectors.toSet());
+		synchronized (closedLock)
+		{
+			Set<String> missing = new HashSet<>(closedSent.keySet());
+			getReplicas().forEach(replica -> missing.add(replicaName(replica)));
+			missing.removeAll(participating);
+			if (missing.isEmpty())
+			{
+				return transaction;
+			}
+			for (String name : missing)
+			{
+				long closedBefore = closedSent.getOrDefault(name, 0L);
+				if (transaction.getGlobalID() < closedBefore)
+				{
+					transactionClock.observe(closedBefore);
+					transaction = transaction.withGlobalID(transactionClock.nextFresh());
+				}
+			}
+			long missedID = transaction.getGlobalID();
+			for (String name : missing)
+			{
+				Missed replicaMissed = missed.computeIfAbsent(name, first -> new Missed(missedID));
+				replicaMissed.from = Math.min(replicaMissed.from, missedID);
+				replicaMissed.transactions++;
+			}
+			missedInFlight.put(missedID, missing);
+			return transaction;
+		}
+	}
+
+
+	/**
+	 * @return how the replica is known: its address, or a name of its own if it has none
+	 */
+	private String replicaName(TransactionInterfaceReplicaToTM replica)
+	{
+		return replicaAddresses.getOrDefault(replica, "replica-" + System.identityHashCode(replica));
+	}
+
+
+	private int getRandomInt(int max)
+	{
+		Random random = new Random();
+		return random.nextInt(max);
+	}
+
+
+	/**
+	 * When the master receives a "get" operation, it selects a replica at random to issue the request against.
+	 *
+	 * Reads are hedged: if the replica has not answered within its observed p95 latency, the same get is
+	 * also sent to the next replica and whichever answers first wins. Hedges are limited to
+	 * {@link #MAX_HEDGE_FRACTION} of the reads so that a slow cluster is not flooded with duplicate requests.
+	 * If a replica fails, the request fails over to the next replica.
+	 *
+	 * Concurrent gets of the same key share one such read, see {@link TransactionSingleFlight}.
+	 *
+	 * @return value associated with the key, or "" if it does not exist
+	 * @throws RemoteException if no replica could answer
+	 */
+	String get(String key) throws RemoteException
+	{
+		if (readMetrics.read() % METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Read metrics: {}, collapsing: {}", readMetrics, getFlights);
+		}
+		return getFlights.get(key, () -> fetch(key));
+	}
+
+
+	/**
+	 * Commits are in the decision log before any replica is told, so a transaction of this Transaction
+	 * Manager that is neither in progress nor in the log was aborted (presumed abort), also across
+	 * restarts. Only transactions of other transaction servers, transactions older than the log, and
+	 * transactions that are still being decided are UNKNOWN; a replica keeps asking about those.
+	 *
+	 * @return the outcome of the transaction
+	 */
+	TransactionOutcome outcome(long transactionID)
+	{
+		if (TransactionClock.nodeId(transactionID) != transactionClock.nodeId() || undecided.contains(transactionID))
+		{
+			return TransactionOutcome.UNKNOWN;
+		}
+		Boolean committed = decisions.get(transactionID);
+		if (committed != null)
+		{
+			return committed ? TransactionOutcome.COMMITTED : TransactionOutcome.ABORTED;
+		}
+		try
+		{
+			if (decisionLog.contains(transactionID))
+			{
+				return TransactionOutcome.COMMITTED;
+			}
+		}
+		catch (IOException e)
+		{
+			TransactionLog.severe("Could not look up transaction {} in the decision log", transactionID);
+			return TransactionOutcome.UNKNOWN;
+		}
+		return transactionID < decisionLog.coveredFrom() ? TransactionOutcome.UNKNOWN : TransactionOutcome.ABORTED;
+	}
+
+
+	/**
+	 * @return the most requested keys with their estimated number of gets, most requested first
+	 */
+	Map<String, Long> hotKeys(int count)
+	{
+		return getFlights.hotKeys().top(count);
+	}
+
+
+	private String fetch(String key) throws RemoteException
+	{
+		/**
+		 * 1. select a random replica
+		 * 2. Issue the request, hedge it if the replica is slow, fail over if it fails
+		 * 2. Return the first result
+		 */
+		List<TransactionInterfaceReplicaToTM> available = readReplicas();
+		if (available.isEmpty())
+		{
+			Logger.getGlobal().severe("No replicas available");
+			throw new RemoteException("No replicas available");
+		}
+		creditHedgeBudget();
+
+		// This should handle when there is only one replica
+		int offset = getRandomInt(available.size());
+		ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(readExecutor);
+		Map<Future<String>, Integer> inFlight = new HashMap<>();
+		int next = 0;
+		int hedge = -1;
+		boolean hedgeConsidered = false;
+		// the replica the hedge waits for: the first one, or the one failed over to
+		TransactionInterfaceReplicaToTM tried = available.get(offset);
+
+		inFlight.put(submitGet(completionService, tried, key), next++);
+		try
+		{
+			while (!inFlight.isEmpty())
+			{
+				Future<String> done;
+				if (!hedgeConsidered && next < available.size())
+				{
+					done = completionService.poll(hedgeDelayNanos(tried), TimeUnit.NANOSECONDS);
+					if (done == null)
+					{
+						hedgeConsidered = true;
+						if (tryAcquireHedge())
+						{
+							readMetrics.hedgeFired();
+							hedge = next;
+							inFlight.put(submitGet(completionService, available.get((offset + next) % available.size()), key), next++);
+						}
+						continue;
+					}
+				}
+				else
+				{
+					done = completionService.take();
+				}
+
+				int index = inFlight.remove(done);
+				try
+				{
+					String value = done.get();
+					if (index == hedge)
+					{
+						readMetrics.hedgeWon();
+					}
+					inFlight.keySet().forEach(future -> future.cancel(true));
+					return value;
+				}
+				catch (ExecutionException e)
+				{
+					TransactionLog.severe("Remote exception on get {} request. Trying another replica.", key);
+					if (next < available.size())
+					{
+						readMetrics.failover();
+						tried = available.get((offset + next) % available.size());
+						inFlight.put(submitGet(completionService, tried, key), next++);
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			inFlight.keySet().forEach(future -> future.cancel(true));
+			throw new RemoteException("Interrupted while waiting for get " + key);
+		}
+		TransactionLog.severe("No replica could answer get {} request. Try again.", key);
+		throw new RemoteException("No replica could serve the get " + key + " request");
+	}
+
+
+	private Future<String> submitGet(
+			ExecutorCompletionService<String> completionService,
+			TransactionInterfaceReplicaToTM replica,
+			String key)
+	{
+		return completionService.submit(() -> {
+			long start = System.nanoTime();
+			String value = replica.get(key);
+			latencyTracker(replica).record(System.nanoTime() - start);
+			return value;
+		});
+	}
+
+
+	private TransactionLatencyTracker latencyTracker(TransactionInterfaceReplicaToTM replica)
+	{
+		return latencyTrackers.computeIfAbsent(replica, r -> new TransactionLatencyTracker());
+	}
+
+
+	/**
+	 * How long to wait for a replica before hedging: its observed p95, or a default until there are enough samples.
+	 */
+	private long hedgeDelayNanos(TransactionInterfaceReplicaToTM replica)
+	{
+		long p95 = latencyTracker(replica).p95Nanos();
+		if (p95 < 0)
+		{
+			return TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS);
+		}
+		return Math.max(p95, TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY_MILLIS));
+	}
+
+
+	/**
+	 * Token bucket for hedges: every read earns {@link #MAX_HEDGE_FRACTION} of a token, a hedge costs one.
+	 */
+	private void creditHedgeBudget()
+	{
+		synchronized (hedgeBudgetLock)
+		{
+			hedgeTokens = Math.min(HEDGE_BURST, hedgeTokens + MAX_HEDGE_FRACTION);
+		}
+	}
+
+
+	private boolean tryAcquireHedge()
+	{
+		synchronized (hedgeBudgetLock)
+		{
+			if (hedgeTokens >= 1)
+			{
+				hedgeTokens -= 1;
+				return true;
+			}
+			return false;
+		}
+	}
+
+
+	TransactionReadMetrics readMetrics()
+	{
+		return readMetrics;
+	}
+
+
+	/**
+	 * Multi-key version of get. The keys are split into one sub-batch per replica, the sub-batches are
+	 * sent to the replicas in parallel and the results are merged. Small requests are not spread over
+	 * more replicas than needed (see {@link #MIN_KEYS_PER_SUB_BATCH}).
+	 *
+	 * If a replica fails to answer its sub-batch, the sub-batch is retried against the other replicas.
+	 * Like scan, a sub-batch that no replica could answer fails the request: a partial map would look
+	 * like keys that do not exist.
+	 *
+	 * @return the key/value pairs that were found
 	 */
-	TransactionManager()
+	Map<String, String> getMany(Collection<String> keys) throws RemoteException
+	{
+		Map<String, String> values = new HashMap<>();
+		List<TransactionInterfaceReplicaToTM> available = readReplicas();
+		if (available.isEmpty())
+		{
+			Logger.getGlobal().severe("No replicas available");
+			throw new RemoteException("No replicas available");
+		}
+		List<String> distinctKeys = new ArrayList<>(new LinkedHashSet<>(keys));
+		if (distinctKeys.isEmpty())
+		{
+			return values;
+		}
+
+		int fanOut = Math.min(available.size(),
+			(distinctKeys.size() + MIN_KEYS_PER_SUB_BATCH - 1) / MIN_KEYS_PER_SUB_BATCH);
+		List<List<String>> subBatches = new ArrayList<>();
+		for (int i = 0; i < fanOut; i++)
+		{
+			subBatches.add(new ArrayList<>());
+		}
+		for (int i = 0; i < distinctKeys.size(); i++)
+		{
+			subBatches.get(i % fanOut).add(distinctKeys.get(i));
+		}
+
+		// Start at a random replica so that the load is spread like in get()
+		int offset = getRandomInt(available.size());
+		List<Future<Map<String, String>>> futures = new ArrayList<>();
+		for (int i = 0; i < fanOut; i++)
+		{
+			TransactionInterfaceReplicaToTM replica = available.get((offset + i) % available.size());
+			List<String> subBatch = subBatches.get(i);
+			futures.add(readExecutor.submit(() -> replica.getMany(subBatch)));
+		}
+
+		for (int i = 0; i < fanOut; i++)
+		{
+			try
+			{
+				values.putAll(futures.get(i).get());
+			}
+			catch (ExecutionException e)
+			{
+				Logger.getGlobal().severe("Remote exception on getMany sub-batch. Trying other replicas.");
+				values.putAll(getManyFromOtherReplicas(subBatches.get(i), available, (offset + i) % available.size()));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				Logger.getGlobal().severe("Interrupted while waiting for getMany sub-batch.");
+				throw new RemoteException("Interrupted while waiting for getMany sub-batch");
+			}
+		}
+		return values;
+	}
+
+
+	private Map<String, String> getManyFromOtherReplicas(
+			List<String> keys,
+			List<TransactionInterfaceReplicaToTM> available,
+			int failedIndex) throws RemoteException
 	{
-		transactionID = new AtomicInteger();
-		replicas = new ArrayList<>();
+		for (int i = 1; i < available.size(); i++)
+		{
+			try
+			{
+				return available.get((failedIndex + i) % available.size()).getMany(keys);
+			}
+			catch (RemoteException e)
+			{
+				Logger.getGlobal().severe("Remote exception on getMany retry.");
+			}
+		}
+		throw new RemoteException("No replica could serve a getMany sub-batch of " + keys.size() + " keys");
 	}
 
 
-	private int getNextTransactionID()
+	/**
+	 * Returns one page of a range scan. A page only depends on its cursor, so every page is sent to a
+	 * random replica, and to the next replica if that one fails.
+	 *
+	 * Unlike get, a failure is passed on to the client: an empty page would look like the end of the scan.
+	 */
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws RemoteException
 	{
-		return transactionID.incrementAndGet();
+		int boundedPageSize = Math.max(1, Math.min(pageSize, MAX_SCAN_PAGE_SIZE));
+		return scanAnyReplica(replica -> replica.scan(startKey, endKey, cursor, boundedPageSize));
 	}
 
 
-	private List<TransactionInterfaceReplicaToTM> getReplicas()
+	/**
+	 * Returns one page of a prefix scan, see {@link #scan(String, String, String, int)}.
+	 */
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws RemoteException
 	{
-		return replicas;
+		int boundedPageSize = Math.max(1, Math.min(pageSize, MAX_SCAN_PAGE_SIZE));
+		return scanAnyReplica(replica -> replica.scanPrefix(prefix, cursor, boundedPageSize));
 	}
 
 
-	void addReplica(TransactionInterfaceReplicaToTM replica)
+	/**
+	 * @return how the value of the key is stored, see {@link TransactionLargeValue}
+	 */
+	TransactionLargeValue largeValue(String key) throws RemoteException
 	{
-		getReplicas().add(replica);
+		return anyReplica("largeValue " + key, replica -> replica.largeValue(key));
 	}
 
 
-	private void removeReplicas(List<TransactionInterfaceReplicaToTM> replica)
+	/**
+	 * Reads one chunk of a large value. The chunks are the same on every replica, so each chunk can come
+	 * from a different one.
+	 *
+	 * @return the chunk, or null if the value has been replaced since largeValue() was read
+	 */
+	byte[] getChunk(String key, long upload, int sequence) throws RemoteException
 	{
-		getReplicas().removeAll(replica);
+		return anyReplica("getChunk " + key, replica -> replica.getChunk(key, upload, sequence));
 	}
 
 
-	private int numberOfReplicas()
+	private interface ReplicaRequest<T>
 	{
-		return getReplicas().size();
+		T send(TransactionInterfaceReplicaToTM replica) throws RemoteException;
 	}
 
 
-	private int getRandomInt(int max)
+	private TransactionScanPage scanAnyReplica(ReplicaRequest<TransactionScanPage> request) throws RemoteException
 	{
-		Random random = new Random();
-		return random.nextInt(max);
+		return anyReplica("scan", request);
 	}
 
 
 	/**
-	 * When the master receives a "get" operation, it selects a replica at random to issue the request against.
-	 *
-	 * @return value associated with the key
+	 * Sends a read to a random replica, and to the next one as long as they fail.
 	 */
-	String get(String key)
+	private <T> T anyReplica(String description, ReplicaRequest<T> request) throws RemoteException
 	{
-		/**
-		 * 1. select a random replica
-		 * 2. Issue the request
-		 * 2. Return the result
-		 */
-		if (numberOfReplicas() == 0)
+		List<TransactionInterfaceReplicaToTM> available = readReplicas();
+		if (available.isEmpty())
 		{
 			Logger.getGlobal().severe("No replicas available");
-			return "";
-		}
-		// This should handle when there is only one replica
-		int random = getRandomInt(numberOfReplicas());
-
-		try
-		{
-			return getReplicas().get(random).get(key);
+			throw new RemoteException("No replicas available");
 		}
-		catch (RemoteException e)
+		int offset = getRandomInt(available.size());
+		for (int i = 0; i < available.size(); i++)
 		{
-			Logger.getGlobal().severe("Remote exception on get " + key + " request. Try again.");
+			try
+			{
+				return request.send(available.get((offset + i) % available.size()));
+			}
+			catch (RemoteException e)
+			{
+				TransactionLog.severe("Remote exception on {} request. Trying another replica.", description);
+			}
 		}
-		return "";
+		throw new RemoteException("No replica could serve the " + description + " request");
 	}
 
 
@@ -123,11 +1069,22 @@ class TransactionManager
 	 * @return
 	 */
 	boolean del(String key)
+	{
+		return delVersioned(key) != 0;
+	}
+
+
+	/**
+	 * Same as del(key), for clients that keep track of what they have written, see {@link TransactionFollowerReads}.
+	 *
+	 * @return the ID of the transaction that committed the delete, 0 if it was not committed
+	 */
+	long delVersioned(String key)
 	{
 		// Create a transaction
 		Transaction transaction = getTransaction(key, Transaction.TransactionType.DELETE);
 
-		return phaseTwo(phaseOne(transaction), transaction);
+		return twoPhaseCommit(transaction);
 	}
 
 
@@ -138,83 +1095,430 @@ class TransactionManager
 	 * @return
 	 */
 	boolean put(String key, String value)
+	{
+		return putVersioned(key, value) != 0;
+	}
+
+
+	/**
+	 * Same as put(key, value), see delVersioned(key).
+	 *
+	 * @return the ID of the transaction that committed the put, which is the version of the key it wrote,
+	 * 0 if it was not committed
+	 */
+	long putVersioned(String key, String value)
 	{
 		Transaction transaction = getTransaction(key, value, Transaction.TransactionType.INSERT);
 
-		return phaseTwo(phaseOne(transaction), transaction);
+		return twoPhaseCommit(transaction);
 	}
 
 
-	private boolean phaseOne(Transaction transaction)
+	/**
+	 * Same as put(key, value), but the key expires ttlMillis from now. The expiry time is fixed here,
+	 * once, and carried in the transaction so that all replicas agree on it.
+	 *
+	 * @return
+	 */
+	boolean put(String key, String value, long ttlMillis)
 	{
-		List<Boolean> votes = collectVotes(transaction);
-		return !votes.contains(Boolean.FALSE);
+		if (ttlMillis <= 0)
+		{
+			Logger.getGlobal().warning("Ignoring put " + key + " with a non-positive time to live");
+			return false;
+		}
+		Transaction transaction = new Transaction(
+			getNextTransactionID(),
+			Transaction.TransactionType.INSERT,
+			key,
+			Optional.of(value),
+			System.currentTimeMillis() + ttlMillis);
+
+		return twoPhaseCommit(transaction) != 0;
 	}
 
 
-	private List<Boolean> collectVotes(Transaction transaction)
+	/**
+	 * Starts the upload of a large value. Its chunks are staged under the returned ID, which is also a
+	 * transaction ID, so the replicas can tell old uploads from new ones.
+	 */
+	long beginLargePut(String key)
 	{
-		List<Boolean> votes = new ArrayList<>();
-		List<TransactionInterfaceReplicaToTM> replicasToRemove = new ArrayList<>();
+		return getNextTransactionID();
+	}
 
-		getReplicas().forEach(replica -> {
+
+	/**
+	 * Passes one chunk of a large value on to every available replica. Only the chunk being sent is held
+	 * in memory. A replica that misses a chunk votes NO when the upload is committed.
+	 *
+	 * @return false if a replica could not store the chunk
+	 */
+	boolean putChunk(String key, long upload, int sequence, byte[] data)
+	{
+		if (data.length > TransactionLargeValue.CHUNK_BYTES)
+		{
+			Logger.getGlobal().warning("Ignoring a chunk of " + data.length + " bytes for " + key);
+			return false;
+		}
+		boolean staged = true;
+		for (TransactionInterfaceReplicaToTM replica : availableReplicas())
+		{
 			try
 			{
-				votes.add(replica.phaseOneRequest(transaction));
+				staged &= replica.stageChunk(key, upload, sequence, data);
 			}
 			catch (RemoteException e)
 			{
-				Logger.getGlobal().severe("Could not collect vote from this replica");
-				votes.add(false);
-				try
-				{
-					replica.test();
-				}
-				catch (RemoteException e1)
-				{
-					replicasToRemove.add(replica);
-					Logger.getGlobal().severe("Replica removed after unsuccessful test");
-				}
+				TransactionLog.severe("Could not stage chunk {} of {}", sequence, key);
+				staged = false;
 			}
-		});
-		removeReplicas(replicasToRemove);
+		}
+		return staged;
+	}
+
+
+	/**
+	 * Makes the staged chunks the value of the key with a two-phase commit; see put(key, value).
+	 */
+	boolean commitLargePut(String key, long upload, int chunks)
+	{
+		if (chunks <= 0)
+		{
+			Logger.getGlobal().warning("Ignoring an upload of " + key + " without chunks");
+			return false;
+		}
+		Transaction transaction = getTransaction(key, "", Transaction.TransactionType.INSERT).withChunks(upload, chunks);
 
+		return twoPhaseCommit(transaction) != 0;
+	}
+
+
+	/**
+	 * putIfAbsent, compareAndSet and deleteIfEquals are conditional writes. The condition travels with the
+	 * transaction and every replica checks it in phase one under its key lock, so the read-modify-write
+	 * takes a single two-phase commit round. If the condition does not hold the replicas vote NO and the
+	 * transaction is aborted.
+	 *
+	 * @return true if the condition held and the write was committed
+	 */
+	boolean putIfAbsent(String key, String value)
+	{
+		return conditionalWrite(key, Optional.of(value), Transaction.TransactionType.INSERT,
+			Transaction.Condition.ABSENT, Optional.empty());
+	}
+
+
+	boolean compareAndSet(String key, String expectedValue, String newValue)
+	{
+		return conditionalWrite(key, Optional.of(newValue), Transaction.TransactionType.INSERT,
+			Transaction.Condition.EQUALS, Optional.of(expectedValue));
+	}
+
+
+	boolean deleteIfEquals(String key, String expectedValue)
+	{
+		return conditionalWrite(key, Optional.empty(), Transaction.TransactionType.DELETE,
+			Transaction.Condition.EQUALS, Optional.of(expectedValue));
+	}
+
+
+	private boolean conditionalWrite(
+			String key,
+			Optional<String> value,
+			Transaction.TransactionType transactionType,
+			Transaction.Condition condition,
+			Optional<String> expectedValue)
+	{
+		Transaction transaction = new Transaction(
+			getNextTransactionID(),
+			transactionType,
+			key,
+			value,
+			0,
+			condition,
+			expectedValue);
+
+		return twoPhaseCommit(transaction) != 0;
+	}
+
+
+	/**
+	 * Runs both phases with the replicas that are available when the transaction starts. Suspected
+	 * replicas are neither asked to vote nor sent the outcome; they are recorded as having missed it.
+	 *
+	 * A replica that is still catching up takes part, but may not have the latest value of the key, so it
+	 * does not check the condition of a conditional write: the replicas that have not missed anything do.
+	 * A conditional write is refused while every replica is catching up.
+	 *
+	 * @return the ID the transaction was committed with, 0 if it was aborted
+	 */
+	private long twoPhaseCommit(Transaction transaction)
+	{
+		long startNanos = System.nanoTime();
+		long trace = TransactionTracer.sample(transaction.getGlobalID());
+		if (trace != 0)
+		{
+			transaction = transaction.withTrace(trace);
+		}
+		List<TransactionInterfaceReplicaToTM> participants = availableReplicas();
+		if (participants.isEmpty())
+		{
+			Logger.getGlobal().severe("No replicas available");
+			return 0;
+		}
+		Set<String> behind = behindReplicas();
+		if (transaction.getCondition() != Transaction.Condition.NONE
+			&& participants.stream().allMatch(replica -> behind.contains(replicaName(replica))))
+		{
+			TransactionLog.severe("No replica can check condition {} of {} until one has caught up",
+				transaction.getCondition(), transaction.getKey());
+			return 0;
+		}
+		transaction = missedBy(transaction, participants);
+		long missedID = transaction.getGlobalID();
+		try
+		{
+			return runPhases(transaction, participants, behind, startNanos);
+		}
+		finally
+		{
+			// the replicas that missed it can be caught up once it is decided
+			missedInFlight.remove(missedID);
+		}
+	}
+
+
+	private long runPhases(
+			Transaction transaction,
+			List<TransactionInterfaceReplicaToTM> participants,
+			Set<String> behind,
+			long startNanos)
+	{
+		undecided.add(transaction.getGlobalID());
+		List<TransactionVote> votes = phaseOne(transaction, participants, behind);
+
+		/*
+		 * Conflicts with concurrent transactions, from this or another transaction server, are resolved at
+		 * the replicas and retried here:
+		 *   - NO_KEY_LOCKED: a younger transaction lost a key lock (wait-die). It keeps its ID, so it gets
+		 *     older relative to new transactions and eventually wins.
+		 *   - NO_STALE_VERSION: IDs are handed out in per-thread blocks, and the clocks of the servers are not
+		 *     in step, so a transaction can carry an ID that is older than the version another thread or server
+		 *     has just written, or that is below the applied watermark of a replica (see TransactionWatermark).
+		 *     The clock has observed that version or watermark (see collectVotes), so retry with an ID that is
+		 *     newer than it and than every ID issued so far.
+		 */
+		for (int retry = 0; retry < MAX_CONFLICT_RETRIES && isConflict(votes); retry++)
+		{
+			release(transaction, participants);
+			if (votes.contains(TransactionVote.NO_STALE_VERSION))
+			{
+				long staleID = transaction.getGlobalID();
+				transaction = transaction.withGlobalID(transactionClock.nextFresh());
+				undecided.add(transaction.getGlobalID());
+				// released, and never committed: presumed aborted from now on
+				undecided.remove(staleID);
+			}
+			else
+			{
+				long backOffNanos = System.nanoTime();
+				backOff(retry);
+				TransactionTracer.span(transaction, "backoff", "retry " + (retry + 1), backOffNanos);
+			}
+			votes = phaseOne(transaction, participants, behind);
+		}
+		long phaseTwoNanos = System.nanoTime();
+		boolean committed = phaseTwo(votes, transaction, participants);
+		TransactionTracer.span(transaction, "phase two", committed ? "committed" : "aborted", phaseTwoNanos);
+		TransactionTracer.span(transaction, TransactionTracer.TRANSACTION,
+			transaction.transactionType() + " " + transaction.getKey(), startNanos);
+		if (committed)
+		{
+			// gets that start from now on must not share a read that may have missed this write
+			getFlights.forget(transaction.getKey());
+			auditLog.committed(transaction, startNanos);
+		}
+		return committed ? transaction.getGlobalID() : 0;
+	}
+
+
+	private static boolean isConflict(List<TransactionVote> votes)
+	{
+		return !votes.contains(TransactionVote.NO_CONDITION_FAILED)
+			&& (votes.contains(TransactionVote.NO_KEY_LOCKED) || votes.contains(TransactionVote.NO_STALE_VERSION));
+	}
+
+
+	private void backOff(int retry)
+	{
+		try
+		{
+			Thread.sleep(CONFLICT_BACKOFF_MILLIS * (retry + 1) + getRandomInt((int) CONFLICT_BACKOFF_MILLIS + 1));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private List<TransactionVote> phaseOne(
+			Transaction transaction,
+			List<TransactionInterfaceReplicaToTM> participants,
+			Set<String> behind)
+	{
+		long startNanos = System.nanoTime();
+		List<TransactionVote> votes = collectVotes(transaction, participants, behind);
+		TransactionTracer.span(transaction, "phase one", votes.toString(), startNanos);
+		return votes;
+	}
+
+
+	/**
+	 * Asks all participants at the same time, through their pipelines. A replica that fails to vote counts
+	 * as a NO vote. It is not tested here: the heartbeats will find out whether it is down.
+	 *
+	 * The clock is moved past the transactions of other servers that the votes lost against, so that a
+	 * retry with a fresh ID is newer than what the replicas have, and the next transactions of this server
+	 * do not start behind, however far the clock of this server lags.
+	 *
+	 * @param behind the replicas that are catching up, which are sent the transaction without its condition
+	 */
+	private List<TransactionVote> collectVotes(
+			Transaction transaction,
+			List<TransactionInterfaceReplicaToTM> participants,
+			Set<String> behind)
+	{
+		List<CompletableFuture<TransactionVoteResult>> requests = participants.stream()
+			.map(replica -> pipeline(replica).prepare(
+				behind.contains(replicaName(replica)) ? transaction.withoutCondition() : transaction))
+			.collect(Collectors.toList());
+
+		List<TransactionVote> votes = new ArrayList<>();
+		for (int i = 0; i < requests.size(); i++)
+		{
+			TransactionVoteResult result = await(requests.get(i));
+			if (result == null)
+			{
+				TransactionLog.severe("Could not collect vote from replica {}", participants.get(i));
+				votes.add(TransactionVote.NO_UNREACHABLE);
+				continue;
+			}
+			if (result.getConflictingID() != 0)
+			{
+				transactionClock.observe(result.getConflictingID());
+			}
+			votes.add(result.getVote());
+		}
 		return votes;
 	}
 
 
-	private boolean phaseTwo(boolean phaseOneResult, Transaction transaction)
+	private boolean phaseTwo(
+			List<TransactionVote> votes,
+			Transaction transaction,
+			List<TransactionInterfaceReplicaToTM> participants)
 	{
-		if (phaseOneResult)
-			return commit(transaction);
+		boolean commit = votes.stream().allMatch(TransactionVote::isYes);
+		if (commit)
+		{
+			try
+			{
+				decisionLog.committed(transaction.getGlobalID());
+			}
+			catch (IOException e)
+			{
+				// the commit may or may not be on disk: it stays undecided, and the replicas that voted
+				// for it keep it in doubt until a restart of this server reads the log again
+				TransactionLog.severe("Could not log the commit of transaction {}, leaving it in doubt", transaction.getGlobalID());
+				return false;
+			}
+		}
+		decisions.put(transaction.getGlobalID(), commit);
+		undecided.remove(transaction.getGlobalID());
+		if (commit)
+			return commit(transaction, participants);
 		else
-			return abort(transaction);
+			return abort(transaction, votes, participants);
 	}
 
 
-	private boolean abort(Transaction transaction)
+	/**
+	 * Tells the replicas to drop the transaction, which releases the key locks taken by the ones that voted YES.
+	 * A failed condition is an expected outcome of a conditional write, so it is not logged as an error.
+	 */
+	private boolean abort(
+			Transaction transaction,
+			List<TransactionVote> votes,
+			List<TransactionInterfaceReplicaToTM> participants)
 	{
-		Logger.getGlobal().severe("Transaction aborted: " + transaction.transactionType() + " "
-			+ transaction.getKey() + " " + transaction.getValue());
-		Logger.getGlobal().info("Try again");
+		release(transaction, participants);
+
+		if (votes.contains(TransactionVote.NO_CONDITION_FAILED))
+		{
+			TransactionLog.info("Condition {} does not hold for {}", transaction.getCondition(), transaction.getKey());
+			return false;
+		}
+		TransactionLog.severe("Transaction aborted: {} {} {}. Try again", transaction.transactionType(), transaction.getKey(), votes);
 		return false;
 	}
 
 
-	private boolean commit(Transaction transaction)
+	private void release(Transaction transaction, List<TransactionInterfaceReplicaToTM> participants)
 	{
-		// commit on all replicas?
-		getReplicas().forEach(replica -> {
-			try
+		List<CompletableFuture<Boolean>> requests = participants.stream()
+			.map(replica -> pipeline(replica).abort(transaction))
+			.collect(Collectors.toList());
+		requests.forEach(request -> {
+			if (await(request) == null)
 			{
-				replica.commit(transaction);
+				TransactionLog.severe("Could not abort transaction {}", transaction.getGlobalID());
 			}
-			catch (RemoteException e)
+		});
+	}
+
+
+	private boolean commit(Transaction transaction, List<TransactionInterfaceReplicaToTM> participants)
+	{
+		// commit on all replicas, in the order of this Transaction Manager's decisions
+		List<CompletableFuture<Boolean>> requests = participants.stream()
+			.map(replica -> pipeline(replica).commit(transaction))
+			.collect(Collectors.toList());
+		requests.forEach(request -> {
+			if (await(request) == null)
 			{
-				Logger.getGlobal().severe("Could not commit the transaction");
+				TransactionLog.severe("Could not commit transaction {}", transaction.getGlobalID());
 			}
-
 		});
 		return true;
 	}
+
+
+	private TransactionReplicaPipeline pipeline(TransactionInterfaceReplicaToTM replica)
+	{
+		return pipelines.computeIfAbsent(replica,
+			added -> new TransactionReplicaPipeline(added, replicaName(added), pipelineStream, pipelineWindow));
+	}
+
+
+	/**
+	 * @return the answer of the replica, null if the call failed
+	 */
+	private static <T> T await(CompletableFuture<T> request)
+	{
+		try
+		{
+			return request.get();
+		}
+		catch (ExecutionException e)
+		{
+			return null;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
 }
@@ -0,0 +1,647 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap cache of the values a replica reads, in front of its {@link TransactionDatabase}.
+ *
+ * The keys and values are stored as UTF-8 bytes in direct buffers, so the cached data set is invisible to
+ * the garbage collector: the heap holds a few arrays per segment however many values are cached, and a
+ * String only exists while a read copies a value out.
+ *
+ * The cache is split in segments by the hash of the key, each with its own lock (reads share it), its own
+ * open addressing index and its own memory:
+ *   - the index is a direct buffer of 8-byte slots with linear probing, each holding 28 bits of the hash
+ *     of the key and the address of its entry; a removed slot is filled by shifting the rest of its probe
+ *     sequence back, so there are no deleted markers to clean up
+ *   - the entries are in slabs of {@link #SLAB_BYTES}, each cut into chunks of one size class (powers of
+ *     two from {@link #MIN_CHUNK_BYTES} to {@link #MAX_CHUNK_BYTES}); freed chunks go on a free list of
+ *     their class that is threaded through the chunks themselves
+ *
+ * Slabs are allocated as they are needed, up to the memory budget of the segment. After that, a chunk of
+ * a class with no free chunks is made by evicting a whole slab, chosen with the clock algorithm (a slab
+ * that was read from since the hand last passed it gets a second chance), and giving it to that class.
+ *
+ * Entry layout: key length (int, -1 for a free chunk), value length (int), version (long, the next free
+ * chunk in a free one), expiry time (long, epoch milliseconds, 0 for none), hash of the key (int), 4 bytes of
+ * padding, key, value.
+ *
+ * The cache must never hold a value older than the database. The apply buffer updates the cached values of
+ * the keys it writes once they are in the database, and only with newer versions. A read that misses takes
+ * the {@link #generation(String)} of the segment before it queries the database, and only caches the result
+ * if no write has reached the segment in between.
+ *
+ * @author dhimal
+ */
+class TransactionMemtable
+{
+	static int SLAB_BYTES = 1 << 16;
+
+	static int MIN_CHUNK_BYTES = 64;
+
+	/**
+	 * Larger values are not cached.
+	 */
+	static int MAX_CHUNK_BYTES = SLAB_BYTES / 4;
+
+	private static int HEADER_BYTES = 32;
+
+	private static int MAX_SEGMENTS = 16;
+
+	/**
+	 * A budget is only split in segments of at least this many slabs, so that the size classes in use do not
+	 * take each other's slabs all the time. A smaller budget is one segment, of the budget.
+	 */
+	private static int MIN_SLABS_PER_SEGMENT = 64;
+
+	private static int INITIAL_SLOTS = 1024;
+
+	private static long METRICS_LOG_INTERVAL = 1000000;
+
+	private static int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK_BYTES / MIN_CHUNK_BYTES) + 1;
+
+	private static int SLAB_BITS = Integer.numberOfTrailingZeros(SLAB_BYTES);
+
+	private static long ADDRESS_MASK = (1L << 36) - 1;
+
+	private static int TAG_MASK = (1 << 28) - 1;
+
+	private Segment[] segments;
+
+	private long budgetBytes;
+
+	private AtomicLong lookups = new AtomicLong();
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong evictions = new AtomicLong();
+
+
+	/**
+	 * @param budgetBytes the memory for the cached entries, 0 to disable the cache; it is never exceeded, and
+	 * a budget below {@link #SLAB_BYTES} disables the cache as well
+	 */
+	TransactionMemtable(long budgetBytes)
+	{
+		this.budgetBytes = budgetBytes;
+		int slabs = (int) Math.min(Integer.MAX_VALUE, budgetBytes / SLAB_BYTES);
+		if (slabs > 0 && slabs < MIN_SLABS_PER_SEGMENT)
+		{
+			TransactionLog.warning("A memtable of {} slabs is small, the size classes will evict each other's slabs", slabs);
+		}
+		int count = slabs <= 0 ? 0 : Math.max(1, Math.min(MAX_SEGMENTS, Integer.highestOneBit(slabs / MIN_SLABS_PER_SEGMENT)));
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++)
+		{
+			// at most 2^(36 - SLAB_BITS) - 1 slabs fit in an address
+			segments[i] = new Segment(Math.min((1 << (36 - SLAB_BITS)) - 1, slabs / count));
+		}
+	}
+
+
+	/**
+	 * Creates the cache of one of the shards of a replica, with its part of the budget in the system property
+	 * transaction.replica.memtableMegabytes (default 64, 0 to disable).
+	 */
+	static TransactionMemtable fromSystemProperties(int shards)
+	{
+		long megabytes = Long.getLong("transaction.replica.memtableMegabytes", 64);
+		if (megabytes < 0)
+		{
+			throw new IllegalArgumentException("transaction.replica.memtableMegabytes must not be negative, not " + megabytes);
+		}
+		return new TransactionMemtable((megabytes << 20) / shards);
+	}
+
+
+	boolean isEnabled()
+	{
+		return segments.length > 0;
+	}
+
+
+	/**
+	 * @return the cached value and version of the key, if it is cached and has not expired
+	 */
+	Optional<TransactionDatabase.StoredValue> get(String key)
+	{
+		if (!isEnabled())
+		{
+			return Optional.empty();
+		}
+		if (lookups.incrementAndGet() % METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Memtable: {}", this);
+		}
+		int hash = hash(key);
+		Optional<TransactionDatabase.StoredValue> value = segment(hash).get(key.getBytes(StandardCharsets.UTF_8), hash);
+		if (value.isPresent())
+		{
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+
+	/**
+	 * @return the number of writes that have reached the segment of the key, to pass to
+	 * {@link #fill(String, TransactionDatabase.StoredValue, long)}
+	 */
+	long generation(String key)
+	{
+		return isEnabled() ? segment(hash(key)).generation : 0;
+	}
+
+
+	/**
+	 * Caches a value read from the database, unless a write has reached the segment of the key since the
+	 * generation was taken. Large values are not cached.
+	 */
+	void fill(String key, TransactionDatabase.StoredValue stored, long generation)
+	{
+		if (isEnabled() && !stored.isChunked())
+		{
+			int hash = hash(key);
+			segment(hash).put(key.getBytes(StandardCharsets.UTF_8), hash, stored, generation, false);
+		}
+	}
+
+
+	/**
+	 * Updates a cached key with a write that is in the database. A key that is not cached stays uncached,
+	 * so writes do not push out the values that are read.
+	 */
+	void written(Transaction transaction)
+	{
+		if (!isEnabled())
+		{
+			return;
+		}
+		int hash = hash(transaction.getKey());
+		byte[] key = transaction.getKey().getBytes(StandardCharsets.UTF_8);
+		if (Transaction.TransactionType.INSERT.equals(transaction.transactionType()) && !transaction.isChunked())
+		{
+			TransactionDatabase.StoredValue stored = new TransactionDatabase.StoredValue(transaction.getValue(),
+				transaction.getGlobalID(), transaction.hasExpiry() ? transaction.getExpiresAt() : 0, false);
+			segment(hash).put(key, hash, stored, 0, true);
+		}
+		else
+		{
+			segment(hash).remove(key, hash, transaction.getGlobalID());
+		}
+	}
+
+
+	/**
+	 * Drops the key whatever its version, e.g. after it expired.
+	 */
+	void remove(String key)
+	{
+		if (isEnabled())
+		{
+			int hash = hash(key);
+			segment(hash).remove(key.getBytes(StandardCharsets.UTF_8), hash, Long.MAX_VALUE);
+		}
+	}
+
+
+	private static int hash(String key)
+	{
+		int hash = key.hashCode() * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+
+	private Segment segment(int hash)
+	{
+		// the top bits, which the index does not use
+		return segments[(hash >>> 28) & (segments.length - 1)];
+	}
+
+
+	private static int sizeClass(int bytes)
+	{
+		int chunk = Math.max(MIN_CHUNK_BYTES, Integer.highestOneBit(bytes - 1) << 1);
+		return Integer.numberOfTrailingZeros(chunk / MIN_CHUNK_BYTES);
+	}
+
+
+	private static int chunkBytes(int sizeClass)
+	{
+		return MIN_CHUNK_BYTES << sizeClass;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		long entries = 0;
+		long slabs = 0;
+		for (Segment segment : segments)
+		{
+			entries += segment.entries;
+			slabs += segment.allocatedSlabs;
+		}
+		long lookups = this.lookups.get();
+		return String.format("%d entries in %d of %d MB, %d lookups, %.1f%% hits, %d slabs evicted",
+			entries, slabs * SLAB_BYTES >> 20, budgetBytes >> 20, lookups,
+			lookups == 0 ? 0.0 : 100.0 * hits.get() / lookups, evictions.get());
+	}
+
+
+	private class Segment
+	{
+		private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * Incremented under the write lock by every write of a key.
+		 */
+		private volatile long generation;
+
+		private ByteBuffer index;
+
+		private int mask;
+
+		private int entries;
+
+		private ByteBuffer[] slabs;
+
+		private int allocatedSlabs;
+
+		/**
+		 * The size class of every allocated slab.
+		 */
+		private int[] slabClasses;
+
+		/**
+		 * Set by reads, cleared by the clock hand; a racy byte is good enough for a hint.
+		 */
+		private byte[] referenced;
+
+		private int hand;
+
+		/**
+		 * The first free chunk of every size class, 0 for none.
+		 */
+		private long[] free;
+
+
+		Segment(int maxSlabs)
+		{
+			this.index = ByteBuffer.allocateDirect(INITIAL_SLOTS * Long.BYTES);
+			this.mask = INITIAL_SLOTS - 1;
+			this.slabs = new ByteBuffer[maxSlabs];
+			this.slabClasses = new int[maxSlabs];
+			this.referenced = new byte[maxSlabs];
+			this.free = new long[SIZE_CLASSES];
+		}
+
+
+		Optional<TransactionDatabase.StoredValue> get(byte[] key, int hash)
+		{
+			lock.readLock().lock();
+			try
+			{
+				int slot = find(key, hash);
+				if (slot < 0)
+				{
+					return Optional.empty();
+				}
+				long address = index.getLong(slot * Long.BYTES) & ADDRESS_MASK;
+				ByteBuffer slab = slab(address);
+				int offset = offset(address);
+				long expiresAt = slab.getLong(offset + 16);
+				if (expiresAt > 0 && expiresAt <= System.currentTimeMillis())
+				{
+					return Optional.empty();
+				}
+				referenced[slabNumber(address)] = 1;
+				byte[] value = new byte[slab.getInt(offset + 4)];
+				for (int i = 0; i < value.length; i++)
+				{
+					value[i] = slab.get(offset + HEADER_BYTES + key.length + i);
+				}
+				return Optional.of(new TransactionDatabase.StoredValue(new String(value, StandardCharsets.UTF_8),
+					slab.getLong(offset + 8), expiresAt, false));
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+		}
+
+
+		/**
+		 * @param generation the generation the value was read at, for a fill
+		 * @param write whether the value was written rather than read: a write only replaces a cached older
+		 *              version, a fill only goes in if no write has come in since the generation
+		 */
+		void put(byte[] key, int hash, TransactionDatabase.StoredValue stored, long generation, boolean write)
+		{
+			byte[] value = stored.getValue().getBytes(StandardCharsets.UTF_8);
+			int bytes = HEADER_BYTES + key.length + value.length;
+			lock.writeLock().lock();
+			try
+			{
+				if (write)
+				{
+					this.generation++;
+				}
+				else if (this.generation != generation)
+				{
+					return;
+				}
+				int slot = find(key, hash);
+				if (slot >= 0)
+				{
+					long address = index.getLong(slot * Long.BYTES) & ADDRESS_MASK;
+					if (slab(address).getLong(offset(address) + 8) >= stored.getVersion())
+					{
+						return;
+					}
+					removeSlot(slot);
+				}
+				else if (write)
+				{
+					return;
+				}
+				if (bytes > MAX_CHUNK_BYTES)
+				{
+					return;
+				}
+				long address = allocate(sizeClass(bytes));
+				ByteBuffer slab = slab(address);
+				int offset = offset(address);
+				slab.putInt(offset, key.length);
+				slab.putInt(offset + 4, value.length);
+				slab.putLong(offset + 8, stored.getVersion());
+				slab.putLong(offset + 16, stored.getExpiresAt());
+				slab.putInt(offset + 24, hash);
+				for (int i = 0; i < key.length; i++)
+				{
+					slab.put(offset + HEADER_BYTES + i, key[i]);
+				}
+				for (int i = 0; i < value.length; i++)
+				{
+					slab.put(offset + HEADER_BYTES + key.length + i, value[i]);
+				}
+				insertSlot(hash, address);
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+
+
+		/**
+		 * Removes the key if its cached version is older than the given one.
+		 */
+		void remove(byte[] key, int hash, long version)
+		{
+			lock.writeLock().lock();
+			try
+			{
+				generation++;
+				int slot = find(key, hash);
+				if (slot >= 0)
+				{
+					long address = index.getLong(slot * Long.BYTES) & ADDRESS_MASK;
+					if (slab(address).getLong(offset(address) + 8) < version)
+					{
+						removeSlot(slot);
+					}
+				}
+			}
+			finally
+			{
+				lock.writeLock().unlock();
+			}
+		}
+
+
+		/**
+		 * @return the slot of the key, -1 if it is not cached
+		 */
+		private int find(byte[] key, int hash)
+		{
+			int tag = hash & TAG_MASK;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask)
+			{
+				long entry = index.getLong(slot * Long.BYTES);
+				if (entry == 0)
+				{
+					return -1;
+				}
+				if ((int) (entry >>> 36) == tag && keyEquals(entry & ADDRESS_MASK, key))
+				{
+					return slot;
+				}
+			}
+		}
+
+
+		private int slotOf(int hash, long address)
+		{
+			int slot = hash & mask;
+			while ((index.getLong(slot * Long.BYTES) & ADDRESS_MASK) != address)
+			{
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+
+		private boolean keyEquals(long address, byte[] key)
+		{
+			ByteBuffer slab = slab(address);
+			int offset = offset(address);
+			if (slab.getInt(offset) != key.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < key.length; i++)
+			{
+				if (slab.get(offset + HEADER_BYTES + i) != key[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+
+		private void insertSlot(int hash, long address)
+		{
+			if (entries + 1 > (mask + 1) / 4 * 3)
+			{
+				resize();
+			}
+			int slot = hash & mask;
+			while (index.getLong(slot * Long.BYTES) != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+			index.putLong(slot * Long.BYTES, (long) (hash & TAG_MASK) << 36 | address);
+			entries++;
+		}
+
+
+		/**
+		 * Frees the chunk of the slot and closes the gap in its probe sequence.
+		 */
+		private void removeSlot(int slot)
+		{
+			release(index.getLong(slot * Long.BYTES) & ADDRESS_MASK);
+			int hole = slot;
+			for (int next = (slot + 1) & mask; ; next = (next + 1) & mask)
+			{
+				long entry = index.getLong(next * Long.BYTES);
+				if (entry == 0)
+				{
+					break;
+				}
+				// the tag holds the low bits of the hash, so it tells where the probe sequence started
+				int home = (int) (entry >>> 36) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask))
+				{
+					index.putLong(hole * Long.BYTES, entry);
+					hole = next;
+				}
+			}
+			index.putLong(hole * Long.BYTES, 0);
+			entries--;
+		}
+
+
+		private void resize()
+		{
+			ByteBuffer old = index;
+			int oldSlots = mask + 1;
+			index = ByteBuffer.allocateDirect(2 * oldSlots * Long.BYTES);
+			mask = 2 * oldSlots - 1;
+			for (int slot = 0; slot < oldSlots; slot++)
+			{
+				long entry = old.getLong(slot * Long.BYTES);
+				if (entry != 0)
+				{
+					int next = (int) (entry >>> 36) & mask;
+					while (index.getLong(next * Long.BYTES) != 0)
+					{
+						next = (next + 1) & mask;
+					}
+					index.putLong(next * Long.BYTES, entry);
+				}
+			}
+		}
+
+
+		private long allocate(int sizeClass)
+		{
+			if (free[sizeClass] == 0)
+			{
+				int slab = allocatedSlabs < slabs.length ? allocatedSlabs++ : evict();
+				if (slabs[slab] == null)
+				{
+					slabs[slab] = ByteBuffer.allocateDirect(SLAB_BYTES);
+				}
+				slabClasses[slab] = sizeClass;
+				referenced[slab] = 0;
+				int chunk = chunkBytes(sizeClass);
+				for (int offset = SLAB_BYTES - chunk; offset >= 0; offset -= chunk)
+				{
+					release((long) (slab + 1) << SLAB_BITS | offset);
+				}
+			}
+			long address = free[sizeClass];
+			free[sizeClass] = slab(address).getLong(offset(address) + 8);
+			return address;
+		}
+
+
+		private void release(long address)
+		{
+			int sizeClass = slabClasses[slabNumber(address)];
+			slab(address).putInt(offset(address), -1);
+			slab(address).putLong(offset(address) + 8, free[sizeClass]);
+			free[sizeClass] = address;
+		}
+
+
+		/**
+		 * Empties the next slab the clock hand finds unreferenced.
+		 *
+		 * @return its number
+		 */
+		private int evict()
+		{
+			while (referenced[hand] != 0)
+			{
+				referenced[hand] = 0;
+				hand = (hand + 1) % slabs.length;
+			}
+			int victim = hand;
+			hand = (hand + 1) % slabs.length;
+			ByteBuffer slab = slabs[victim];
+			int sizeClass = slabClasses[victim];
+			int chunk = chunkBytes(sizeClass);
+			for (int offset = 0; offset < SLAB_BYTES; offset += chunk)
+			{
+				if (slab.getInt(offset) >= 0)
+				{
+					removeSlot(slotOf(slab.getInt(offset + 24), (long) (victim + 1) << SLAB_BITS | offset));
+				}
+			}
+			// the free chunks of the slab, including the ones just freed, leave the free list of its class
+			long previous = 0;
+			for (long address = free[sizeClass]; address != 0; )
+			{
+				long next = slab(address).getLong(offset(address) + 8);
+				if (slabNumber(address) != victim)
+				{
+					if (previous == 0)
+					{
+						free[sizeClass] = address;
+					}
+					else
+					{
+						slab(previous).putLong(offset(previous) + 8, address);
+					}
+					previous = address;
+				}
+				address = next;
+			}
+			if (previous == 0)
+			{
+				free[sizeClass] = 0;
+			}
+			else
+			{
+				slab(previous).putLong(offset(previous) + 8, 0);
+			}
+			evictions.incrementAndGet();
+			return victim;
+		}
+
+
+		private ByteBuffer slab(long address)
+		{
+			return slabs[slabNumber(address)];
+		}
+
+
+		private int slabNumber(long address)
+		{
+			return (int) (address >>> SLAB_BITS) - 1;
+		}
+
+
+		private int offset(long address)
+		{
+			return (int) address & (SLAB_BYTES - 1);
+		}
+	}
+}
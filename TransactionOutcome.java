@@ -0,0 +1,13 @@
+/**
+ * The outcome of a transaction as its Transaction Manager knows it, for a replica that has a transaction
+ * it voted YES for but never heard the outcome of, see {@link TransactionPrepareLog}.
+ *   - COMMITTED, ABORTED: the decision of the Transaction Manager, see {@link TransactionDecisionLog}
+ *   - UNKNOWN: the Transaction Manager has not decided yet, the transaction is older than its decision
+ *     log, or it did not run the transaction
+ *
+ * @author dhimal
+ */
+public enum TransactionOutcome
+{
+	COMMITTED, ABORTED, UNKNOWN
+}
@@ -0,0 +1,100 @@
+import java.rmi.RemoteException;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Thrown by the transaction server when it rejects a request because it is saturated, see
+ * {@link TransactionAdmissionLimiter}. The request was not executed, so it is safe to retry it after
+ * {@link #getRetryAfterMillis()}.
+ *
+ * RMI hands an exception thrown by the server to the client wrapped in a ServerException;
+ * {@link #retryAfterMillis(Throwable)} looks through the wrapping. Clients send their calls through
+ * {@link #retrying(Call)}, which backs off for the hint and tries again.
+ *
+ * @author dhimal
+ */
+public class TransactionOverloadedException extends RemoteException
+{
+	/**
+	 * A call to the transaction server.
+	 */
+	interface Call<T>
+	{
+		T call() throws RemoteException;
+	}
+
+	/**
+	 * How often a call that is rejected as overloaded is tried again before the rejection is passed on.
+	 */
+	static int MAX_RETRIES = 5;
+
+	private long retryAfterMillis;
+
+
+	TransactionOverloadedException(String message, long retryAfterMillis)
+	{
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+
+	public long getRetryAfterMillis()
+	{
+		return retryAfterMillis;
+	}
+
+
+	/**
+	 * @return the retry-after hint if the failure is an overload rejection, nothing otherwise
+	 */
+	static Optional<Long> retryAfterMillis(Throwable failure)
+	{
+		for (Throwable cause = failure; cause != null; cause = cause.getCause())
+		{
+			if (cause instanceof TransactionOverloadedException)
+			{
+				return Optional.of(((TransactionOverloadedException) cause).getRetryAfterMillis());
+			}
+		}
+		return Optional.empty();
+	}
+
+
+	/**
+	 * Makes the call, and makes it again while the server rejects it as overloaded, each time after the
+	 * retry-after hint plus up to half of it at random, so that the rejected clients do not all come back
+	 * at the same moment. A rejected call was not executed, so writes are retried as well.
+	 *
+	 * @throws RemoteException any other failure, or the last rejection after {@link #MAX_RETRIES} retries
+	 */
+	static <T> T retrying(Call<T> call) throws RemoteException
+	{
+		for (int retry = 0; ; retry++)
+		{
+			try
+			{
+				return call.call();
+			}
+			catch (RemoteException e)
+			{
+				Optional<Long> retryAfter = retryAfterMillis(e);
+				if (!retryAfter.isPresent() || retry == MAX_RETRIES)
+				{
+					throw e;
+				}
+				long backOffMillis = retryAfter.get() + ThreadLocalRandom.current().nextLong(retryAfter.get() / 2 + 1);
+				Logger.getGlobal().info("Transaction server overloaded, retrying in " + backOffMillis + " ms");
+				try
+				{
+					Thread.sleep(backOffMillis);
+				}
+				catch (InterruptedException interrupted)
+				{
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+}
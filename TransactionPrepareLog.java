@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * Durable record of the transactions a replica has voted YES for, so that a replica that crashes between
+ * the two phases still knows them after a restart and can ask the Transaction Manager for the outcome.
+ *
+ * A YES vote is only sent once the PREPARED record is on disk. The records of concurrent votes are forced
+ * together (see {@link TransactionGroupCommit}), so the replica does not force the log once per vote. The
+ * outcome is appended as a COMMITTED or ABORTED record without a force: a commit is made durable by the
+ * apply buffer log anyway, and a lost outcome record only means that the outcome is asked for again after
+ * a restart.
+ *
+ * The log is split in segments. When the current segment is larger than {@link #SEGMENT_BYTES}, and at
+ * startup, a new segment is started with the transactions that are still undecided, and the older
+ * segments are deleted once it is on disk.
+ *
+ * Record layout (big endian): kind (byte, {@link #PREPARED}, {@link #COMMITTED} or {@link #ABORTED}), then
+ * for PREPARED the transaction as in the apply buffer log (see {@link TransactionApplyBuffer}), otherwise
+ * the transaction ID (long).
+ *
+ * @author dhimal
+ */
+class TransactionPrepareLog
+{
+	private static byte PREPARED = 1;
+
+	private static byte COMMITTED = 2;
+
+	private static byte ABORTED = 3;
+
+	static long SEGMENT_BYTES = 64L << 20;
+
+	private static long METRICS_LOG_INTERVAL = 100000;
+
+	private File logPrefix;
+
+	private FileChannel log;
+
+	private File logFile;
+
+	private long segment;
+
+	private AtomicLong segmentBytes;
+
+	/**
+	 * Appends take the read lock; starting a new segment takes the write lock.
+	 */
+	private ReadWriteLock swapLock;
+
+	private TransactionGroupCommit groupCommit;
+
+	/**
+	 * Prepared transactions without a COMMITTED or ABORTED record, by transaction ID.
+	 */
+	private Map<Long, Transaction> undecided;
+
+	/**
+	 * The undecided transactions found at startup.
+	 */
+	private List<Transaction> recovered;
+
+
+	/**
+	 * @param logPrefix the log segments are named logPrefix.&lt;segment&gt;
+	 */
+	TransactionPrepareLog(File logPrefix)
+	{
+		this.logPrefix = logPrefix;
+		this.segmentBytes = new AtomicLong();
+		this.swapLock = new ReentrantReadWriteLock();
+		this.groupCommit = new TransactionGroupCommit(this::forceSegment);
+		this.undecided = new ConcurrentHashMap<>();
+		List<File> previous = recover();
+		this.recovered = new ArrayList<>(undecided.values());
+		startSegment(previous);
+		Logger.getGlobal().info(recovered.size() + " undecided transactions recovered from the prepare log");
+	}
+
+
+	/**
+	 * @return the transactions that were prepared but not decided when the replica stopped
+	 */
+	Collection<Transaction> recovered()
+	{
+		return recovered;
+	}
+
+
+	/**
+	 * Logs the prepared transaction and waits until the record is on disk.
+	 *
+	 * @return false if the record could not be written or forced; the replica must then not vote YES
+	 */
+	boolean prepared(Transaction transaction)
+	{
+		ByteBuffer record = preparedRecord(transaction);
+		// before the record, so that a new segment started in between carries the transaction over
+		undecided.put(transaction.getGlobalID(), transaction);
+		try
+		{
+			groupCommit.await(append(record));
+		}
+		catch (IOException e)
+		{
+			undecided.remove(transaction.getGlobalID());
+			TransactionLog.severe("Could not log the prepared transaction {} on {}", transaction.getGlobalID(), transaction.getKey());
+			return false;
+		}
+		if (groupCommit.lastWritten() % METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Prepare log: {}", groupCommit);
+		}
+		if (segmentBytes.get() > SEGMENT_BYTES)
+		{
+			startSegment(new ArrayList<>());
+		}
+		return true;
+	}
+
+
+	/**
+	 * @return true if the transaction is prepared here and its outcome has not been logged yet
+	 */
+	boolean isUndecided(long transactionID)
+	{
+		return undecided.containsKey(transactionID);
+	}
+
+
+	/**
+	 * Logs the outcome of a transaction, without forcing it to disk. Does nothing for a transaction that
+	 * is not prepared here.
+	 */
+	void decided(long transactionID, boolean committed)
+	{
+		if (undecided.remove(transactionID) == null)
+		{
+			return;
+		}
+		ByteBuffer record = ByteBuffer.allocate(1 + Long.BYTES);
+		record.put(committed ? COMMITTED : ABORTED).putLong(transactionID).flip();
+		try
+		{
+			append(record);
+		}
+		catch (IOException e)
+		{
+			// the transaction is asked for again after a restart
+			TransactionLog.warning("Could not log the outcome of transaction {}", transactionID);
+		}
+	}
+
+
+	private static ByteBuffer preparedRecord(Transaction transaction)
+	{
+		ByteBuffer encoded = TransactionApplyBuffer.encode(transaction);
+		ByteBuffer record = ByteBuffer.allocate(1 + encoded.remaining());
+		record.put(PREPARED).put(encoded).flip();
+		return record;
+	}
+
+
+	/**
+	 * @return the ticket of the record, see {@link TransactionGroupCommit}
+	 */
+	private long append(ByteBuffer record) throws IOException
+	{
+		swapLock.readLock().lock();
+		try
+		{
+			int length = record.remaining();
+			while (record.hasRemaining())
+			{
+				log.write(record);
+			}
+			segmentBytes.addAndGet(length);
+			return groupCommit.written();
+		}
+		finally
+		{
+			swapLock.readLock().unlock();
+		}
+	}
+
+
+	private void forceSegment() throws IOException
+	{
+		swapLock.readLock().lock();
+		try
+		{
+			log.force(false);
+		}
+		finally
+		{
+			swapLock.readLock().unlock();
+		}
+	}
+
+
+	String metrics()
+	{
+		return groupCommit + " undecided=" + undecided.size();
+	}
+
+
+	/**
+	 * Starts a new segment with the undecided transactions and deletes the older segments once it is on
+	 * disk. The current segment is forced first, so a record that was written to it is durable whether or
+	 * not it is carried over.
+	 *
+	 * @param previous segments left by the previous session, deleted as well
+	 */
+	private void startSegment(List<File> previous)
+	{
+		swapLock.writeLock().lock();
+		try
+		{
+			if (log != null && segmentBytes.get() <= SEGMENT_BYTES && previous.isEmpty())
+			{
+				// another thread has just started one
+				return;
+			}
+			List<File> obsolete = new ArrayList<>(previous);
+			if (log != null)
+			{
+				log.force(false);
+				log.close();
+				obsolete.add(logFile);
+			}
+			segment++;
+			logFile = new File(logPrefix.getPath() + "." + segment);
+			log = FileChannel.open(logFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			segmentBytes.set(0);
+			for (Transaction transaction : undecided.values())
+			{
+				ByteBuffer record = preparedRecord(transaction);
+				while (record.hasRemaining())
+				{
+					segmentBytes.addAndGet(log.write(record));
+				}
+			}
+			log.force(false);
+			for (File file : obsolete)
+			{
+				if (!file.delete() && file.exists())
+				{
+					Logger.getGlobal().warning("Could not delete the prepare log segment " + file);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException("Could not start the prepare log segment " + logFile.getAbsolutePath(), e);
+		}
+		finally
+		{
+			swapLock.writeLock().unlock();
+		}
+	}
+
+
+	/**
+	 * Reads the segments left by the previous session into {@link #undecided}.
+	 *
+	 * @return the segments
+	 */
+	private List<File> recover()
+	{
+		File directory = logPrefix.getAbsoluteFile().getParentFile();
+		String name = logPrefix.getName() + ".";
+		File[] files = directory.listFiles((dir, file) -> file.startsWith(name) && file.substring(name.length()).matches("\\d+"));
+		if (files == null || files.length == 0)
+		{
+			return new ArrayList<>();
+		}
+		Arrays.sort(files, Comparator.comparingLong(file -> Long.parseLong(file.getName().substring(name.length()))));
+
+		Map<Long, Transaction> prepared = new HashMap<>();
+		for (File file : files)
+		{
+			replay(file, prepared);
+			segment = Math.max(segment, Long.parseLong(file.getName().substring(name.length())));
+		}
+		undecided.putAll(prepared);
+		return new ArrayList<>(Arrays.asList(files));
+	}
+
+
+	private static void replay(File file, Map<Long, Transaction> prepared)
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+		{
+			while (true)
+			{
+				try
+				{
+					byte kind = in.readByte();
+					if (kind == PREPARED)
+					{
+						Transaction transaction = TransactionApplyBuffer.decode(in, file.length());
+						prepared.put(transaction.getGlobalID(), transaction);
+					}
+					else if (kind == COMMITTED || kind == ABORTED)
+					{
+						prepared.remove(in.readLong());
+					}
+					else
+					{
+						// a torn record
+						return;
+					}
+				}
+				catch (EOFException e)
+				{
+					// end of the segment, or a record that was cut short by the crash and never acknowledged
+					return;
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// starting without it could forget a transaction this replica has voted for
+			throw new IllegalStateException("Could not read the prepare log segment " + file, e);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the reads issued by the Transaction Manager:
+ *   - reads: number of get requests
+ *   - hedges fired: reads that were also sent to a second replica because the first one was slow
+ *   - hedge wins: hedged reads where the second replica answered first
+ *   - failovers: replica calls that failed and were retried on another replica
+ *
+ * @author dhimal
+ */
+class TransactionReadMetrics
+{
+	private AtomicLong reads = new AtomicLong();
+
+	private AtomicLong hedgesFired = new AtomicLong();
+
+	private AtomicLong hedgeWins = new AtomicLong();
+
+	private AtomicLong failovers = new AtomicLong();
+
+
+	long read()
+	{
+		return reads.incrementAndGet();
+	}
+
+
+	void hedgeFired()
+	{
+		hedgesFired.incrementAndGet();
+	}
+
+
+	void hedgeWon()
+	{
+		hedgeWins.incrementAndGet();
+	}
+
+
+	void failover()
+	{
+		failovers.incrementAndGet();
+	}
+
+
+	/**
+	 * @return fraction of reads that fired a hedge request
+	 */
+	double hedgeFireRate()
+	{
+		long total = reads.get();
+		return total == 0 ? 0 : (double) hedgesFired.get() / total;
+	}
+
+
+	/**
+	 * @return fraction of hedge requests that answered before the original request
+	 */
+	double hedgeWinRate()
+	{
+		long fired = hedgesFired.get();
+		return fired == 0 ? 0 : (double) hedgeWins.get() / fired;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("reads=%d hedgeFireRate=%.4f hedgeWinRate=%.4f failovers=%d",
+			reads.get(), hedgeFireRate(), hedgeWinRate(), failovers.get());
+	}
+}
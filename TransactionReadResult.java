@@ -0,0 +1,65 @@
+import java.io.Serializable;
+
+/**
+ * Answer of a replica to a follower read, see {@link TransactionInterfaceReplicaToClient}:
+ *   - whether the read was served, i.e. the replica was fresh enough
+ *   - the value ("" if the key does not exist) and its version, the ID of the transaction that wrote it
+ *   - the applied watermark of the replica, the first transaction ID it may not have applied
+ *
+ * @author dhimal
+ */
+public class TransactionReadResult implements Serializable
+{
+	private boolean served;
+
+	private String value;
+
+	private long version;
+
+	private long watermark;
+
+
+	private TransactionReadResult(boolean served, String value, long version, long watermark)
+	{
+		this.served = served;
+		this.value = value;
+		this.version = version;
+		this.watermark = watermark;
+	}
+
+
+	static TransactionReadResult served(String value, long version, long watermark)
+	{
+		return new TransactionReadResult(true, value, version, watermark);
+	}
+
+
+	static TransactionReadResult behind(long watermark)
+	{
+		return new TransactionReadResult(false, "", 0, watermark);
+	}
+
+
+	public boolean isServed()
+	{
+		return served;
+	}
+
+
+	public String getValue()
+	{
+		return value;
+	}
+
+
+	public long getVersion()
+	{
+		return version;
+	}
+
+
+	public long getWatermark()
+	{
+		return watermark;
+	}
+}
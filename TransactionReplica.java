@@ -1,3 +1,4 @@
+import java.io.File;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
@@ -7,69 +8,808 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class TransactionReplica extends UnicastRemoteObject implements TransactionInterfaceReplicaToTM
+public class TransactionReplica extends UnicastRemoteObject
+	implements TransactionInterfaceReplicaToTM, TransactionInterfaceReplicaToClient
 {
 	static String REPLICA_RMI_LOCATION = "/replica";
 
-	private TransactionDatabase transactionDatabase;
+	private TransactionTimingWheel expiryWheel;
+
+	/**
+	 * The databases of this replica, one per shard of the key space, each with the committed writes on their
+	 * way to it; see {@link TransactionShards} and {@link TransactionApplyBuffer}.
+	 */
+	private TransactionShards shards;
+
+	/**
+	 * Chunks of large values that were staged this long ago and that no key refers to are deleted.
+	 */
+	private static long ABANDONED_UPLOAD_MILLIS = 3600000;
+
+	private static long CHUNK_SWEEP_INTERVAL_MILLIS = 600000;
+
+	/**
+	 * Deleted keys keep the ID of the delete this long, so that a retried or replayed commit of an older
+	 * transaction cannot bring them back; see {@link TransactionDatabase#pruneTombstones(long)}.
+	 */
+	private static long TOMBSTONE_RETENTION_MILLIS = 3600000;
+
+	/**
+	 * A prepared transaction that is not heard of again this long (e.g. the server died between the
+	 * phases) is put in doubt: its outcome is asked for, and it keeps its key lock until a transaction
+	 * server knows it, see {@link #resolveInDoubt()}.
+	 */
+	private static long PREPARE_LOCK_TIMEOUT_MILLIS = 30000;
+
+	/**
+	 * Key locks taken in phase one and released by commit() or abort().
+	 */
+	private ConcurrentHashMap<String, PreparedLock> preparedKeys;
+
+	/**
+	 * How long an older transaction waits for a key locked by a younger one, see {@link #lock(Transaction)}.
+	 */
+	private static long LOCK_WAIT_MILLIS = 50;
+
+	private final Object lockReleased = new Object();
+
+	/**
+	 * Applies the phase two messages of each Transaction Manager in the order they were sent.
+	 */
+	private TransactionCommitSequencer commitSequencer;
+
+	/**
+	 * Latency of commit(), watched by the checkpoints so they can back off, see {@link TransactionCheckpoint}.
+	 */
+	private TransactionLatencyTracker commitLatency;
+
+	/**
+	 * Collapses concurrent gets of the same key into one read of the data store, see {@link TransactionSingleFlight}.
+	 */
+	private TransactionSingleFlight getFlights;
+
+	private static long GET_METRICS_LOG_INTERVAL = 100000;
+
+	/**
+	 * Applied watermark for follower reads, see {@link TransactionWatermark}.
+	 */
+	private TransactionWatermark watermark;
+
+	/**
+	 * Longest a follower read waits for the replica to catch up, whatever the client asks for.
+	 */
+	private static long MAX_FOLLOWER_READ_WAIT_MILLIS = 100;
+
+	/**
+	 * The transaction servers this replica registered with (ip:port).
+	 */
+	private List<String> coordinators;
+
+	/**
+	 * Transactions this replica has voted YES for, see {@link TransactionPrepareLog}.
+	 */
+	private TransactionPrepareLog prepareLog;
+
+	/**
+	 * Prepared transactions whose outcome is asked for from the transaction servers, by ID: the ones found
+	 * undecided in the prepare log at startup, and the ones not heard of for {@link #PREPARE_LOCK_TIMEOUT_MILLIS}.
+	 */
+	private Map<Long, Transaction> inDoubt;
+
+	private static long IN_DOUBT_RETRY_MILLIS = 1000;
+
+	private static class PreparedLock
+	{
+		private Transaction transaction;
+
+		private long preparedAt;
+
+
+		PreparedLock(Transaction transaction, long preparedAt)
+		{
+			this.transaction = transaction;
+			this.preparedAt = preparedAt;
+		}
+
+
+		long transactionID()
+		{
+			return transaction.getGlobalID();
+		}
+	}
+
+
+	TransactionReplica(
+			String databaseDir,
+			String databaseFilePath,
+			TransactionSocketFactory socketFactory) throws RemoteException
+	{
+		super(0, socketFactory, socketFactory);
+		this.shards = TransactionShards.fromSystemProperties(databaseDir, databaseFilePath);
+		this.shards.start();
+		Logger.getGlobal().info("Storing the keys in " + shards.count() + " shards");
+		startChunkSweeper();
+		this.preparedKeys = new ConcurrentHashMap<>();
+		this.commitSequencer = new TransactionCommitSequencer();
+		this.commitLatency = new TransactionLatencyTracker();
+		this.getFlights = new TransactionSingleFlight(new TransactionHotKeys(100));
+		startCheckpoints();
+		this.coordinators = new CopyOnWriteArrayList<>();
+		this.prepareLog = new TransactionPrepareLog(new File(databaseDir, databaseFilePath + ".prepare"));
+		this.inDoubt = new ConcurrentHashMap<>();
+		this.expiryWheel = new TransactionTimingWheel(TransactionTimingWheel.DEFAULT_TICK_MILLIS, this::expire);
+		recoverExpiringKeys();
+		this.watermark = new TransactionWatermark(() -> coordinators.size(), this::oldestPrepared);
+		this.expiryWheel.start();
+		recoverPrepared();
+	}
+
+
+	/**
+	 * Puts the keys with a time to live from the previous session back on the timing wheel. Keys that
+	 * expired while the replica was down are deleted on the first tick.
+	 */
+	private void recoverExpiringKeys()
+	{
+		Map<String, Long> expiring = shards.expiringKeys();
+		expiring.forEach(expiryWheel::schedule);
+		Logger.getGlobal().info(expiring.size() + " expiring keys recovered");
+	}
+
+
+	/**
+	 * Locks the keys of the transactions that were prepared but not decided when the replica stopped. Their
+	 * outcome is asked for once the transaction servers are known, see {@link #startInDoubtResolver()}.
+	 */
+	private void recoverPrepared()
+	{
+		long now = System.currentTimeMillis();
+		for (Transaction transaction : prepareLog.recovered())
+		{
+			preparedKeys.put(transaction.getKey(), new PreparedLock(transaction, now));
+			inDoubt.put(transaction.getGlobalID(), transaction);
+		}
+		if (!inDoubt.isEmpty())
+		{
+			Logger.getGlobal().warning(inDoubt.size() + " prepared transactions are in doubt");
+		}
+	}
+
+
+	/**
+	 * Asks the transaction servers for the outcome of the transactions in doubt every
+	 * {@link #IN_DOUBT_RETRY_MILLIS}, for as long as the replica runs. Started once the replica has
+	 * registered with the servers, so the recovered transactions are asked for right away.
+	 */
+	private void startInDoubtResolver()
+	{
+		ScheduledExecutorService resolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-in-doubt-resolver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		resolver.scheduleWithFixedDelay(this::resolveInDoubt, 0, IN_DOUBT_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * Applies the outcome of each transaction in doubt that a transaction server knows. The outcome is
+	 * never presumed here: the replica voted YES, so the transaction may have been committed on the other
+	 * replicas, and it keeps its key lock until its transaction server answers.
+	 *
+	 * A prepared transaction that has not been heard of for {@link #PREPARE_LOCK_TIMEOUT_MILLIS} is put in
+	 * doubt here as well, even if no other transaction wants its key: it holds back the applied watermark.
+	 */
+	private void resolveInDoubt()
+	{
+		long now = System.currentTimeMillis();
+		preparedKeys.values().forEach(holder -> suspectInDoubt(holder, now));
+		for (Transaction transaction : inDoubt.values())
+		{
+			TransactionOutcome outcome = askCoordinators(transaction.getGlobalID());
+			if (TransactionOutcome.UNKNOWN.equals(outcome) || inDoubt.remove(transaction.getGlobalID()) == null)
+			{
+				continue;
+			}
+			if (TransactionOutcome.COMMITTED.equals(outcome))
+			{
+				TransactionLog.info("Committing transaction {} on {}, which was in doubt", transaction.getGlobalID(), transaction.getKey());
+				commitRecovered(transaction);
+			}
+			else
+			{
+				prepareLog.decided(transaction.getGlobalID(), false);
+				unlock(transaction);
+			}
+		}
+	}
+
+
+	private TransactionOutcome askCoordinators(long transactionID)
+	{
+		for (String address : coordinators)
+		{
+			try
+			{
+				TransactionOutcome outcome = TransactionCoordinators.lookup(address).outcome(transactionID);
+				if (!TransactionOutcome.UNKNOWN.equals(outcome))
+				{
+					return outcome;
+				}
+			}
+			catch (NotBoundException | MalformedURLException | RemoteException e)
+			{
+				TransactionLog.warning("Could not ask {} for the outcome of {}", address, transactionID);
+			}
+		}
+		return TransactionOutcome.UNKNOWN;
+	}
+
+
+	/**
+	 * Commits a transaction in doubt, unless the key has moved on to a newer version meanwhile. If that
+	 * fails, the transaction stays in doubt and keeps its key lock, and the commit is tried again.
+	 */
+	private void commitRecovered(Transaction transaction)
+	{
+		boolean written = Transaction.TransactionType.INSERT.equals(transaction.transactionType())
+			|| Transaction.TransactionType.DELETE.equals(transaction.transactionType());
+		try
+		{
+			TransactionApplyBuffer applyBuffer = shards.forKey(transaction.getKey());
+			Optional<TransactionDatabase.StoredValue> current = applyBuffer.find(transaction.getKey());
+			boolean newer = !current.isPresent() || current.get().getVersion() < transaction.getGlobalID();
+			if (written && newer && !applyBuffer.commit(transaction))
+			{
+				TransactionLog.severe("Could not commit transaction {} on {} after recovery", transaction.getGlobalID(), transaction.getKey());
+				inDoubt.put(transaction.getGlobalID(), transaction);
+				return;
+			}
+			if (written && newer && transaction.hasExpiry())
+			{
+				expiryWheel.schedule(transaction.getKey(), transaction.getExpiresAt());
+			}
+		}
+		catch (SQLException e)
+		{
+			TransactionLog.severe("Could not query {} to commit transaction {} after recovery", transaction.getKey(), transaction.getGlobalID());
+			inDoubt.put(transaction.getGlobalID(), transaction);
+			return;
+		}
+		getFlights.forget(transaction.getKey());
+		prepareLog.decided(transaction.getGlobalID(), true);
+		unlock(transaction);
+	}
+
+
+	private void startChunkSweeper()
+	{
+		ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-chunk-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			shards.deleteAbandonedChunks(TransactionClock.firstID(System.currentTimeMillis() - ABANDONED_UPLOAD_MILLIS));
+			shards.pruneTombstones(TransactionClock.firstID(System.currentTimeMillis() - TOMBSTONE_RETENTION_MILLIS));
+		}, 0, CHUNK_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void startCheckpoints()
+	{
+		shards.startCheckpoints(commitLatency);
+	}
+
+
+	private void expire(List<TransactionTimingWheel.Timer> timers)
+	{
+		shards.deleteExpired(timers);
+	}
+
+
+	private TransactionDatabase twoPhaseCommitDatabase(String key)
+	{
+		return shards.databaseForKey(key);
+	}
+
+
+	@Override
+	public String get(String key) throws RemoteException
+	{
+		String value = getFlights.get(key, () -> {
+			try
+			{
+				return shards.forKey(key).get(key);
+			}
+			catch (SQLException e)
+			{
+				// so that the Transaction Manager fails over to another replica
+				throw new RemoteException("Could not query " + key, e);
+			}
+		});
+		if (getFlights.reads() % GET_METRICS_LOG_INTERVAL == 0)
+		{
+			TransactionLog.info("Get collapsing: {}", getFlights);
+		}
+		return value;
+	}
+
+
+	@Override
+	public Map<String, String> getMany(Collection<String> keys) throws RemoteException
+	{
+		try
+		{
+			return shards.getMany(keys);
+		}
+		catch (SQLException e)
+		{
+			// so that the Transaction Manager retries the sub-batch on another replica
+			throw new RemoteException("Could not query " + keys.size() + " keys", e);
+		}
+	}
+
+
+	@Override
+	public TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws RemoteException
+	{
+		try
+		{
+			return shards.scan(startKey, endKey, cursor, pageSize);
+		}
+		catch (SQLException e)
+		{
+			// so that the Transaction Manager asks another replica for the page
+			throw new RemoteException("Could not scan from " + startKey + " to " + endKey, e);
+		}
+	}
+
+
+	@Override
+	public TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws RemoteException
+	{
+		try
+		{
+			return shards.scanPrefix(prefix, cursor, pageSize);
+		}
+		catch (SQLException e)
+		{
+			throw new RemoteException("Could not scan the prefix " + prefix, e);
+		}
+	}
+
+
+	@Override
+	public boolean stageChunk(String key, long upload, int sequence, byte[] data)
+	{
+		try
+		{
+			shards.forKey(key).stageChunk(key, upload, sequence, data);
+			return true;
+		}
+		catch (SQLException e)
+		{
+			TransactionLog.severe("Could not stage chunk {} of {}", sequence, key);
+			return false;
+		}
+	}
 
 
-	private TransactionReplica(String databaseDir, String databaseFilePath) throws RemoteException
+	@Override
+	public TransactionLargeValue largeValue(String key) throws RemoteException
 	{
-		super();
-		this.transactionDatabase = new TransactionDatabase(databaseDir, databaseFilePath);
+		try
+		{
+			return shards.forKey(key).largeValue(key);
+		}
+		catch (SQLException e)
+		{
+			throw new RemoteException("Could not query " + key, e);
+		}
 	}
 
 
-	private TransactionDatabase twoPhaseCommitDatabase()
+	@Override
+	public byte[] getChunk(String key, long upload, int sequence) throws RemoteException
 	{
-		return transactionDatabase;
+		try
+		{
+			return twoPhaseCommitDatabase(key).readChunk(key, upload, sequence);
+		}
+		catch (SQLException e)
+		{
+			throw new RemoteException("Could not read chunk " + sequence + " of " + key, e);
+		}
 	}
 
 
+	/**
+	 * Deletes are only known for {@link #TOMBSTONE_RETENTION_MILLIS}; a replica that has missed more than
+	 * that can not catch up from this one.
+	 */
 	@Override
-	public String get(String key)
+	public List<Transaction> changes(long fromVersion, String afterKey, int limit) throws RemoteException
 	{
-		return twoPhaseCommitDatabase().get(key);
+		if (fromVersion < TransactionClock.firstID(System.currentTimeMillis() - TOMBSTONE_RETENTION_MILLIS))
+		{
+			throw new RemoteException("The deletes before " + fromVersion + " may have been pruned");
+		}
+		try
+		{
+			return shards.changes(fromVersion, afterKey, limit);
+		}
+		catch (SQLException e)
+		{
+			throw new RemoteException("Could not read the changes from " + fromVersion, e);
+		}
 	}
 
 
+	/**
+	 * Each write is applied under its key lock, like a commit, and skipped by the apply buffer if the key
+	 * has a newer version here already.
+	 */
 	@Override
-	public boolean phaseOneRequest(Transaction transaction)
+	public boolean applyChanges(List<Transaction> changes)
+	{
+		boolean applied = true;
+		for (Transaction change : changes)
+		{
+			if (lock(change) != 0)
+			{
+				applied = false;
+				continue;
+			}
+			try
+			{
+				if (!shards.forKey(change.getKey()).commit(change))
+				{
+					applied = false;
+					continue;
+				}
+				getFlights.forget(change.getKey());
+				if (change.hasExpiry())
+				{
+					expiryWheel.schedule(change.getKey(), change.getExpiresAt());
+				}
+			}
+			finally
+			{
+				unlock(change);
+			}
+		}
+		return applied;
+	}
+
+
+	/**
+	 * Follower read, see {@link TransactionInterfaceReplicaToClient}. A key whose own version is at least
+	 * the one asked for is served right away, whatever the watermark: no write the client knows of can be
+	 * newer than it, so a client reading back a key it has just written does not wait for the closed IDs.
+	 */
+	@Override
+	public TransactionReadResult getAtLeast(String key, long minTransactionID, long maxWaitMillis)
+			throws RemoteException
+	{
+		try
+		{
+			TransactionApplyBuffer applyBuffer = shards.forKey(key);
+			if (version(applyBuffer, key) < minTransactionID
+				&& !watermark.await(minTransactionID, Math.min(maxWaitMillis, MAX_FOLLOWER_READ_WAIT_MILLIS)))
+			{
+				return TransactionReadResult.behind(watermark.current());
+			}
+			String value = applyBuffer.get(key);
+			return TransactionReadResult.served(value, version(applyBuffer, key), watermark.current());
+		}
+		catch (SQLException e)
+		{
+			throw new RemoteException("Could not query " + key, e);
+		}
+	}
+
+
+	private static long version(TransactionApplyBuffer applyBuffer, String key) throws SQLException
+	{
+		return applyBuffer.find(key).map(TransactionDatabase.StoredValue::getVersion).orElse(0L);
+	}
+
+
+	/**
+	 * Closed ID of a Transaction Manager, see {@link TransactionWatermark}.
+	 */
+	@Override
+	public void closed(long stream, long closedBefore)
+	{
+		watermark.closed(stream, closedBefore);
+	}
+
+
+	/**
+	 * @return the ID of the oldest transaction that holds a key lock, i.e. is prepared and not applied yet
+	 */
+	private long oldestPrepared()
+	{
+		long oldest = Long.MAX_VALUE;
+		for (PreparedLock lock : preparedKeys.values())
+		{
+			oldest = Math.min(oldest, lock.transactionID());
+		}
+		return oldest;
+	}
+
+
+	/**
+	 * Locks the key of the transaction and, for a conditional write, checks the condition while holding the lock.
+	 * The lock is kept until commit() or abort() so that no other transaction on the key can slip in between.
+	 */
+	@Override
+	public TransactionVoteResult phaseOneRequest(Transaction transaction)
+	{
+		if (Transaction.TransactionType.GET.equals(transaction.transactionType()))
+		{
+			return TransactionVoteResult.of(TransactionVote.YES);
+		}
+		long startNanos = System.nanoTime();
+		long holderID = lock(transaction);
+		if (holderID != 0)
+		{
+			TransactionLog.info("{} is locked by transaction {}", transaction.getKey(), holderID);
+			TransactionTracer.span(transaction, "lock", "NO_KEY_LOCKED", startNanos);
+			return TransactionVoteResult.conflict(TransactionVote.NO_KEY_LOCKED, holderID);
+		}
+		TransactionTracer.span(transaction, "lock", "", startNanos);
+
+		long checkNanos = System.nanoTime();
+		TransactionVoteResult result = checkCondition(transaction);
+		TransactionTracer.span(transaction, "check", result.getVote().toString(), checkNanos);
+		if (!result.getVote().isYes())
+		{
+			unlock(transaction);
+			return result;
+		}
+
+		// a YES vote must survive a crash of this replica, see TransactionPrepareLog
+		long logNanos = System.nanoTime();
+		boolean logged = prepareLog.prepared(transaction);
+		TransactionTracer.span(transaction, "prepare log", "", logNanos);
+		if (!logged)
+		{
+			unlock(transaction);
+			return TransactionVoteResult.of(TransactionVote.NO_STORAGE_ERROR);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Checks, with one read of the key, that the transaction is newer than the version the key already
+	 * has (keys are versioned by transaction ID, see {@link TransactionClock}) and that the condition of a
+	 * conditional write holds. A write of a large value also needs all of its chunks to be staged here.
+	 * A stale transaction is told the newer version, see {@link TransactionVoteResult}.
+	 *
+	 * A transaction below the applied watermark is stale as well, it could otherwise be committed behind a
+	 * follower read; it is told the watermark. Called with the key lock held, see {@link TransactionWatermark#closedBefore()}.
+	 */
+	private TransactionVoteResult checkCondition(Transaction transaction)
 	{
-		// decide if the transaction can go trough
+		long closedBefore = watermark.closedBefore();
+		if (transaction.getGlobalID() < closedBefore)
+		{
+			TransactionLog.info("Transaction {} is below the applied watermark", transaction.getGlobalID());
+			return TransactionVoteResult.conflict(TransactionVote.NO_STALE_VERSION, closedBefore);
+		}
+		try
+		{
+			Optional<TransactionDatabase.StoredValue> current = shards.forKey(transaction.getKey()).find(transaction.getKey());
+			if (current.isPresent() && current.get().getVersion() > transaction.getGlobalID())
+			{
+				TransactionLog.info("{} has a newer version than {}", transaction.getKey(), transaction.getGlobalID());
+				return TransactionVoteResult.conflict(TransactionVote.NO_STALE_VERSION, current.get().getVersion());
+			}
+			if (transaction.isChunked()
+				&& twoPhaseCommitDatabase(transaction.getKey()).countChunks(transaction.getKey(), transaction.getUpload()) != transaction.getChunks())
+			{
+				TransactionLog.info("Chunks of upload {} of {} are missing", transaction.getUpload(), transaction.getKey());
+				return TransactionVoteResult.of(TransactionVote.NO_MISSING_CHUNKS);
+			}
+			switch (transaction.getCondition())
+			{
+				case ABSENT:
+					return TransactionVoteResult.of(!current.isPresent() ? TransactionVote.YES : TransactionVote.NO_CONDITION_FAILED);
+				case EQUALS:
+					return TransactionVoteResult.of(
+						current.isPresent() && currentValue(transaction.getKey(), current.get()).equals(transaction.getExpectedValue())
+							? TransactionVote.YES
+							: TransactionVote.NO_CONDITION_FAILED);
+				default:
+					return TransactionVoteResult.of(TransactionVote.YES);
+			}
+		}
+		catch (SQLException e)
+		{
+			TransactionLog.severe("Could not check the condition on {}", transaction.getKey());
+			return TransactionVoteResult.of(TransactionVote.NO_STORAGE_ERROR);
+		}
+	}
 
-		// Todo - how do I decide when a transaction can't be commited?
-		return true;
+
+	/**
+	 * @return the value a condition is checked against: a large value is read from its chunks, not its placeholder
+	 */
+	private String currentValue(String key, TransactionDatabase.StoredValue current) throws SQLException
+	{
+		return current.isChunked() ? shards.forKey(key).get(key) : current.getValue();
 	}
 
 
+	/**
+	 * Takes the key lock for the transaction. Conflicts between transactions, which may come from different
+	 * transaction servers, are resolved by transaction ID (wait-die): if the lock is held by a younger
+	 * transaction (higher ID), the older one waits up to {@link #LOCK_WAIT_MILLIS} for it; a younger
+	 * transaction gives up right away. Waits therefore only go from old to young and can not form a cycle.
+	 *
+	 * A lock is never taken away from a transaction this replica has voted for. One that has been held for
+	 * longer than {@link #PREPARE_LOCK_TIMEOUT_MILLIS} is put in doubt instead, so its outcome is asked for.
+	 *
+	 * @return 0 if the lock was taken, otherwise the ID of the transaction that holds it
+	 */
+	private long lock(Transaction transaction)
+	{
+		long deadline = System.currentTimeMillis() + LOCK_WAIT_MILLIS;
+		while (true)
+		{
+			long now = System.currentTimeMillis();
+			PreparedLock lock = new PreparedLock(transaction, now);
+			PreparedLock holder = preparedKeys.compute(transaction.getKey(), (key, current) ->
+				current == null || current.transactionID() == transaction.getGlobalID() ? lock : current);
+			if (holder == lock)
+			{
+				return 0;
+			}
+			suspectInDoubt(holder, now);
+			if (transaction.getGlobalID() > holder.transactionID() || now >= deadline)
+			{
+				return holder.transactionID();
+			}
+			synchronized (lockReleased)
+			{
+				try
+				{
+					// short slices, a release between compute() and wait() is not missed for long
+					lockReleased.wait(Math.max(1, Math.min(deadline - now, 5)));
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return holder.transactionID();
+				}
+			}
+		}
+	}
+
+
+	private void suspectInDoubt(PreparedLock holder, long now)
+	{
+		if (now - holder.preparedAt > PREPARE_LOCK_TIMEOUT_MILLIS
+			&& inDoubt.putIfAbsent(holder.transactionID(), holder.transaction) == null)
+		{
+			TransactionLog.warning("Transaction {} on {} is not heard of, asking for its outcome",
+				holder.transactionID(), holder.transaction.getKey());
+		}
+	}
+
+
+	private void unlock(Transaction transaction)
+	{
+		preparedKeys.computeIfPresent(transaction.getKey(), (key, current) ->
+			current.transactionID() == transaction.getGlobalID() ? null : current);
+		synchronized (lockReleased)
+		{
+			lockReleased.notifyAll();
+		}
+		watermark.released();
+	}
+
+
+	/**
+	 * The ordered step, appending to the apply buffer, runs in the order of the Transaction Manager's
+	 * pipeline; the sync of the log runs after it, concurrently with the syncs of other commits. A commit
+	 * whose turn does not come is left prepared and put in doubt, see {@link #awaitedTooLong(Transaction)}.
+	 */
 	@Override
-	public boolean commit(Transaction transaction)
+	public boolean commit(Transaction transaction, long stream, long sequence, long firstPending)
 	{
-		// commit the transaction on your local
-		if (Transaction.TransactionType.INSERT.equals(transaction.transactionType()))
+		long startNanos = System.nanoTime();
+		// commit the transaction on your local: logged now, written to the database with the next flush
+		boolean written = Transaction.TransactionType.INSERT.equals(transaction.transactionType())
+			|| Transaction.TransactionType.DELETE.equals(transaction.transactionType());
+		TransactionApplyBuffer applyBuffer = shards.forKey(transaction.getKey());
+		Boolean ordered = commitSequencer.inOrder(stream, sequence, firstPending, () -> {
+			TransactionTracer.span(transaction, "sequencer", "stream " + stream + " #" + sequence, startNanos);
+			long appendNanos = System.nanoTime();
+			boolean appended = !written || applyBuffer.append(transaction);
+			TransactionTracer.span(transaction, "append", "", appendNanos);
+			getFlights.forget(transaction.getKey());
+			if (!appended)
+			{
+				// still prepared: it keeps its key lock, and is committed again by the in-doubt resolver
+				inDoubt.putIfAbsent(transaction.getGlobalID(), transaction);
+				return false;
+			}
+			unlock(transaction);
+			return true;
+		});
+		if (ordered == null)
+		{
+			return awaitedTooLong(transaction);
+		}
+		boolean committed = ordered;
+		if (committed && written)
+		{
+			long syncNanos = System.nanoTime();
+			committed = applyBuffer.sync();
+			TransactionTracer.span(transaction, "sync", "", syncNanos);
+		}
+		if (committed)
 		{
-			twoPhaseCommitDatabase().insert(transaction.getKey(), transaction.getValue());
+			// only once the commit is durable, or a crash could lose both it and the prepared record
+			prepareLog.decided(transaction.getGlobalID(), true);
+			inDoubt.remove(transaction.getGlobalID());
 		}
-		else if (Transaction.TransactionType.DELETE.equals(transaction.transactionType()))
+		if (committed && transaction.hasExpiry())
 		{
-			twoPhaseCommitDatabase().delete(transaction.getKey());
+			expiryWheel.schedule(transaction.getKey(), transaction.getExpiresAt());
 		}
-		return true;
+		commitLatency.record(System.nanoTime() - startNanos);
+		return committed;
 	}
 
 
 	@Override
-	public boolean abort(Transaction transaction)
+	public boolean abort(Transaction transaction, long stream, long sequence, long firstPending)
 	{
-		// todo - do I need this?
+		Boolean aborted = commitSequencer.inOrder(stream, sequence, firstPending, () -> {
+			prepareLog.decided(transaction.getGlobalID(), false);
+			inDoubt.remove(transaction.getGlobalID());
+			unlock(transaction);
+			return true;
+		});
+		return aborted != null ? aborted : awaitedTooLong(transaction);
+	}
 
-		return true;
+
+	/**
+	 * A phase two message that waited too long for an earlier message of its pipeline is not applied out
+	 * of order. Its transaction keeps its key lock and prepared record, and its outcome is asked for from
+	 * the transaction server instead, see {@link #resolveInDoubt()}.
+	 *
+	 * @return false if the transaction is prepared here and still has to be decided
+	 */
+	private boolean awaitedTooLong(Transaction transaction)
+	{
+		if (!prepareLog.isUndecided(transaction.getGlobalID()))
+		{
+			// not voted for here, or decided already: nothing to apply
+			return true;
+		}
+		inDoubt.putIfAbsent(transaction.getGlobalID(), transaction);
+		return false;
 	}
 
 
@@ -80,19 +820,29 @@ public class TransactionReplica extends UnicastRemoteObject implements Transacti
 	}
 
 
-	private void contactServer(String ipAddress, int port, String myIP, int myPort)
+	@Override
+	public List<String> coordinators()
+	{
+		return new ArrayList<>(coordinators);
+	}
+
+
+	/**
+	 * @param address ip:port of the transaction server
+	 */
+	private void contactServer(String address, String myIP, int myPort)
 	{
 		try
 		{
-			TransactionInterfaceServerToClient server = (TransactionInterfaceServerToClient) Naming.lookup(
-				"rmi://" + ipAddress + ":" + port + TransactionServer.SERVER_RMI_LOCATION);
+			TransactionInterfaceServerToClient server = TransactionCoordinators.lookup(address);
 
 			server.addNewReplica(myIP, myPort);
-			Logger.getGlobal().info("Adding replica to the server at " + ipAddress + ":" + port);
+			coordinators.add(address);
+			Logger.getGlobal().info("Adding replica to the server at " + address);
 		}
 		catch (NotBoundException | MalformedURLException | RemoteException e)
 		{
-			Logger.getGlobal().severe("Could not add replica at " + ipAddress + ":" + port);
+			Logger.getGlobal().severe("Could not add replica at " + address);
 		}
 	}
 
@@ -114,8 +864,9 @@ public class TransactionReplica extends UnicastRemoteObject implements Transacti
 				Logger.getGlobal().severe(
 					"This program takes exactly six arguments.\n" +
 						"1. The port number this transaction replica should be running at.\n" +
-						"2. The IP address of the transaction server.\n" +
-						"3. The port number of the transaction server.\n" +
+						"2. The IP address of the transaction server, or a comma separated list of ip[:port]\n" +
+						"   of all transaction servers this replica should join.\n" +
+						"3. The port number of the transaction server (for the entries without a port).\n" +
 						"4. The relative path to the database directory (n/a otherwise).\n" +
 						"5. The name of the database file (n/a otherwise).\n" +
 						"6. debug option (no otherwise)\n");
@@ -167,13 +918,16 @@ public class TransactionReplica extends UnicastRemoteObject implements Transacti
 				Logger.getGlobal().setLevel(Level.WARNING);
 			}
 
+			TransactionSocketFactory socketFactory = TransactionSocketFactory.install();
+
 			String ipAddress = InetAddress.getLocalHost().getHostAddress();
 			Logger.getGlobal().info("Ipaddress " + ipAddress);
 
 			// rmi registry -> create a registry for this service to run on?
-			LocateRegistry.createRegistry(replicaPort);
+			LocateRegistry.createRegistry(
+				replicaPort, socketFactory.withoutCompression(), socketFactory.withoutCompression());
 
-			TransactionInterfaceReplicaToTM remoteObject = new TransactionReplica(filePath, fileName);
+			TransactionInterfaceReplicaToTM remoteObject = new TransactionReplica(filePath, fileName, socketFactory);
 
 			// Bind the remote object (RMIImplementation) by name
 			Naming.bind("rmi://" + ipAddress + ":" + replicaPort + REPLICA_RMI_LOCATION, remoteObject);
@@ -184,8 +938,12 @@ public class TransactionReplica extends UnicastRemoteObject implements Transacti
 
 			if (serverIPAddress.isPresent() && serverPort.isPresent())
 			{
-				((TransactionReplica) remoteObject).contactServer(serverIPAddress.get(), serverPort.get(), ipAddress, replicaPort);
+				for (String address : TransactionCoordinators.parse(serverIPAddress.get(), serverPort.get()))
+				{
+					((TransactionReplica) remoteObject).contactServer(address, ipAddress, replicaPort);
+				}
 			}
+			((TransactionReplica) remoteObject).startInDoubtResolver();
 		}
 		catch (RemoteException | AlreadyBoundException | MalformedURLException |
 
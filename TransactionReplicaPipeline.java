@@ -0,0 +1,205 @@
+import java.rmi.RemoteException;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Outbound pipeline from the Transaction Manager to one replica.
+ *
+ * Calls are sent asynchronously, so a transaction talks to all of its participants at the same time
+ * instead of one after the other, and up to {@link #window} calls can be in flight to the replica at once
+ * (over the connections RMI keeps open to it). A caller that would exceed the window waits for a slot,
+ * which is the backpressure towards the clients.
+ *
+ * Phase two messages (commit and abort) carry a sequence number of this pipeline, so the replica can apply
+ * them in the order the Transaction Manager decided them, whatever order they arrive in (see
+ * {@link TransactionCommitSequencer}). A slot of the window is taken before the sequence number is, so the
+ * oldest outstanding message always has a slot and the replica is never left waiting for a message that
+ * can not be sent. Phase one messages need no order, the key locks of the replica take care of that.
+ *
+ * Each phase two message also tells the replica the first sequence number that has not been answered
+ * yet, so the replica knows where the stream starts and which gaps the pipeline has given up on.
+ *
+ * @author dhimal
+ */
+class TransactionReplicaPipeline
+{
+	static int DEFAULT_WINDOW = 32;
+
+	private interface Call<T>
+	{
+		T send() throws RemoteException;
+	}
+
+	private TransactionInterfaceReplicaToTM replica;
+
+	/**
+	 * How the replica is shown in traces.
+	 */
+	private String name;
+
+	/**
+	 * Identifies this pipeline at the replica; unique across Transaction Managers and restarts.
+	 */
+	private long stream;
+
+	private int window;
+
+	private Semaphore slots;
+
+	private long nextSequence;
+
+	/**
+	 * Sequence numbers of the phase two messages that have not been answered yet.
+	 */
+	private TreeSet<Long> pending;
+
+	private ExecutorService sender;
+
+
+	TransactionReplicaPipeline(TransactionInterfaceReplicaToTM replica, String name, long stream, int window)
+	{
+		this.replica = replica;
+		this.name = name;
+		this.stream = stream;
+		this.window = window;
+		this.slots = new Semaphore(window);
+		this.pending = new TreeSet<>();
+		this.sender = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-replica-pipeline");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+
+	CompletableFuture<TransactionVoteResult> prepare(Transaction transaction)
+	{
+		long startNanos = acquire(transaction);
+		return send(transaction, "prepare", startNanos, () -> replica.phaseOneRequest(transaction));
+	}
+
+
+	CompletableFuture<Boolean> commit(Transaction transaction)
+	{
+		long startNanos = acquire(transaction);
+		long sequence = takeSequence();
+		return send(transaction, "commit", startNanos, () -> {
+			try
+			{
+				return replica.commit(transaction, stream, sequence, firstPending());
+			}
+			finally
+			{
+				answered(sequence);
+			}
+		});
+	}
+
+
+	CompletableFuture<Boolean> abort(Transaction transaction)
+	{
+		long startNanos = acquire(transaction);
+		long sequence = takeSequence();
+		return send(transaction, "abort", startNanos, () -> {
+			try
+			{
+				return replica.abort(transaction, stream, sequence, firstPending());
+			}
+			finally
+			{
+				answered(sequence);
+			}
+		});
+	}
+
+
+	private synchronized long takeSequence()
+	{
+		long sequence = nextSequence++;
+		pending.add(sequence);
+		return sequence;
+	}
+
+
+	/**
+	 * @return the first sequence number that has not been answered; the caller's own is still pending
+	 */
+	private synchronized long firstPending()
+	{
+		return pending.first();
+	}
+
+
+	/**
+	 * Called when the replica has answered the message, or the call has failed and is given up on.
+	 */
+	private synchronized void answered(long sequence)
+	{
+		pending.remove(sequence);
+	}
+
+
+	/**
+	 * Takes a slot of the window, waiting for one if all are in flight.
+	 *
+	 * @return when the call was made, for its span
+	 */
+	private long acquire(Transaction transaction)
+	{
+		long startNanos = System.nanoTime();
+		slots.acquireUninterruptibly();
+		TransactionTracer.span(transaction, "window", name, startNanos);
+		return startNanos;
+	}
+
+
+	/**
+	 * Sends the call on a pipeline thread; the caller holds a slot of the window, which is released when
+	 * the replica has answered.
+	 */
+	private <T> CompletableFuture<T> send(Transaction transaction, String span, long startNanos, Call<T> call)
+	{
+		CompletableFuture<T> result = new CompletableFuture<>();
+		try
+		{
+			sender.execute(() -> {
+				try
+				{
+					T answer = call.send();
+					TransactionTracer.span(transaction, span, name + " " + answer, startNanos);
+					result.complete(answer);
+				}
+				catch (Throwable e)
+				{
+					result.completeExceptionally(e);
+				}
+				finally
+				{
+					slots.release();
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// the pipeline has been closed
+			slots.release();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+
+	int inFlight()
+	{
+		return window - slots.availablePermits();
+	}
+
+
+	void close()
+	{
+		sender.shutdown();
+	}
+}
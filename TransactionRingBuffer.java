@@ -0,0 +1,119 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free ring buffer for many producers and a single consumer, with preallocated entries.
+ *
+ * Producers claim a slot with one compare-and-set, fill in the entry that lives in the slot and publish it;
+ * the consumer thread drains published entries in order and hands the slots back. Entries are reused, so
+ * nothing is allocated per message. When the buffer is full, {@link #claim()} fails instead of blocking,
+ * so a slow consumer can never hold up the threads that produce.
+ *
+ * Each slot carries a sequence number (Vyukov's bounded queue): sequence == position means free for the
+ * producer at that position, position + 1 means published, and the consumer sets it to
+ * position + capacity to hand the slot to the producer one lap later.
+ *
+ * @author dhimal
+ */
+class TransactionRingBuffer<E>
+{
+	private Object[] entries;
+
+	private AtomicLongArray sequences;
+
+	private int mask;
+
+	private AtomicLong tail;
+
+	/**
+	 * Only touched by the consumer thread.
+	 */
+	private long head;
+
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param entryFactory creates the reusable entries
+	 */
+	TransactionRingBuffer(int capacity, Supplier<E> entryFactory)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.entries = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			entries[i] = entryFactory.get();
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+	}
+
+
+	/**
+	 * @return the position of a free slot for the caller to fill in, or -1 if the buffer is full
+	 */
+	long claim()
+	{
+		while (true)
+		{
+			long position = tail.get();
+			long sequence = sequences.get((int) (position & mask));
+			if (sequence == position)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					return position;
+				}
+			}
+			else if (sequence < position)
+			{
+				return -1;
+			}
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	E get(long position)
+	{
+		return (E) entries[(int) (position & mask)];
+	}
+
+
+	/**
+	 * Makes the filled in entry at the claimed position visible to the consumer.
+	 */
+	void publish(long position)
+	{
+		sequences.lazySet((int) (position & mask), position + 1);
+	}
+
+
+	/**
+	 * Passes up to max published entries, in order, to the consumer and frees their slots. Must only be
+	 * called from the one consumer thread.
+	 *
+	 * @return the number of entries drained
+	 */
+	@SuppressWarnings("unchecked")
+	int drain(Consumer<E> consumer, int max)
+	{
+		int drained = 0;
+		while (drained < max)
+		{
+			int index = (int) (head & mask);
+			if (sequences.get(index) != head + 1)
+			{
+				break;
+			}
+			consumer.accept((E) entries[index]);
+			sequences.lazySet(index, head + entries.length);
+			head++;
+			drained++;
+		}
+		return drained;
+	}
+}
@@ -0,0 +1,130 @@
+import java.io.UncheckedIOException;
+import java.rmi.RemoteException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+/**
+ * Client side iterator over a range or prefix scan.
+ *
+ * Only one page is held at a time. The next page is requested from the server when the caller has
+ * consumed the current one, so a slow consumer simply stops pulling pages (no buffering on either side).
+ *
+ * Remote failures are rethrown as {@link UncheckedIOException} since {@link Iterator} can not throw
+ * checked exceptions.
+ *
+ * @author dhimal
+ */
+class TransactionScanIterator implements Iterator<Map.Entry<String, String>>
+{
+	static int DEFAULT_PAGE_SIZE = 100;
+
+	private interface PageSource
+	{
+		TransactionScanPage fetch(Optional<String> cursor, int pageSize) throws RemoteException;
+	}
+
+	private PageSource pageSource;
+
+	private int pageSize;
+
+	private long remaining;
+
+	private Iterator<Map.Entry<String, String>> page;
+
+	private Optional<String> cursor;
+
+	private boolean lastPage;
+
+
+	private TransactionScanIterator(PageSource pageSource, int pageSize, long limit)
+	{
+		this.pageSource = pageSource;
+		this.pageSize = pageSize;
+		this.remaining = limit;
+		this.cursor = Optional.empty();
+		this.lastPage = false;
+	}
+
+
+	/**
+	 * Iterates over all keys in [startKey, endKey), up to limit entries.
+	 *
+	 * @param server
+	 * @param startKey first key (inclusive), or null to start at the smallest key
+	 * @param endKey last key (exclusive), or null to scan to the end
+	 * @param limit maximum number of entries to return, or a negative number for no limit
+	 * @param pageSize number of entries to fetch per round trip
+	 */
+	static TransactionScanIterator scan(
+			TransactionInterfaceServerToClient server,
+			String startKey,
+			String endKey,
+			long limit,
+			int pageSize)
+	{
+		return new TransactionScanIterator(
+			(cursor, size) -> server.scan(startKey, endKey, cursor.orElse(null), size),
+			pageSize,
+			limit < 0 ? Long.MAX_VALUE : limit);
+	}
+
+
+	/**
+	 * Iterates over all keys that start with prefix.
+	 */
+	static TransactionScanIterator scanPrefix(TransactionInterfaceServerToClient server, String prefix, int pageSize)
+	{
+		return new TransactionScanIterator(
+			(cursor, size) -> server.scanPrefix(prefix, cursor.orElse(null), size),
+			pageSize,
+			Long.MAX_VALUE);
+	}
+
+
+	@Override
+	public boolean hasNext()
+	{
+		if (remaining <= 0)
+		{
+			return false;
+		}
+		while ((page == null || !page.hasNext()) && !lastPage)
+		{
+			fetchNextPage();
+		}
+		return page.hasNext();
+	}
+
+
+	@Override
+	public Map.Entry<String, String> next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+		remaining--;
+		Map.Entry<String, String> entry = page.next();
+		return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+	}
+
+
+	private void fetchNextPage()
+	{
+		try
+		{
+			TransactionScanPage scanPage = TransactionOverloadedException.retrying(
+				() -> pageSource.fetch(cursor, (int) Math.min(pageSize, remaining)));
+			page = scanPage.entries().entrySet().iterator();
+			cursor = scanPage.nextCursor();
+			lastPage = !cursor.isPresent();
+		}
+		catch (RemoteException e)
+		{
+			throw new UncheckedIOException("Could not fetch the next scan page", e);
+		}
+	}
+}
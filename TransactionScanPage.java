@@ -0,0 +1,78 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * One bounded page of a range or prefix scan over the key space.
+ *   - the key/value pairs of this page, in key order
+ *   - a resume cursor (the last key of this page), or nothing if the scan is complete
+ *
+ * The cursor is just a key, so the next page can be requested from any replica.
+ *
+ * Keys are ordered by their UTF-8 bytes, as the data store compares them (SQLite's BINARY collation),
+ * which is the order of their code points; see {@link #KEY_ORDER}.
+ */
+public class TransactionScanPage implements Serializable
+{
+	/**
+	 * The key order of scans. String.compareTo compares UTF-16 chars instead, which puts the keys with
+	 * characters above U+FFFF (surrogate pairs) before those with characters from U+E000 to U+FFFF.
+	 */
+	static final Comparator<String> KEY_ORDER = TransactionScanPage::compareKeys;
+
+	private LinkedHashMap<String, String> entries;
+
+	private String nextCursor;
+
+
+	TransactionScanPage(LinkedHashMap<String, String> entries, Optional<String> nextCursor)
+	{
+		this.entries = entries;
+		this.nextCursor = nextCursor.orElse(null);
+	}
+
+
+	public Map<String, String> entries()
+	{
+		return Collections.unmodifiableMap(entries);
+	}
+
+
+	public Optional<String> nextCursor()
+	{
+		return Optional.ofNullable(nextCursor);
+	}
+
+
+	private static int compareKeys(String a, String b)
+	{
+		int length = Math.min(a.length(), b.length());
+		for (int i = 0; i < length; i++)
+		{
+			char x = a.charAt(i);
+			char y = b.charAt(i);
+			if (x != y)
+			{
+				return Integer.compare(codePointRank(x), codePointRank(y));
+			}
+		}
+		return Integer.compare(a.length(), b.length());
+	}
+
+
+	/**
+	 * Moves the surrogates (U+D800 to U+DFFF), which stand for code points above U+FFFF, above U+E000 to
+	 * U+FFFF, and keeps the order of the chars otherwise.
+	 */
+	private static int codePointRank(char c)
+	{
+		if (c >= 0xE000)
+		{
+			return c - 0x800;
+		}
+		return c >= 0xD800 ? c + 0x2000 : c;
+	}
+}
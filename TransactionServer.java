@@ -7,7 +7,9 @@ import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
@@ -32,10 +34,35 @@ public class TransactionServer extends UnicastRemoteObject implements Transactio
 
 	private TransactionManager transactionManager;
 
+	/**
+	 * Admission control, separately for reads and writes: a flood of reads must not starve the writes
+	 * (or the other way round). See {@link TransactionAdmissionLimiter}. Bulk reads (getMany, scans and
+	 * chunks of large values) take much longer than a get, so they have their own limiter: a few of them
+	 * would otherwise raise the latency the read limiter sees and shrink the limit of the point gets.
+	 *
+	 * A write that returns false (or 0) was aborted and counts as failed. A conditional write that returns
+	 * false may just have found its condition false, so only its exceptions count.
+	 */
+	private TransactionAdmissionLimiter readLimiter;
+
+	private TransactionAdmissionLimiter bulkReadLimiter;
 
-	private TransactionServer() throws RemoteException
+	private TransactionAdmissionLimiter writeLimiter;
+
+	/**
+	 * Records put, del and get for replay and counts the other requests, see {@link TransactionTrafficCapture}.
+	 */
+	private TransactionTrafficCapture capture;
+
+
+	private TransactionServer(TransactionSocketFactory socketFactory) throws RemoteException
 	{
-		transactionManager = new TransactionManager();
+		super(0, socketFactory, socketFactory);
+		transactionManager = new TransactionManager(TransactionClock.fromSystemProperties());
+		readLimiter = TransactionAdmissionLimiter.fromSystemProperties("reads", 64, 1024, 256, 50);
+		bulkReadLimiter = TransactionAdmissionLimiter.fromSystemProperties("bulkReads", 8, 128, 64, 200);
+		writeLimiter = TransactionAdmissionLimiter.fromSystemProperties("writes", 16, 256, 128, 200);
+		capture = TransactionTrafficCapture.fromSystemProperties();
 	}
 
 
@@ -52,7 +79,7 @@ public class TransactionServer extends UnicastRemoteObject implements Transactio
 			TransactionInterfaceReplicaToTM replica = (TransactionInterfaceReplicaToTM) Naming.lookup(
 				"rmi://" + ipAddress + ":" + port + TransactionReplica.REPLICA_RMI_LOCATION);
 
-			transactionManager().addReplica(replica);
+			transactionManager().addReplica(replica, ipAddress + ":" + port);
 			Logger.getGlobal().info("Adding replica at " + ipAddress + ":" + port);
 		}
 		catch (NotBoundException | MalformedURLException | RemoteException e)
@@ -65,21 +92,157 @@ public class TransactionServer extends UnicastRemoteObject implements Transactio
 	@Override
 	public boolean put(String key, String value) throws RemoteException
 	{
-		return transactionManager().put(key, value);
+		return capture.record(TransactionTrafficCapture.PUT, key, value, 0,
+			() -> writeLimiter.call(() -> transactionManager().put(key, value), put -> put));
+	}
+
+
+	@Override
+	public boolean put(String key, String value, long ttlMillis) throws RemoteException
+	{
+		return capture.record(TransactionTrafficCapture.PUT, key, value, ttlMillis,
+			() -> writeLimiter.call(() -> transactionManager().put(key, value, ttlMillis), put -> put));
 	}
 
 
 	@Override
 	public boolean del(String key) throws RemoteException
 	{
-		return transactionManager().del(key);
+		return capture.record(TransactionTrafficCapture.DEL, key, null, 0,
+			() -> writeLimiter.call(() -> transactionManager().del(key), deleted -> deleted));
+	}
+
+
+	@Override
+	public long putVersioned(String key, String value) throws RemoteException
+	{
+		return capture.record(TransactionTrafficCapture.PUT, key, value, 0,
+			() -> writeLimiter.call(() -> transactionManager().putVersioned(key, value), id -> id != 0));
+	}
+
+
+	@Override
+	public long delVersioned(String key) throws RemoteException
+	{
+		return capture.record(TransactionTrafficCapture.DEL, key, null, 0,
+			() -> writeLimiter.call(() -> transactionManager().delVersioned(key), id -> id != 0));
+	}
+
+
+	@Override
+	public boolean putIfAbsent(String key, String value) throws RemoteException
+	{
+		capture.uncaptured("putIfAbsent");
+		return writeLimiter.call(() -> transactionManager().putIfAbsent(key, value));
+	}
+
+
+	@Override
+	public boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException
+	{
+		capture.uncaptured("compareAndSet");
+		return writeLimiter.call(() -> transactionManager().compareAndSet(key, expectedValue, newValue));
+	}
+
+
+	@Override
+	public boolean deleteIfEquals(String key, String expectedValue) throws RemoteException
+	{
+		capture.uncaptured("deleteIfEquals");
+		return writeLimiter.call(() -> transactionManager().deleteIfEquals(key, expectedValue));
+	}
+
+
+	@Override
+	public long beginLargePut(String key) throws RemoteException
+	{
+		capture.uncaptured("beginLargePut");
+		return writeLimiter.call(() -> transactionManager().beginLargePut(key));
+	}
+
+
+	@Override
+	public boolean putChunk(String key, long upload, int sequence, byte[] data) throws RemoteException
+	{
+		capture.uncaptured("putChunk");
+		return writeLimiter.call(() -> transactionManager().putChunk(key, upload, sequence, data), staged -> staged);
+	}
+
+
+	@Override
+	public boolean commitLargePut(String key, long upload, int chunks) throws RemoteException
+	{
+		capture.uncaptured("commitLargePut");
+		return writeLimiter.call(() -> transactionManager().commitLargePut(key, upload, chunks), committed -> committed);
 	}
 
 
 	@Override
 	public String get(String key) throws RemoteException
 	{
-		return transactionManager().get(key);
+		return capture.record(TransactionTrafficCapture.GET, key, null, 0,
+			() -> readLimiter.call(() -> transactionManager().get(key)));
+	}
+
+
+	@Override
+	public Map<String, String> getMany(Collection<String> keys) throws RemoteException
+	{
+		capture.uncaptured("getMany");
+		return bulkReadLimiter.call(() -> transactionManager().getMany(keys));
+	}
+
+
+	@Override
+	public TransactionLargeValue largeValue(String key) throws RemoteException
+	{
+		capture.uncaptured("largeValue");
+		return readLimiter.call(() -> transactionManager().largeValue(key));
+	}
+
+
+	@Override
+	public byte[] getChunk(String key, long upload, int sequence) throws RemoteException
+	{
+		capture.uncaptured("getChunk");
+		return bulkReadLimiter.call(() -> transactionManager().getChunk(key, upload, sequence));
+	}
+
+
+	@Override
+	public TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws RemoteException
+	{
+		capture.uncaptured("scan");
+		return bulkReadLimiter.call(() -> transactionManager().scan(startKey, endKey, cursor, pageSize));
+	}
+
+
+	@Override
+	public TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws RemoteException
+	{
+		capture.uncaptured("scanPrefix");
+		return bulkReadLimiter.call(() -> transactionManager().scanPrefix(prefix, cursor, pageSize));
+	}
+
+
+	@Override
+	public List<String> replicas() throws RemoteException
+	{
+		return transactionManager().replicaAddresses();
+	}
+
+
+	@Override
+	public List<String> coordinators() throws RemoteException
+	{
+		return transactionManager().coordinators();
+	}
+
+
+	@Override
+	public Map<String, Long> hotKeys(int count) throws RemoteException
+	{
+		return transactionManager().hotKeys(count);
 	}
 
 
@@ -90,6 +253,13 @@ public class TransactionServer extends UnicastRemoteObject implements Transactio
 	}
 
 
+	@Override
+	public TransactionOutcome outcome(long transactionID) throws RemoteException
+	{
+		return transactionManager().outcome(transactionID);
+	}
+
+
 	/**
 	 * Create a transaction server and put it out there for the clients
 	 * 
@@ -114,13 +284,15 @@ public class TransactionServer extends UnicastRemoteObject implements Transactio
 			else
 				Logger.getGlobal().setLevel(Level.ALL);
 
+			TransactionSocketFactory socketFactory = TransactionSocketFactory.install();
+
 			String ipAddress = InetAddress.getLocalHost().getHostAddress();
 			Logger.getGlobal().info("Ipaddress " + ipAddress);
 
-			TransactionInterfaceServerToClient remoteObject = new TransactionServer();
+			TransactionInterfaceServerToClient remoteObject = new TransactionServer(socketFactory);
 
 			// rmi registry -> create a registry for this service to run on?
-			LocateRegistry.createRegistry(port);
+			LocateRegistry.createRegistry(port, socketFactory.withoutCompression(), socketFactory.withoutCompression());
 
 			// Bind the remote object (RMIImplementation) by name
 			Naming.bind("rmi://" + ipAddress + ":" + port + SERVER_RMI_LOCATION, remoteObject);
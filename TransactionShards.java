@@ -0,0 +1,293 @@
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The storage of a replica, hash-partitioned by key over K shards.
+ *
+ * SQLite lets one writer at a time into a database file, so with a single file the commits of a replica
+ * are written by one thread however many cores and disks the machine has. Each shard is a database file of
+ * its own with its own {@link TransactionApplyBuffer}: its own log, key filter, memtable (with its share of
+ * the memory budget), connection, and flusher thread, which is the only writer of the file. A key always goes to the same shard, so commits, reads and
+ * the replay of the logs at startup only touch the shard of the key; multi-key reads, scans and the
+ * background sweeps go to every shard.
+ *
+ * The number of shards is set with -Dtransaction.replica.shards (default 1). With one shard the files are
+ * the ones of an unsharded replica; with K shards they are &lt;database-file&gt;.shard-&lt;i&gt;-of-&lt;K&gt;.
+ * Keys are not moved between shards, so a replica refuses to start with a different number of shards
+ * than its files were written with.
+ *
+ * @author dhimal
+ */
+class TransactionShards
+{
+	private TransactionDatabase[] databases;
+
+	private TransactionApplyBuffer[] buffers;
+
+
+	TransactionShards(String databaseDir, String databaseFilePath, int count)
+	{
+		checkLayout(new File(databaseDir), databaseFilePath, count);
+		this.databases = new TransactionDatabase[count];
+		this.buffers = new TransactionApplyBuffer[count];
+		for (int shard = 0; shard < count; shard++)
+		{
+			String file = count == 1 ? databaseFilePath : databaseFilePath + ".shard-" + shard + "-of-" + count;
+			databases[shard] = new TransactionDatabase(databaseDir, file);
+			buffers[shard] = new TransactionApplyBuffer(databases[shard], new File(databaseDir, file + ".apply"),
+				TransactionMemtable.fromSystemProperties(count));
+		}
+	}
+
+
+	static TransactionShards fromSystemProperties(String databaseDir, String databaseFilePath)
+	{
+		int count = Integer.getInteger("transaction.replica.shards", 1);
+		if (count < 1)
+		{
+			throw new IllegalArgumentException("transaction.replica.shards must be at least 1, not " + count);
+		}
+		return new TransactionShards(databaseDir, databaseFilePath, count);
+	}
+
+
+	/**
+	 * Fails if the directory holds the files of a different number of shards.
+	 */
+	private static void checkLayout(File directory, String databaseFilePath, int count)
+	{
+		Pattern shardFile = Pattern.compile(Pattern.quote(databaseFilePath) + "\\.shard-\\d+-of-(\\d+)");
+		String[] files = directory.list();
+		int found = new File(directory, databaseFilePath).exists() ? 1 : 0;
+		for (String file : files == null ? new String[0] : files)
+		{
+			Matcher matcher = shardFile.matcher(file);
+			if (matcher.matches())
+			{
+				found = Integer.parseInt(matcher.group(1));
+			}
+		}
+		if (found != 0 && found != count)
+		{
+			throw new IllegalStateException("The database " + databaseFilePath + " in " + directory + " has " + found
+				+ " shards; start the replica with -Dtransaction.replica.shards=" + found);
+		}
+	}
+
+
+	int count()
+	{
+		return buffers.length;
+	}
+
+
+	/**
+	 * Fibonacci hashing of String.hashCode(), which is the same in every JVM, so a key stays in its shard
+	 * across restarts.
+	 */
+	private int shard(String key)
+	{
+		int hash = key.hashCode() * 0x9E3779B9;
+		return Math.floorMod(hash ^ (hash >>> 16), buffers.length);
+	}
+
+
+	TransactionApplyBuffer forKey(String key)
+	{
+		return buffers[shard(key)];
+	}
+
+
+	TransactionDatabase databaseForKey(String key)
+	{
+		return databases[shard(key)];
+	}
+
+
+	void start()
+	{
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			buffer.start();
+		}
+	}
+
+
+	Map<String, String> getMany(Collection<String> keys) throws SQLException
+	{
+		if (buffers.length == 1)
+		{
+			return buffers[0].getMany(keys);
+		}
+		Map<Integer, List<String>> byShard = new HashMap<>();
+		for (String key : keys)
+		{
+			byShard.computeIfAbsent(shard(key), shard -> new ArrayList<>()).add(key);
+		}
+		Map<String, String> values = new HashMap<>();
+		for (Map.Entry<Integer, List<String>> shardKeys : byShard.entrySet())
+		{
+			values.putAll(buffers[shardKeys.getKey()].getMany(shardKeys.getValue()));
+		}
+		return values;
+	}
+
+
+	TransactionScanPage scan(String startKey, String endKey, String cursor, int pageSize) throws SQLException
+	{
+		List<TransactionScanPage> pages = new ArrayList<>();
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			pages.add(buffer.scan(startKey, endKey, cursor, pageSize));
+		}
+		return merge(pages, pageSize);
+	}
+
+
+	TransactionScanPage scanPrefix(String prefix, String cursor, int pageSize) throws SQLException
+	{
+		List<TransactionScanPage> pages = new ArrayList<>();
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			pages.add(buffer.scanPrefix(prefix, cursor, pageSize));
+		}
+		return merge(pages, pageSize);
+	}
+
+
+	/**
+	 * Returns the keys written from fromVersion on, see {@link TransactionDatabase#changes(long, String, int)}.
+	 * Like the pages of a scan, the first limit keys of all shards are the page of the whole replica.
+	 */
+	List<Transaction> changes(long fromVersion, String afterKey, int limit) throws SQLException
+	{
+		TreeMap<String, Transaction> merged = new TreeMap<>(TransactionScanPage.KEY_ORDER);
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			for (Transaction change : buffer.changes(fromVersion, afterKey, limit))
+			{
+				merged.put(change.getKey(), change);
+			}
+		}
+		List<Transaction> changes = new ArrayList<>(merged.values());
+		return changes.size() > limit ? new ArrayList<>(changes.subList(0, limit)) : changes;
+	}
+
+
+	/**
+	 * Merges the pages the shards returned for the same cursor. Each page holds the smallest keys of its
+	 * shard after the cursor, so the smallest pageSize keys of all of them are the page of the whole
+	 * replica, and the last of those is where the next page starts on every shard. A shard that fails
+	 * fails the whole page: without its keys the page would skip them for good.
+	 */
+	private static TransactionScanPage merge(List<TransactionScanPage> pages, int pageSize)
+	{
+		if (pages.size() == 1)
+		{
+			return pages.get(0);
+		}
+		TreeMap<String, String> merged = new TreeMap<>(TransactionScanPage.KEY_ORDER);
+		boolean more = false;
+		for (TransactionScanPage page : pages)
+		{
+			merged.putAll(page.entries());
+			more |= page.nextCursor().isPresent();
+		}
+		LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : merged.entrySet())
+		{
+			if (entries.size() == pageSize)
+			{
+				more = true;
+				break;
+			}
+			entries.put(entry.getKey(), entry.getValue());
+		}
+		String last = null;
+		for (String key : entries.keySet())
+		{
+			last = key;
+		}
+		return new TransactionScanPage(entries, more && last != null ? Optional.of(last) : Optional.empty());
+	}
+
+
+	void deleteExpired(List<TransactionTimingWheel.Timer> timers)
+	{
+		Map<Integer, List<TransactionTimingWheel.Timer>> byShard = new HashMap<>();
+		for (TransactionTimingWheel.Timer timer : timers)
+		{
+			byShard.computeIfAbsent(shard(timer.getKey()), shard -> new ArrayList<>()).add(timer);
+		}
+		byShard.forEach((shard, shardTimers) -> buffers[shard].deleteExpired(shardTimers));
+	}
+
+
+	void deleteAbandonedChunks(long beforeUpload)
+	{
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			buffer.deleteAbandonedChunks(beforeUpload);
+		}
+	}
+
+
+	void pruneTombstones(long beforeVersion)
+	{
+		for (TransactionApplyBuffer buffer : buffers)
+		{
+			buffer.pruneTombstones(beforeVersion);
+		}
+	}
+
+
+	Map<String, Long> expiringKeys()
+	{
+		Map<String, Long> expiring = new HashMap<>();
+		for (TransactionDatabase database : databases)
+		{
+			expiring.putAll(database.expiringKeys());
+		}
+		return expiring;
+	}
+
+
+	long maxVersion()
+	{
+		long maxVersion = 0;
+		for (TransactionDatabase database : databases)
+		{
+			maxVersion = Math.max(maxVersion, database.maxVersion());
+		}
+		return maxVersion;
+	}
+
+
+	/**
+	 * Starts the checkpoints of every shard, each in a subdirectory of its own if there are several.
+	 */
+	void startCheckpoints(TransactionLatencyTracker commitLatency)
+	{
+		for (int shard = 0; shard < buffers.length; shard++)
+		{
+			TransactionDatabase database = databases[shard];
+			String subdirectory = buffers.length == 1 ? "" : "shard-" + shard + "-of-" + buffers.length;
+			TransactionCheckpoint.fromSystemProperties(
+				database.url(), subdirectory, commitLatency, database::checkpointed)
+				.ifPresent(checkpoint -> {
+					database.keepTombstonesForCheckpoints();
+					checkpoint.start();
+				});
+		}
+	}
+}
@@ -0,0 +1,246 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.UnmarshalException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated network link between the Transaction Manager and one in-process replica, for
+ * {@link TransactionSimulation}.
+ *
+ * Every call on the link is delayed by latency drawn from the link's distribution (a fixed base plus an
+ * exponential tail) and may be dropped:
+ *   - before it reaches the replica, which the caller sees as a ConnectException
+ *   - after the replica has handled it, which the caller sees as an UnmarshalException, as with an RMI
+ *     read timeout; the replica has then applied the call but the caller does not know
+ *
+ * A crashed link refuses every call until it is recovered. The replica itself keeps its state, as a
+ * replica process that was partitioned away would.
+ *
+ * All randomness comes from the seed the link is created with.
+ *
+ * @author dhimal
+ */
+class TransactionSimulatedLink implements InvocationHandler
+{
+	/**
+	 * Latency and loss of one link.
+	 */
+	static class Model
+	{
+		private double baseMillis;
+
+		private double tailMeanMillis;
+
+		private double dropProbability;
+
+
+		Model(double baseMillis, double tailMeanMillis, double dropProbability)
+		{
+			this.baseMillis = baseMillis;
+			this.tailMeanMillis = tailMeanMillis;
+			this.dropProbability = dropProbability;
+		}
+
+
+		/**
+		 * @param spec base,tailMean,drop (e.g. 0.2,0.5,0.001)
+		 */
+		static Model parse(String spec)
+		{
+			String[] parts = spec.split(",");
+			if (parts.length != 3)
+			{
+				throw new IllegalArgumentException("Expected base,tailMean,drop but got " + spec);
+			}
+			return new Model(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+		}
+
+
+		@Override
+		public String toString()
+		{
+			return "latency " + baseMillis + " ms + exp(" + tailMeanMillis + " ms), drop " + dropProbability;
+		}
+	}
+
+	private TransactionInterfaceReplicaToTM replica;
+
+	private Model model;
+
+	private Random random;
+
+	private volatile boolean crashed;
+
+	private AtomicLong calls;
+
+	private AtomicLong dropped;
+
+	/**
+	 * Phase one, commit and abort calls that were dropped or refused: the replica may have missed a write.
+	 */
+	private AtomicLong writeFaults;
+
+
+	private TransactionSimulatedLink(TransactionInterfaceReplicaToTM replica, Model model, long seed)
+	{
+		this.replica = replica;
+		this.model = model;
+		this.random = new Random(seed);
+		this.calls = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.writeFaults = new AtomicLong();
+	}
+
+
+	static TransactionSimulatedLink connect(TransactionInterfaceReplicaToTM replica, Model model, long seed)
+	{
+		return new TransactionSimulatedLink(replica, model, seed);
+	}
+
+
+	/**
+	 * @return the replica as the Transaction Manager sees it through this link
+	 */
+	TransactionInterfaceReplicaToTM remote()
+	{
+		return (TransactionInterfaceReplicaToTM) Proxy.newProxyInstance(
+			TransactionInterfaceReplicaToTM.class.getClassLoader(),
+			new Class<?>[] { TransactionInterfaceReplicaToTM.class },
+			this);
+	}
+
+
+	void crash()
+	{
+		crashed = true;
+	}
+
+
+	void recover()
+	{
+		crashed = false;
+	}
+
+
+	boolean isCrashed()
+	{
+		return crashed;
+	}
+
+
+	long calls()
+	{
+		return calls.get();
+	}
+
+
+	long dropped()
+	{
+		return dropped.get();
+	}
+
+
+	long writeFaults()
+	{
+		return writeFaults.get();
+	}
+
+
+	Model model()
+	{
+		return model;
+	}
+
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		if ("equals".equals(method.getName()) && method.getParameterCount() == 1)
+		{
+			return proxy == args[0];
+		}
+		if (method.getDeclaringClass() == Object.class)
+		{
+			return method.invoke(this, args);
+		}
+		calls.incrementAndGet();
+		boolean write = isWrite(method);
+
+		delay();
+		if (crashed)
+		{
+			countFault(write);
+			throw new ConnectException("Simulated crash of the replica");
+		}
+		double drop = nextDouble();
+		if (drop < model.dropProbability / 2)
+		{
+			countFault(write);
+			throw new ConnectException("Simulated loss of the request");
+		}
+
+		Object result;
+		try
+		{
+			result = method.invoke(replica, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+
+		delay();
+		if (drop < model.dropProbability)
+		{
+			countFault(write);
+			throw new UnmarshalException("Simulated loss of the reply");
+		}
+		return result;
+	}
+
+
+	private static boolean isWrite(Method method)
+	{
+		String name = method.getName();
+		return "phaseOneRequest".equals(name) || "commit".equals(name) || "abort".equals(name);
+	}
+
+
+	private void countFault(boolean write)
+	{
+		dropped.incrementAndGet();
+		if (write)
+		{
+			writeFaults.incrementAndGet();
+		}
+	}
+
+
+	private void delay()
+	{
+		double millis = model.baseMillis;
+		if (model.tailMeanMillis > 0)
+		{
+			millis += -model.tailMeanMillis * Math.log(1 - nextDouble());
+		}
+		if (millis > 0)
+		{
+			LockSupport.parkNanos((long) (millis * TimeUnit.MILLISECONDS.toNanos(1)));
+		}
+	}
+
+
+	private double nextDouble()
+	{
+		synchronized (random)
+		{
+			return random.nextDouble();
+		}
+	}
+}
@@ -0,0 +1,448 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process cluster for experiments with the Transaction Manager: one {@link TransactionManager} and N
+ * {@link TransactionReplica}s in a single JVM, each replica with its own database in a temporary directory.
+ * The manager calls the replicas directly, through a {@link TransactionSimulatedLink} per replica that
+ * injects latency, lost requests and replies, and replica crashes. There is no RMI and no registry.
+ *
+ * Clients run a put/get/del workload. Every client owns a set of keys that only it writes, so the last
+ * write it committed is the value the key must end up with; all clients also write a few shared hot keys,
+ * which must end up with one of the values committed for them. After the run the simulation reports
+ * throughput and latency, and checks on every replica that
+ *   - no committed write was lost
+ *   - the replicas have converged to the same data
+ *
+ * Replicas whose link dropped a phase one, commit or abort call are reported but not held to the
+ * invariants: there is no anti-entropy between replicas, so a replica that missed a commit stays behind.
+ * The exit code is 1 if a replica without such faults breaks an invariant.
+ *
+ * The workload, the fault schedule and the fault draws of every link come from the seed. Thread
+ * scheduling does not, so two runs with the same seed see the same faults but not necessarily the same
+ * interleaving.
+ *
+ * Usage: java TransactionSimulation [name=value ...], e.g.
+ *   java TransactionSimulation replicas=5 clients=16 operations=2000 link=0.2,0.5,0.001 link.2=5,20,0.01 crashes=3
+ *
+ * @author dhimal
+ */
+class TransactionSimulation
+{
+	private static Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static
+	{
+		DEFAULTS.put("replicas", "3");
+		DEFAULTS.put("clients", "8");
+		DEFAULTS.put("operations", "1000");
+		DEFAULTS.put("keys", "200");
+		DEFAULTS.put("hotKeys", "5");
+		DEFAULTS.put("hotFraction", "0.05");
+		DEFAULTS.put("readFraction", "0.5");
+		DEFAULTS.put("deleteFraction", "0.1");
+		DEFAULTS.put("link", "0.1,0.2,0");
+		DEFAULTS.put("crashes", "0");
+		DEFAULTS.put("crashMillis", "1000");
+		DEFAULTS.put("seed", "1");
+	}
+
+	private Map<String, String> options;
+
+	private Random random;
+
+	private List<TransactionReplica> replicas;
+
+	private List<TransactionSimulatedLink> links;
+
+	private TransactionManager transactionManager;
+
+	private AtomicLong operationsDone;
+
+	/**
+	 * Values committed per hot key, and whether a delete of it was committed.
+	 */
+	private Map<String, Set<String>> committedHotValues;
+
+	private Set<String> deletedHotKeys;
+
+	/**
+	 * Expected value of every owned key that was written; "" if its last committed write is a delete.
+	 */
+	private Map<String, String> expectedOwnedValues;
+
+	private long[][] latencies;
+
+	private int[] latencyCounts;
+
+	private static int GET = 0;
+
+	private static int PUT = 1;
+
+	private static int DEL = 2;
+
+	private static String[] OPERATION_NAMES = { "get", "put", "del" };
+
+
+	private TransactionSimulation(Map<String, String> options)
+	{
+		this.options = options;
+		this.random = new Random(longOption("seed"));
+		this.replicas = new ArrayList<>();
+		this.links = new ArrayList<>();
+		this.operationsDone = new AtomicLong();
+		this.committedHotValues = new ConcurrentHashMap<>();
+		this.deletedHotKeys = ConcurrentHashMap.newKeySet();
+		this.expectedOwnedValues = new ConcurrentHashMap<>();
+	}
+
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		for (String arg : args)
+		{
+			int separator = arg.indexOf('=');
+			if (separator < 0 || (!DEFAULTS.containsKey(arg.substring(0, separator)) && !arg.startsWith("link.")))
+			{
+				System.err.println("Usage: java TransactionSimulation [name=value ...], with the names and defaults");
+				DEFAULTS.forEach((name, value) -> System.err.println("  " + name + "=" + value));
+				System.err.println("  link.<replica>=base,tailMean,drop for one replica's link (0-based)");
+				System.exit(1);
+			}
+			options.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		Logger.getGlobal().setLevel(Level.WARNING);
+
+		TransactionSimulation simulation = new TransactionSimulation(options);
+		simulation.startCluster();
+		long elapsedNanos = simulation.runWorkload();
+		simulation.report(elapsedNanos);
+		System.exit(simulation.checkInvariants() ? 0 : 1);
+	}
+
+
+	private int intOption(String name)
+	{
+		return Integer.parseInt(options.get(name));
+	}
+
+
+	private long longOption(String name)
+	{
+		return Long.parseLong(options.get(name));
+	}
+
+
+	private double doubleOption(String name)
+	{
+		return Double.parseDouble(options.get(name));
+	}
+
+
+	private void startCluster() throws IOException
+	{
+		File directory = Files.createTempDirectory("transaction-simulation").toFile();
+		System.out.println("Databases in " + directory);
+		System.setProperty("transaction.clockLeaseFile", new File(directory, "clock.lease").getPath());
+		transactionManager = new TransactionManager(TransactionClock.fromSystemProperties());
+
+		TransactionSocketFactory socketFactory = TransactionSocketFactory.fromSystemProperties();
+		for (int i = 0; i < intOption("replicas"); i++)
+		{
+			TransactionReplica replica = new TransactionReplica(directory.getPath(), "replica-" + i + ".db", socketFactory);
+			// called directly, never through RMI
+			UnicastRemoteObject.unexportObject(replica, true);
+
+			TransactionSimulatedLink.Model model = TransactionSimulatedLink.Model.parse(
+				options.getOrDefault("link." + i, options.get("link")));
+			TransactionSimulatedLink link = TransactionSimulatedLink.connect(replica, model, random.nextLong());
+			System.out.println("Replica " + i + ": " + model);
+			replicas.add(replica);
+			links.add(link);
+			transactionManager.addReplica(link.remote());
+		}
+	}
+
+
+	/**
+	 * Runs the clients and the crash schedule.
+	 *
+	 * @return the duration of the run in nanoseconds
+	 */
+	private long runWorkload() throws InterruptedException
+	{
+		int clients = intOption("clients");
+		int operations = intOption("operations");
+		latencies = new long[OPERATION_NAMES.length][clients * operations];
+		latencyCounts = new int[OPERATION_NAMES.length];
+
+		ScheduledExecutorService crashes = scheduleCrashes((long) clients * operations);
+		long[] clientSeeds = new long[clients];
+		for (int i = 0; i < clients; i++)
+		{
+			clientSeeds[i] = random.nextLong();
+		}
+
+		long start = System.nanoTime();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < clients; i++)
+		{
+			int client = i;
+			Thread thread = new Thread(() -> runClient(client, operations, new Random(clientSeeds[client])),
+				"simulated-client-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		crashes.shutdownNow();
+		links.forEach(TransactionSimulatedLink::recover);
+		return elapsed;
+	}
+
+
+	/**
+	 * Crashes a random replica after a random number of operations, for crashMillis each time.
+	 */
+	private ScheduledExecutorService scheduleCrashes(long totalOperations)
+	{
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+		int crashes = intOption("crashes");
+		long crashMillis = longOption("crashMillis");
+		long[] at = new long[crashes];
+		int[] replica = new int[crashes];
+		for (int i = 0; i < crashes; i++)
+		{
+			at[i] = (long) (random.nextDouble() * totalOperations);
+			replica[i] = random.nextInt(links.size());
+		}
+		executor.scheduleWithFixedDelay(() -> {
+			for (int i = 0; i < crashes; i++)
+			{
+				if (at[i] >= 0 && operationsDone.get() >= at[i])
+				{
+					TransactionSimulatedLink link = links.get(replica[i]);
+					System.out.println("Crashing replica " + replica[i] + " after " + at[i] + " operations");
+					link.crash();
+					executor.schedule(link::recover, crashMillis, TimeUnit.MILLISECONDS);
+					at[i] = -1;
+				}
+			}
+		}, 1, 1, TimeUnit.MILLISECONDS);
+		return executor;
+	}
+
+
+	private void runClient(int client, int operations, Random random)
+	{
+		int keys = intOption("keys");
+		int hotKeys = intOption("hotKeys");
+		double hotFraction = doubleOption("hotFraction");
+		double readFraction = doubleOption("readFraction");
+		double deleteFraction = doubleOption("deleteFraction");
+
+		for (int i = 0; i < operations; i++)
+		{
+			boolean hot = hotKeys > 0 && random.nextDouble() < hotFraction;
+			String key = hot ? "hot-" + random.nextInt(hotKeys) : "c" + client + "-" + random.nextInt(keys);
+			double draw = random.nextDouble();
+			int operation = draw < readFraction ? GET : draw < readFraction + deleteFraction ? DEL : PUT;
+			String value = "c" + client + "-" + i;
+
+			long start = System.nanoTime();
+			boolean committed = false;
+			if (operation == GET)
+			{
+				try
+				{
+					transactionManager.get(key);
+				}
+				catch (RemoteException e)
+				{
+					// no replica could answer, e.g. while they are all crashed
+				}
+			}
+			else if (operation == PUT)
+			{
+				committed = transactionManager.put(key, value);
+			}
+			else
+			{
+				committed = transactionManager.del(key);
+			}
+			recordLatency(operation, System.nanoTime() - start);
+			operationsDone.incrementAndGet();
+
+			if (committed && hot)
+			{
+				if (operation == PUT)
+				{
+					committedHotValues.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(value);
+				}
+				else
+				{
+					deletedHotKeys.add(key);
+				}
+			}
+			else if (committed)
+			{
+				// only this client writes the key, so the last committed write is what the key must hold
+				if (operation == PUT)
+				{
+					expectedOwnedValues.put(key, value);
+				}
+				else
+				{
+					expectedOwnedValues.put(key, "");
+				}
+			}
+		}
+	}
+
+
+	private synchronized void recordLatency(int operation, long nanos)
+	{
+		latencies[operation][latencyCounts[operation]++] = nanos;
+	}
+
+
+	private void report(long elapsedNanos)
+	{
+		long operations = operationsDone.get();
+		System.out.println();
+		System.out.printf("%d operations in %.2f s: %.0f operations/s%n",
+			operations, elapsedNanos / 1e9, operations / (elapsedNanos / 1e9));
+		System.out.printf("%-4s %8s %10s %10s %10s %10s%n", "", "count", "p50 ms", "p95 ms", "p99 ms", "max ms");
+		for (int operation = 0; operation < OPERATION_NAMES.length; operation++)
+		{
+			long[] sorted = Arrays.copyOf(latencies[operation], latencyCounts[operation]);
+			Arrays.sort(sorted);
+			System.out.printf("%-4s %8d %10.3f %10.3f %10.3f %10.3f%n", OPERATION_NAMES[operation], sorted.length,
+				percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 1.0));
+		}
+		for (int i = 0; i < links.size(); i++)
+		{
+			TransactionSimulatedLink link = links.get(i);
+			System.out.println("Replica " + i + ": " + link.calls() + " calls, " + link.dropped() + " dropped or refused, "
+				+ link.writeFaults() + " of them phase one, commit or abort");
+		}
+	}
+
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+	}
+
+
+	/**
+	 * @return true if every replica without write faults holds every committed write and they all agree
+	 */
+	private boolean checkInvariants() throws RemoteException
+	{
+		Set<String> keys = new HashSet<>(expectedOwnedValues.keySet());
+		keys.addAll(committedHotValues.keySet());
+		keys.addAll(deletedHotKeys);
+
+		List<Map<String, String>> contents = new ArrayList<>();
+		for (TransactionReplica replica : replicas)
+		{
+			contents.add(replica.getMany(keys));
+		}
+
+		boolean holds = true;
+		Map<String, String> reference = null;
+		System.out.println();
+		for (int i = 0; i < replicas.size(); i++)
+		{
+			Map<String, String> content = contents.get(i);
+			int lost = 0;
+			for (String key : keys)
+			{
+				if (isLost(key, content.get(key)))
+				{
+					lost++;
+				}
+			}
+			boolean faultless = links.get(i).writeFaults() == 0;
+			int diverged = 0;
+			if (faultless && reference == null)
+			{
+				reference = content;
+			}
+			else if (faultless)
+			{
+				diverged = differences(reference, content, keys);
+			}
+			System.out.println("Replica " + i + ": " + lost + " lost writes, " + diverged + " keys diverged"
+				+ (faultless ? "" : " (missed writes through link faults, not checked)"));
+			if (faultless && (lost > 0 || diverged > 0))
+			{
+				holds = false;
+			}
+		}
+		System.out.println(holds ? "Invariants hold" : "INVARIANTS VIOLATED");
+		return holds;
+	}
+
+
+	/**
+	 * @param actual the value on a replica, or null if the replica does not have the key
+	 */
+	private boolean isLost(String key, String actual)
+	{
+		if (expectedOwnedValues.containsKey(key))
+		{
+			String expected = expectedOwnedValues.get(key);
+			return expected.isEmpty() ? actual != null : !expected.equals(actual);
+		}
+		if (actual == null)
+		{
+			// a hot key may only be missing if a delete of it was committed
+			return !deletedHotKeys.contains(key);
+		}
+		return !committedHotValues.getOrDefault(key, new HashSet<>()).contains(actual);
+	}
+
+
+	private static int differences(Map<String, String> reference, Map<String, String> content, Set<String> keys)
+	{
+		int differences = 0;
+		for (String key : keys)
+		{
+			String expected = reference.get(key);
+			if (expected == null ? content.get(key) != null : !expected.equals(content.get(key)))
+			{
+				differences++;
+			}
+		}
+		return differences;
+	}
+}
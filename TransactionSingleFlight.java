@@ -0,0 +1,117 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request collapsing ("single flight") for reads of the same key: while a fetch of a key is in flight,
+ * further reads of that key wait for it and share its result instead of issuing their own fetch.
+ *
+ * Writes must not be hidden by a fetch that started before them. A successful write calls
+ * {@link #forget(String)} before it is acknowledged, so every read that starts after the write starts a
+ * fresh fetch; only reads that were already concurrent with the write can share the older result.
+ *
+ * Every read is recorded in a {@link TransactionHotKeys} sketch.
+ *
+ * @author dhimal
+ */
+class TransactionSingleFlight
+{
+	interface Fetch
+	{
+		String fetch() throws RemoteException;
+	}
+
+	private ConcurrentHashMap<String, CompletableFuture<String>> inFlight;
+
+	private TransactionHotKeys hotKeys;
+
+	private AtomicLong fetches;
+
+	private AtomicLong collapsed;
+
+
+	TransactionSingleFlight(TransactionHotKeys hotKeys)
+	{
+		this.inFlight = new ConcurrentHashMap<>();
+		this.hotKeys = hotKeys;
+		this.fetches = new AtomicLong();
+		this.collapsed = new AtomicLong();
+	}
+
+
+	/**
+	 * @throws RemoteException if the fetch failed, also to the reads that shared it
+	 */
+	String get(String key, Fetch fetch) throws RemoteException
+	{
+		CompletableFuture<String> flight = new CompletableFuture<>();
+		CompletableFuture<String> current = inFlight.putIfAbsent(key, flight);
+		hotKeys.record(key, current != null);
+		if (current != null)
+		{
+			collapsed.incrementAndGet();
+			try
+			{
+				return current.join();
+			}
+			catch (CompletionException e)
+			{
+				if (e.getCause() instanceof RemoteException)
+				{
+					throw (RemoteException) e.getCause();
+				}
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+
+		fetches.incrementAndGet();
+		try
+		{
+			String value = fetch.fetch();
+			flight.complete(value);
+			return value;
+		}
+		catch (RemoteException | RuntimeException e)
+		{
+			flight.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove(key, flight);
+		}
+	}
+
+
+	/**
+	 * Detaches the fetch in flight for the key, if any, so that later reads do not share it.
+	 */
+	void forget(String key)
+	{
+		inFlight.remove(key);
+	}
+
+
+	/**
+	 * @return the number of reads so far, fetched or collapsed
+	 */
+	long reads()
+	{
+		return fetches.get() + collapsed.get();
+	}
+
+
+	TransactionHotKeys hotKeys()
+	{
+		return hotKeys;
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return String.format("fetches=%d collapsed=%d hotKeys: %s", fetches.get(), collapsed.get(), hotKeys);
+	}
+}
@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.Objects;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Socket factory for RMI with explicit timeouts, so that a hung peer fails a call instead of blocking
+ * the caller for as long as the operating system keeps the connection open:
+ *   - connect timeout: how long to wait for a TCP connection to the remote object
+ *   - read timeout: how long to wait for the reply to a call
+ *
+ * and the socket options for the small request/response pairs of the two phase commit:
+ *   - TCP_NODELAY, so that a reply is not held back by Nagle's algorithm
+ *   - SO_KEEPALIVE, so that a dead peer on an idle pooled connection is noticed
+ *   - send and receive buffer sizes (0 keeps the operating system default)
+ *   - optional deflate compression of the whole stream, worth it for large values on slow links
+ *
+ * Everything is read from system properties (transaction.rmi.*, see {@link #fromSystemProperties()}),
+ * which the start up scripts pass through RMI_OPTS.
+ *
+ * The factory is used in two ways. {@link #install()} makes it, without compression, the factory of
+ * every RMI call of the JVM, which covers the registries and Naming.lookup(). The factory it returns is
+ * then passed to every exported remote object; RMI sends it along with the stub, so the callers of that
+ * object use the same options (and the same compression setting) as the object itself.
+ *
+ * @author dhimal
+ */
+class TransactionSocketFactory extends RMISocketFactory implements Serializable
+{
+	static int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+
+	static int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+	private static int COMPRESSION_BUFFER_BYTES = 8192;
+
+	private int connectTimeoutMillis;
+
+	private int readTimeoutMillis;
+
+	private boolean tcpNoDelay;
+
+	private boolean keepAlive;
+
+	private int sendBufferBytes;
+
+	private int receiveBufferBytes;
+
+	private boolean compression;
+
+
+	TransactionSocketFactory(
+			int connectTimeoutMillis,
+			int readTimeoutMillis,
+			boolean tcpNoDelay,
+			boolean keepAlive,
+			int sendBufferBytes,
+			int receiveBufferBytes,
+			boolean compression)
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.tcpNoDelay = tcpNoDelay;
+		this.keepAlive = keepAlive;
+		this.sendBufferBytes = sendBufferBytes;
+		this.receiveBufferBytes = receiveBufferBytes;
+		this.compression = compression;
+	}
+
+
+	/**
+	 * Reads the options from the system properties:
+	 *   - transaction.rmi.connectTimeoutMillis (default 2000)
+	 *   - transaction.rmi.readTimeoutMillis (default 10000)
+	 *   - transaction.rmi.tcpNoDelay (default true)
+	 *   - transaction.rmi.keepAlive (default true)
+	 *   - transaction.rmi.sendBufferBytes (default 0, operating system default)
+	 *   - transaction.rmi.receiveBufferBytes (default 0, operating system default)
+	 *   - transaction.rmi.compression (default false)
+	 */
+	static TransactionSocketFactory fromSystemProperties()
+	{
+		return new TransactionSocketFactory(
+			Integer.getInteger("transaction.rmi.connectTimeoutMillis", DEFAULT_CONNECT_TIMEOUT_MILLIS),
+			Integer.getInteger("transaction.rmi.readTimeoutMillis", DEFAULT_READ_TIMEOUT_MILLIS),
+			Boolean.parseBoolean(System.getProperty("transaction.rmi.tcpNoDelay", "true")),
+			Boolean.parseBoolean(System.getProperty("transaction.rmi.keepAlive", "true")),
+			Integer.getInteger("transaction.rmi.sendBufferBytes", 0),
+			Integer.getInteger("transaction.rmi.receiveBufferBytes", 0),
+			Boolean.getBoolean("transaction.rmi.compression"));
+	}
+
+
+	/**
+	 * Installs the factory, without compression, for all RMI calls of this JVM that do not have a factory
+	 * of their own (registries, Naming.lookup()). Has to be called before the first remote call or export.
+	 *
+	 * @return the factory to export remote objects with
+	 */
+	static TransactionSocketFactory install()
+	{
+		TransactionSocketFactory factory = fromSystemProperties();
+		try
+		{
+			RMISocketFactory.setSocketFactory(factory.withoutCompression());
+			Logger.getGlobal().info("RMI sockets: " + factory);
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().warning("Could not install the RMI socket factory, using default timeouts");
+		}
+		return factory;
+	}
+
+
+	/**
+	 * The registry is looked up by callers that do not know the options of the exporter yet, so it is
+	 * always exported with plain streams.
+	 */
+	TransactionSocketFactory withoutCompression()
+	{
+		return new TransactionSocketFactory(connectTimeoutMillis, readTimeoutMillis, tcpNoDelay, keepAlive,
+			sendBufferBytes, receiveBufferBytes, false);
+	}
+
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException
+	{
+		Socket socket = compression ? new CompressedSocket() : new Socket();
+		if (receiveBufferBytes > 0)
+		{
+			// has to be set before connecting for windows larger than 64K
+			socket.setReceiveBufferSize(receiveBufferBytes);
+		}
+		socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+		socket.setSoTimeout(readTimeoutMillis);
+		configure(socket);
+		return socket;
+	}
+
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException
+	{
+		ServerSocket serverSocket = new ConfiguredServerSocket();
+		if (receiveBufferBytes > 0)
+		{
+			// accepted sockets inherit the receive buffer size of the server socket
+			serverSocket.setReceiveBufferSize(receiveBufferBytes);
+		}
+		serverSocket.bind(new InetSocketAddress(port));
+		return serverSocket;
+	}
+
+
+	private void configure(Socket socket) throws IOException
+	{
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if (sendBufferBytes > 0)
+		{
+			socket.setSendBufferSize(sendBufferBytes);
+		}
+	}
+
+
+	/**
+	 * Server socket that applies the options to the sockets it accepts.
+	 */
+	private class ConfiguredServerSocket extends ServerSocket
+	{
+		ConfiguredServerSocket() throws IOException
+		{
+			super();
+		}
+
+
+		@Override
+		public Socket accept() throws IOException
+		{
+			Socket socket = compression ? new CompressedSocket() : new Socket();
+			implAccept(socket);
+			configure(socket);
+			return socket;
+		}
+	}
+
+
+	/**
+	 * Socket that deflates what it sends and inflates what it receives. The output is flushed with
+	 * SYNC_FLUSH, so every flush() by RMI (one per call or reply) puts a complete block on the wire and the
+	 * peer can decode it without waiting for more data.
+	 */
+	private static class CompressedSocket extends Socket
+	{
+		private InputStream inputStream;
+
+		private OutputStream outputStream;
+
+		private Deflater deflater;
+
+		private Inflater inflater;
+
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException
+		{
+			if (inputStream == null)
+			{
+				inflater = new Inflater();
+				inputStream = new InflaterInputStream(super.getInputStream(), inflater, COMPRESSION_BUFFER_BYTES);
+			}
+			return inputStream;
+		}
+
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException
+		{
+			if (outputStream == null)
+			{
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				outputStream = new DeflaterOutputStream(super.getOutputStream(), deflater, COMPRESSION_BUFFER_BYTES, true);
+			}
+			return outputStream;
+		}
+
+
+		@Override
+		public synchronized void close() throws IOException
+		{
+			super.close();
+			if (deflater != null)
+			{
+				deflater.end();
+			}
+			if (inflater != null)
+			{
+				inflater.end();
+			}
+		}
+	}
+
+
+	/**
+	 * RMI reuses connections between stubs whose client socket factories are equal.
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		if (!(other instanceof TransactionSocketFactory))
+		{
+			return false;
+		}
+		TransactionSocketFactory factory = (TransactionSocketFactory) other;
+		return connectTimeoutMillis == factory.connectTimeoutMillis
+			&& readTimeoutMillis == factory.readTimeoutMillis
+			&& tcpNoDelay == factory.tcpNoDelay
+			&& keepAlive == factory.keepAlive
+			&& sendBufferBytes == factory.sendBufferBytes
+			&& receiveBufferBytes == factory.receiveBufferBytes
+			&& compression == factory.compression;
+	}
+
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(connectTimeoutMillis, readTimeoutMillis, tcpNoDelay, keepAlive,
+			sendBufferBytes, receiveBufferBytes, compression);
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "connectTimeout=" + connectTimeoutMillis + "ms readTimeout=" + readTimeoutMillis + "ms"
+			+ " tcpNoDelay=" + tcpNoDelay + " keepAlive=" + keepAlive
+			+ " sendBuffer=" + sendBufferBytes + " receiveBuffer=" + receiveBufferBytes
+			+ " compression=" + compression;
+	}
+}
@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel that tells the replica when keys with a time to live have expired.
+ *
+ * Time is divided into ticks of {@link #tickMillis}. Level 0 has one slot per tick, level 1 one slot per
+ * {@link #SLOTS} ticks, and so on. A timer is put on the lowest level whose slot it shares a block with the
+ * current tick, and is moved down a level ("cascaded") when the wheel reaches its slot. Scheduling and
+ * firing a timer are therefore O(1), and there is never a scan over all keys to find the expired ones.
+ *
+ * Timers beyond the top level (about 19 days with the default tick) wait in an overflow list that is
+ * re-examined every time the top level turns.
+ *
+ * @author dhimal
+ */
+class TransactionTimingWheel
+{
+	/**
+	 * Receives the timers of one tick that have expired.
+	 */
+	interface ExpiryHandler
+	{
+		void expired(List<Timer> timers);
+	}
+
+	static class Timer
+	{
+		private String key;
+
+		private long expiresAt;
+
+
+		Timer(String key, long expiresAt)
+		{
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+
+
+		String getKey()
+		{
+			return key;
+		}
+
+
+		long getExpiresAt()
+		{
+			return expiresAt;
+		}
+	}
+
+	static long DEFAULT_TICK_MILLIS = 100;
+
+	private static int SLOT_BITS = 6;
+
+	private static int SLOTS = 1 << SLOT_BITS;
+
+	private static int LEVELS = 4;
+
+	private long tickMillis;
+
+	private long currentTick;
+
+	private List<List<Timer>> wheels;
+
+	private List<Timer> overflow;
+
+	private List<Timer> due;
+
+	private ExpiryHandler expiryHandler;
+
+	private ScheduledExecutorService ticker;
+
+
+	TransactionTimingWheel(long tickMillis, ExpiryHandler expiryHandler)
+	{
+		this.tickMillis = tickMillis;
+		this.expiryHandler = expiryHandler;
+		this.currentTick = System.currentTimeMillis() / tickMillis;
+		this.wheels = new ArrayList<>();
+		for (int i = 0; i < LEVELS * SLOTS; i++)
+		{
+			wheels.add(new ArrayList<>());
+		}
+		this.overflow = new ArrayList<>();
+		this.due = new ArrayList<>();
+	}
+
+
+	/**
+	 * Starts the background thread that advances the wheel once per tick.
+	 */
+	void start()
+	{
+		ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-timing-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * @param key
+	 * @param expiresAt epoch milliseconds at which the key expires
+	 */
+	synchronized void schedule(String key, long expiresAt)
+	{
+		place(new Timer(key, expiresAt));
+	}
+
+
+	private void place(Timer timer)
+	{
+		// round up, a key must never be reported before it has expired
+		long tick = (timer.getExpiresAt() + tickMillis - 1) / tickMillis;
+		if (tick <= currentTick)
+		{
+			due.add(timer);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++)
+		{
+			int shift = SLOT_BITS * (level + 1);
+			if ((tick >> shift) == (currentTick >> shift))
+			{
+				int slot = (int) ((tick >> (SLOT_BITS * level)) & (SLOTS - 1));
+				wheels.get(level * SLOTS + slot).add(timer);
+				return;
+			}
+		}
+		overflow.add(timer);
+	}
+
+
+	/**
+	 * Moves the wheel up to the current time, firing every timer whose tick has passed.
+	 */
+	void advance()
+	{
+		long target = System.currentTimeMillis() / tickMillis;
+		while (true)
+		{
+			List<Timer> expired;
+			synchronized (this)
+			{
+				if (currentTick >= target && due.isEmpty())
+				{
+					return;
+				}
+				if (currentTick < target)
+				{
+					currentTick++;
+					cascade();
+					List<Timer> slot = wheels.get((int) (currentTick & (SLOTS - 1)));
+					due.addAll(slot);
+					slot.clear();
+				}
+				expired = due;
+				due = new ArrayList<>();
+			}
+			if (!expired.isEmpty())
+			{
+				try
+				{
+					expiryHandler.expired(expired);
+				}
+				catch (RuntimeException e)
+				{
+					Logger.getGlobal().severe("Could not expire " + expired.size() + " keys");
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Moves the timers of every higher level slot that the wheel has just reached down to the lower levels,
+	 * top level first so that a timer can fall through several levels in one tick.
+	 */
+	private void cascade()
+	{
+		if ((currentTick & ((1L << (SLOT_BITS * (LEVELS - 1))) - 1)) == 0)
+		{
+			List<Timer> waiting = overflow;
+			overflow = new ArrayList<>();
+			waiting.forEach(this::place);
+		}
+		for (int level = LEVELS - 1; level > 0; level--)
+		{
+			if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0)
+			{
+				int slot = (int) ((currentTick >> (SLOT_BITS * level)) & (SLOTS - 1));
+				List<Timer> timers = wheels.get(level * SLOTS + slot);
+				List<Timer> cascading = new ArrayList<>(timers);
+				timers.clear();
+				cascading.forEach(this::place);
+			}
+		}
+	}
+}
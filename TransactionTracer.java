@@ -0,0 +1,521 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-transaction latency tracing across the client, the Transaction Manager and the replicas.
+ *
+ * The Transaction Manager decides for each transaction whether it is traced, with probability
+ * -Dtransaction.trace.sampleRate (default 0.01), and puts a trace ID (its transaction ID) in the
+ * {@link Transaction}; the replicas record the spans of a transaction that carries one. Every stage
+ * records a span (name, detail, start, duration) into a preallocated {@link TransactionRingBuffer}; an
+ * untraced transaction costs a comparison per stage, a traced one a slot in the buffer. A background thread
+ * writes the spans to -Dtransaction.trace.file in the Chrome trace event format (a JSON array of complete
+ * "X" events, viewable in chrome://tracing or Perfetto), one file per process. The array is left open, as
+ * the format allows, so that a process that is killed still leaves a usable file. Without that property
+ * nothing is traced.
+ *
+ * Spans carry wall clock timestamps so that the files of several processes can be put side by side; spans
+ * of different hosts are only as aligned as their clocks.
+ *
+ * The client cannot pass a trace ID through the client interface, so it records its spans with the key
+ * instead, and the summary matches them to the transaction on that key whose spans they enclose. A client
+ * cannot know which of its calls the server samples, so it traces all of them when tracing is on; the
+ * client spans that enclose no traced transaction are left out of the summary.
+ *
+ * Summary: java TransactionTracer summary [count] &lt;trace-file&gt;... prints the critical path of the
+ * slowest traced transactions: the stages a transaction waited for, each with the time it added.
+ *
+ * @author dhimal
+ */
+class TransactionTracer
+{
+	private static int CAPACITY = 16384;
+
+	private static int DRAIN_BATCH = 256;
+
+	private static long IDLE_PARK_NANOS = 10000000;
+
+	private static String FILE = System.getProperty("transaction.trace.file");
+
+	private static double SAMPLE_RATE = Double.parseDouble(System.getProperty("transaction.trace.sampleRate", "0.01"));
+
+	/**
+	 * Name of the root span of a transaction, recorded by the Transaction Manager.
+	 */
+	static String TRANSACTION = "transaction";
+
+	/**
+	 * Name of the span the client records around a call to the server.
+	 */
+	static String CLIENT = "client";
+
+	private static class Span
+	{
+		private long trace;
+
+		private String name;
+
+		private String detail;
+
+		private long startNanos;
+
+		private long endNanos;
+
+		private long thread;
+	}
+
+	private static TransactionRingBuffer<Span> ring;
+
+	private static AtomicLong dropped = new AtomicLong();
+
+	private static Writer writer;
+
+	private static long pid;
+
+	/**
+	 * Wall clock time in microseconds at System.nanoTime() == 0.
+	 */
+	private static long epochMicrosAtZeroNanos = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+	static
+	{
+		if (FILE != null)
+		{
+			try
+			{
+				writer = new BufferedWriter(new FileWriter(FILE, true));
+				// pid@host
+				String name = ManagementFactory.getRuntimeMXBean().getName();
+				int at = name.indexOf('@');
+				pid = at > 0 ? Long.parseLong(name.substring(0, at)) : 0;
+				writer.write("[\n");
+				writer.write(String.format("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":%d,\"args\":{\"name\":\"%s\"}},%n",
+					pid, escape(System.getProperty("transaction.trace.process", name))));
+				ring = new TransactionRingBuffer<>(CAPACITY, Span::new);
+				Thread drainer = new Thread(TransactionTracer::drainForever, "transaction-tracer");
+				drainer.setDaemon(true);
+				drainer.start();
+				Runtime.getRuntime().addShutdownHook(new Thread(TransactionTracer::drain, "transaction-tracer-flush"));
+			}
+			catch (IOException | NumberFormatException e)
+			{
+				Logger.getGlobal().severe("Could not open the trace file " + FILE + ", tracing is off");
+				ring = null;
+			}
+		}
+	}
+
+
+	private TransactionTracer()
+	{
+	}
+
+
+	/**
+	 * @return the trace ID for a new transaction: its ID if it is sampled, 0 if it is not traced
+	 */
+	static long sample(long transactionID)
+	{
+		return ring != null && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE ? transactionID : 0;
+	}
+
+
+	/**
+	 * @return a trace ID for a client call, 0 if tracing is off. Every call is traced: sampled on its own,
+	 * a client span would rarely meet a sampled transaction. Client spans are matched to transactions by
+	 * key, so the ID only marks the span as traced.
+	 */
+	static long sampleClient()
+	{
+		return ring != null ? 1 : 0;
+	}
+
+
+	/**
+	 * Records a span of the transaction that started at startNanos (System.nanoTime()) and ends now.
+	 * Does nothing if the transaction is not traced.
+	 */
+	static void span(Transaction transaction, String name, String detail, long startNanos)
+	{
+		span(transaction.getTrace(), name, detail, startNanos);
+	}
+
+
+	static void span(long trace, String name, String detail, long startNanos)
+	{
+		if (trace == 0 || ring == null)
+		{
+			return;
+		}
+		long endNanos = System.nanoTime();
+		long position = ring.claim();
+		if (position < 0)
+		{
+			dropped.incrementAndGet();
+			return;
+		}
+		Span span = ring.get(position);
+		span.trace = trace;
+		span.name = name;
+		span.detail = detail;
+		span.startNanos = startNanos;
+		span.endNanos = endNanos;
+		span.thread = Thread.currentThread().getId();
+		ring.publish(position);
+	}
+
+
+	/**
+	 * @return number of spans dropped because the buffer was full
+	 */
+	static long dropped()
+	{
+		return dropped.get();
+	}
+
+
+	private static void drainForever()
+	{
+		while (true)
+		{
+			if (drain() == 0)
+			{
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+
+	private static synchronized int drain()
+	{
+		int total = 0;
+		int drained;
+		do
+		{
+			drained = ring.drain(TransactionTracer::write, DRAIN_BATCH);
+			total += drained;
+		}
+		while (drained == DRAIN_BATCH);
+		if (total > 0)
+		{
+			try
+			{
+				writer.flush();
+			}
+			catch (IOException e)
+			{
+				Logger.getGlobal().warning("Could not write the trace file " + FILE);
+			}
+		}
+		return total;
+	}
+
+
+	/**
+	 * One complete event per line; the trace ID is a string since JSON numbers lose the low bits of 64-bit IDs.
+	 */
+	private static void write(Span span)
+	{
+		try
+		{
+			writer.write(String.format(
+				"{\"name\":\"%s\",\"cat\":\"transaction\",\"ph\":\"X\",\"ts\":%d,\"dur\":%d,\"pid\":%d,\"tid\":%d,"
+					+ "\"args\":{\"trace\":\"%d\",\"detail\":\"%s\"}},%n",
+				escape(span.name), epochMicrosAtZeroNanos + span.startNanos / 1000,
+				Math.max(0, (span.endNanos - span.startNanos) / 1000), pid, span.thread, span.trace,
+				escape(span.detail)));
+		}
+		catch (IOException e)
+		{
+			dropped.incrementAndGet();
+		}
+		span.detail = null;
+	}
+
+
+	private static String escape(String string)
+	{
+		StringBuilder escaped = new StringBuilder();
+		for (char c : String.valueOf(string).toCharArray())
+		{
+			if (c == '"' || c == '\\')
+			{
+				escaped.append('\\').append(c);
+			}
+			else if (c < 0x20)
+			{
+				escaped.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+
+	private static String unescape(String string)
+	{
+		StringBuilder unescaped = new StringBuilder();
+		for (int i = 0; i < string.length(); i++)
+		{
+			char c = string.charAt(i);
+			if (c == '\\' && i + 1 < string.length())
+			{
+				char next = string.charAt(++i);
+				if (next == 'u' && i + 4 < string.length())
+				{
+					unescaped.append((char) Integer.parseInt(string.substring(i + 1, i + 5), 16));
+					i += 4;
+				}
+				else
+				{
+					unescaped.append(next);
+				}
+			}
+			else
+			{
+				unescaped.append(c);
+			}
+		}
+		return unescaped.toString();
+	}
+
+
+	/**
+	 * A span read back from a trace file, for the summary.
+	 */
+	private static class Event
+	{
+		private String name;
+
+		private String detail;
+
+		private long trace;
+
+		private long start;
+
+		private long end;
+
+		private List<Event> children = new ArrayList<>();
+	}
+
+	private static Pattern EVENT = Pattern.compile(
+		"\\{\"name\":\"((?:[^\"\\\\]|\\\\.)*)\",\"cat\":\"transaction\",\"ph\":\"X\",\"ts\":(\\d+),\"dur\":(\\d+),"
+			+ "\"pid\":\\d+,\"tid\":\\d+,\"args\":\\{\"trace\":\"(-?\\d+)\",\"detail\":\"((?:[^\"\\\\]|\\\\.)*)\"\\}\\}");
+
+
+	private static List<Event> read(List<String> files) throws IOException
+	{
+		List<Event> events = new ArrayList<>();
+		for (String file : files)
+		{
+			try (BufferedReader reader = new BufferedReader(new FileReader(file)))
+			{
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					Matcher matcher = EVENT.matcher(line);
+					if (matcher.find())
+					{
+						Event event = new Event();
+						event.name = unescape(matcher.group(1));
+						event.start = Long.parseLong(matcher.group(2));
+						event.end = event.start + Long.parseLong(matcher.group(3));
+						event.trace = Long.parseLong(matcher.group(4));
+						event.detail = unescape(matcher.group(5));
+						events.add(event);
+					}
+				}
+			}
+		}
+		return events;
+	}
+
+
+	/**
+	 * Nests the spans of one transaction by time: each span goes under the shortest span that encloses it,
+	 * the root if none does (e.g. a replica span that clock skew pushed outside its call). Spans that end
+	 * after the root were not waited for and hold no other spans.
+	 */
+	private static void nest(Event root, List<Event> spans)
+	{
+		spans.sort(Comparator.comparingLong((Event e) -> e.end - e.start).reversed());
+		List<Event> placed = new ArrayList<>();
+		placed.add(root);
+		for (Event span : spans)
+		{
+			Event parent = root;
+			for (Event candidate : placed)
+			{
+				if (candidate.start <= span.start && span.end <= candidate.end && candidate.end <= root.end
+					&& candidate.end - candidate.start <= parent.end - parent.start)
+				{
+					parent = candidate;
+				}
+			}
+			parent.children.add(span);
+			placed.add(span);
+		}
+	}
+
+
+	/**
+	 * Prints the critical path under the span: going back from its end, the child that ended last, then the
+	 * child that ended last before that one started, and so on. Time not covered by a child is the span's own.
+	 */
+	private static void printCriticalPath(Event span, int depth)
+	{
+		List<Event> path = new ArrayList<>();
+		long cursor = span.end;
+		while (true)
+		{
+			Event last = null;
+			for (Event child : span.children)
+			{
+				if (child.end <= cursor && !path.contains(child) && (last == null || child.end > last.end))
+				{
+					last = child;
+				}
+			}
+			if (last == null)
+			{
+				break;
+			}
+			path.add(0, last);
+			cursor = last.start;
+		}
+		long covered = path.stream().mapToLong(e -> e.end - e.start).sum();
+		for (Event step : path)
+		{
+			System.out.println(String.format("%s%-14s %9.3f ms  %s", indent(depth), step.name,
+				(step.end - step.start) / 1000.0, step.detail));
+			printCriticalPath(step, depth + 1);
+		}
+		if (!path.isEmpty())
+		{
+			System.out.println(String.format("%s%-14s %9.3f ms", indent(depth), "(self)",
+				Math.max(0, span.end - span.start - covered) / 1000.0));
+		}
+	}
+
+
+	/**
+	 * Prints the spans that ended after the span, e.g. the batched write to the data store, which the
+	 * transaction did not wait for.
+	 */
+	private static void printAfterwards(Event span, long end)
+	{
+		for (Event child : span.children)
+		{
+			if (child.end > end)
+			{
+				System.out.println(String.format("  after: %-7s %9.3f ms  %s", child.name,
+					(child.end - child.start) / 1000.0, child.detail));
+			}
+			printAfterwards(child, end);
+		}
+	}
+
+
+	private static String indent(int depth)
+	{
+		StringBuilder indent = new StringBuilder();
+		for (int i = 0; i <= depth; i++)
+		{
+			indent.append("  ");
+		}
+		return indent.toString();
+	}
+
+
+	/**
+	 * java TransactionTracer summary [count] &lt;trace-file&gt;...
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2 || !"summary".equals(args[0]))
+		{
+			System.err.println("Usage: java TransactionTracer summary [count] <trace-file>...");
+			System.exit(1);
+		}
+		int count = 10;
+		List<String> files = new ArrayList<>();
+		for (int i = 1; i < args.length; i++)
+		{
+			if (i == 1 && args[i].matches("\\d+"))
+			{
+				count = Integer.parseInt(args[i]);
+			}
+			else
+			{
+				files.add(args[i]);
+			}
+		}
+
+		Map<Long, List<Event>> traces = new HashMap<>();
+		List<Event> clientSpans = new ArrayList<>();
+		for (Event event : read(files))
+		{
+			if (CLIENT.equals(event.name))
+			{
+				clientSpans.add(event);
+			}
+			else
+			{
+				traces.computeIfAbsent(event.trace, trace -> new ArrayList<>()).add(event);
+			}
+		}
+
+		List<Event> roots = new ArrayList<>();
+		for (List<Event> spans : traces.values())
+		{
+			Event root = spans.stream().filter(e -> TRANSACTION.equals(e.name)).findFirst().orElse(null);
+			if (root == null)
+			{
+				continue;
+			}
+			spans.remove(root);
+			nest(root, spans);
+			String key = root.detail.substring(root.detail.indexOf(' ') + 1);
+			for (Event client : clientSpans)
+			{
+				if (client.detail.endsWith(" " + key) && client.start <= root.start && root.end <= client.end)
+				{
+					// the transaction as the client saw it, with the RMI hops as its own time
+					client.children.add(root);
+					root = client;
+					break;
+				}
+			}
+			roots.add(root);
+		}
+		roots.sort(Comparator.comparingLong((Event e) -> e.end - e.start).reversed());
+
+		System.out.println(traces.size() + " traced transactions, the " + Math.min(count, roots.size()) + " slowest:");
+		for (Event root : roots.subList(0, Math.min(count, roots.size())))
+		{
+			System.out.println();
+			System.out.println(String.format("%-16s %9.3f ms  %s", root.name, (root.end - root.start) / 1000.0, root.detail));
+			printCriticalPath(root, 0);
+			printAfterwards(root, root.end);
+		}
+	}
+}
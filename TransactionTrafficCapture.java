@@ -0,0 +1,494 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Records the requests that reach the transaction server (put, del and get), so that production traffic can
+ * be replayed against another build with {@link TransactionTrafficReplay}.
+ *
+ * Enabled with the system property transaction.capture.file=&lt;file&gt;; with
+ * transaction.capture.redactValues=true only the sizes of the values are recorded. Like the
+ * {@link TransactionAuditLog}, request threads only fill a preallocated slot of a {@link TransactionRingBuffer}
+ * and a background thread encodes and writes the records; a record that does not fit is dropped and counted.
+ *
+ * Every record carries the stream it arrived on, the server thread that ran it. The requests of one stream
+ * never overlapped, so replaying each stream in order, at the original arrival times, reproduces the
+ * original concurrency. A request is recorded when it arrives, so the file is in arrival order and the
+ * replay can read it a short way ahead of the requests it sends; the time the server took follows in a
+ * {@link #DONE} record of the same stream when the request completes.
+ *
+ * The other requests (conditional writes, getMany, scans and large values) are not recorded, and a replay
+ * does not send them. They are counted, and the counts are written every {@link #UNCAPTURED_REPORT_NANOS}
+ * and logged, so that the report of a replay shows what part of the traffic it left out.
+ *
+ * File layout (big endian): the header {@link #MAGIC} (int), {@link #FORMAT_VERSION} (short), start of the
+ * capture (long, epoch microseconds) and whether the values are redacted (byte), then the records, each
+ * starting with its type (byte):
+ *   - {@link #PUT}, {@link #DEL} or {@link #GET}: arrival (long, microseconds since the start of the
+ *     capture), stream (int), key length (int) and key (UTF-8 bytes), and for PUT the time to live (long,
+ *     milliseconds, 0 for none), value length (int, UTF-8 bytes) and, unless the values are redacted, the value
+ *   - {@link #DONE}: stream (int) and time the server took for the last request of the stream (int, microseconds)
+ *   - {@link #UNCAPTURED}: operation name length (int) and name (UTF-8 bytes), and the number of requests
+ *     (long) since the last such record of the operation
+ *
+ * @author dhimal
+ */
+class TransactionTrafficCapture
+{
+	static int MAGIC = 0x54585443;
+
+	static short FORMAT_VERSION = 2;
+
+	static byte PUT = 1;
+
+	static byte DEL = 2;
+
+	static byte GET = 3;
+
+	static byte DONE = 4;
+
+	static byte UNCAPTURED = 5;
+
+	private static int CAPACITY = 65536;
+
+	private static int BUFFER_BYTES = 1 << 20;
+
+	private static long IDLE_PARK_NANOS = 1000000;
+
+	private static long UNCAPTURED_REPORT_NANOS = 10000000000L;
+
+	private static class Entry
+	{
+		private byte operation;
+
+		private long arrivalNanos;
+
+		private long durationNanos;
+
+		private int stream;
+
+		private String key;
+
+		private String value;
+
+		private long ttlMillis;
+	}
+
+	private TransactionRingBuffer<Entry> ring;
+
+	private FileChannel channel;
+
+	private ByteBuffer buffer;
+
+	private boolean redactValues;
+
+	private long startNanos;
+
+	private AtomicLong dropped;
+
+	/**
+	 * Requests that are not recorded, by operation.
+	 */
+	private Map<String, LongAdder> uncaptured;
+
+	/**
+	 * Only touched by the writer.
+	 */
+	private long lastUncapturedReport;
+
+	/**
+	 * Streams whose last request record did not fit in the buffer, so that its DONE record is skipped too.
+	 * Only touched by the writer.
+	 */
+	private Set<Integer> unrecorded;
+
+
+	private TransactionTrafficCapture(FileChannel channel, boolean redactValues)
+	{
+		this.channel = channel;
+		this.redactValues = redactValues;
+		this.dropped = new AtomicLong();
+		this.uncaptured = new ConcurrentHashMap<>();
+		this.startNanos = System.nanoTime();
+		this.lastUncapturedReport = startNanos;
+		this.unrecorded = new HashSet<>();
+		if (channel != null)
+		{
+			this.ring = new TransactionRingBuffer<>(CAPACITY, Entry::new);
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			Thread writer = new Thread(this::writeForever, "transaction-traffic-capture");
+			writer.setDaemon(true);
+			writer.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(true), "transaction-traffic-capture-flush"));
+		}
+	}
+
+
+	/**
+	 * @return the capture configured by transaction.capture.file, or a disabled one
+	 */
+	static TransactionTrafficCapture fromSystemProperties()
+	{
+		String path = System.getProperty("transaction.capture.file");
+		if (path == null)
+		{
+			return new TransactionTrafficCapture(null, false);
+		}
+		boolean redactValues = Boolean.getBoolean("transaction.capture.redactValues");
+		try
+		{
+			File file = new File(path);
+			FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			TransactionTrafficCapture capture = new TransactionTrafficCapture(channel, redactValues);
+			ByteBuffer header = ByteBuffer.allocate(15);
+			header.putInt(MAGIC).putShort(FORMAT_VERSION).putLong(System.currentTimeMillis() * 1000)
+				.put((byte) (redactValues ? 1 : 0)).flip();
+			channel.write(header);
+			Logger.getGlobal().info("Capturing the traffic to " + file.getAbsolutePath()
+				+ (redactValues ? " without the values" : ""));
+			return capture;
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not open the traffic capture " + path);
+			return new TransactionTrafficCapture(null, false);
+		}
+	}
+
+
+	/**
+	 * Records the request and runs it, then records the time it took, whether it succeeds or not.
+	 *
+	 * @param value null for DEL and GET
+	 */
+	<T> T record(byte operation, String key, String value, long ttlMillis, TransactionAdmissionLimiter.Request<T> request)
+			throws RemoteException
+	{
+		if (channel == null)
+		{
+			return request.run();
+		}
+		long arrivalNanos = System.nanoTime();
+		int stream = (int) Thread.currentThread().getId();
+		boolean recorded = add(operation, arrivalNanos, 0, stream, key, value, ttlMillis);
+		try
+		{
+			return request.run();
+		}
+		finally
+		{
+			if (recorded)
+			{
+				// without its request, the time would be taken for the one before it
+				add(DONE, 0, System.nanoTime() - arrivalNanos, stream, null, null, 0);
+			}
+		}
+	}
+
+
+	/**
+	 * Counts a request of an operation that is not recorded.
+	 */
+	void uncaptured(String operation)
+	{
+		if (channel != null)
+		{
+			uncaptured.computeIfAbsent(operation, counted -> new LongAdder()).increment();
+		}
+	}
+
+
+	/**
+	 * @return false if the record was dropped
+	 */
+	private boolean add(byte operation, long arrivalNanos, long durationNanos, int stream, String key, String value,
+			long ttlMillis)
+	{
+		long position = ring.claim();
+		if (position < 0)
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+		Entry entry = ring.get(position);
+		entry.operation = operation;
+		entry.arrivalNanos = arrivalNanos;
+		entry.durationNanos = durationNanos;
+		entry.stream = stream;
+		entry.key = key;
+		entry.value = value;
+		entry.ttlMillis = ttlMillis;
+		ring.publish(position);
+		return true;
+	}
+
+
+	private void writeForever()
+	{
+		while (true)
+		{
+			if (flush(false) == 0)
+			{
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+
+	/**
+	 * @param last true at shutdown, when the uncaptured requests are written whatever the time
+	 */
+	private synchronized int flush(boolean last)
+	{
+		int drained = ring.drain(this::encode, Integer.MAX_VALUE);
+		long now = System.nanoTime();
+		if (last || now - lastUncapturedReport >= UNCAPTURED_REPORT_NANOS)
+		{
+			lastUncapturedReport = now;
+			encodeUncaptured();
+		}
+		writeBuffer();
+		if (dropped.get() > 0)
+		{
+			TransactionLog.warning("{} captured requests dropped", dropped.getAndSet(0));
+		}
+		return drained;
+	}
+
+
+	private void encode(Entry entry)
+	{
+		if (entry.operation == DONE)
+		{
+			// without its request, the time would be taken for the one before it
+			if (!unrecorded.remove(entry.stream) && reserve(9))
+			{
+				buffer.put(DONE);
+				buffer.putInt(entry.stream);
+				buffer.putInt((int) Math.min(Integer.MAX_VALUE, entry.durationNanos / 1000));
+			}
+			return;
+		}
+		byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+		byte[] value = entry.value == null ? new byte[0] : entry.value.getBytes(StandardCharsets.UTF_8);
+		if (!reserve(17 + key.length + (entry.operation == PUT ? 12 + (redactValues ? 0 : value.length) : 0)))
+		{
+			unrecorded.add(entry.stream);
+		}
+		else
+		{
+			unrecorded.remove(entry.stream);
+			buffer.put(entry.operation);
+			buffer.putLong((entry.arrivalNanos - startNanos) / 1000);
+			buffer.putInt(entry.stream);
+			buffer.putInt(key.length);
+			buffer.put(key);
+			if (entry.operation == PUT)
+			{
+				buffer.putLong(entry.ttlMillis);
+				buffer.putInt(value.length);
+				if (!redactValues)
+				{
+					buffer.put(value);
+				}
+			}
+		}
+		entry.key = null;
+		entry.value = null;
+	}
+
+
+	private void encodeUncaptured()
+	{
+		Map<String, Long> counts = new TreeMap<>();
+		uncaptured.forEach((operation, count) -> {
+			long requests = count.sumThenReset();
+			if (requests > 0)
+			{
+				counts.put(operation, requests);
+			}
+		});
+		if (counts.isEmpty())
+		{
+			return;
+		}
+		TransactionLog.info("Requests not captured: {}", counts);
+		counts.forEach((operation, requests) -> {
+			byte[] name = operation.getBytes(StandardCharsets.UTF_8);
+			if (reserve(13 + name.length))
+			{
+				buffer.put(UNCAPTURED);
+				buffer.putInt(name.length);
+				buffer.put(name);
+				buffer.putLong(requests);
+			}
+		});
+	}
+
+
+	/**
+	 * Makes room for a record in the buffer, or counts it as dropped if it is larger than the buffer.
+	 */
+	private boolean reserve(int length)
+	{
+		if (buffer.remaining() < length)
+		{
+			writeBuffer();
+		}
+		if (buffer.remaining() < length)
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+
+	private void writeBuffer()
+	{
+		buffer.flip();
+		try
+		{
+			while (buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.getGlobal().severe("Could not write the traffic capture");
+		}
+		buffer.clear();
+	}
+
+
+	/**
+	 * A record read back from a capture.
+	 */
+	static class CapturedRequest
+	{
+		byte operation;
+
+		long arrivalMicros;
+
+		int stream;
+
+		/**
+		 * For DONE.
+		 */
+		int durationMicros;
+
+		/**
+		 * The key, or the operation name for UNCAPTURED.
+		 */
+		String key;
+
+		/**
+		 * The original value, or as many filler characters as it had bytes if the values are redacted.
+		 */
+		String value;
+
+		long ttlMillis;
+
+		/**
+		 * For UNCAPTURED.
+		 */
+		long count;
+	}
+
+
+	/**
+	 * Reads the header of a capture.
+	 *
+	 * @return whether the values are redacted
+	 * @throws IOException if the file is not a capture this version can read
+	 */
+	static boolean readHeader(DataInputStream in) throws IOException
+	{
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a traffic capture");
+		}
+		short version = in.readShort();
+		if (version != FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported traffic capture version " + version);
+		}
+		in.readLong();
+		return in.readByte() != 0;
+	}
+
+
+	/**
+	 * @return the next record of the capture, null at its end
+	 */
+	static CapturedRequest read(DataInputStream in, boolean redactedValues) throws IOException
+	{
+		CapturedRequest request = new CapturedRequest();
+		try
+		{
+			request.operation = in.readByte();
+		}
+		catch (EOFException e)
+		{
+			return null;
+		}
+		if (request.operation == DONE)
+		{
+			request.stream = in.readInt();
+			request.durationMicros = in.readInt();
+			return request;
+		}
+		if (request.operation == UNCAPTURED)
+		{
+			request.key = readString(in, in.readInt());
+			request.count = in.readLong();
+			return request;
+		}
+		request.arrivalMicros = in.readLong();
+		request.stream = in.readInt();
+		request.key = readString(in, in.readInt());
+		if (request.operation == PUT)
+		{
+			request.ttlMillis = in.readLong();
+			int length = in.readInt();
+			request.value = redactedValues ? filler(length) : readString(in, length);
+		}
+		return request;
+	}
+
+
+	private static String readString(DataInputStream in, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	private static String filler(int length)
+	{
+		StringBuilder value = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+		{
+			value.append((char) ('a' + i % 26));
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a traffic capture (see {@link TransactionTrafficCapture}) against a cluster and reports the latency
+ * percentiles, so that two builds can be compared on the same traffic.
+ *
+ * java TransactionTrafficReplay &lt;capture-file&gt; &lt;server-ip[:port],...&gt; &lt;server-port&gt; [speed]
+ *   - speed 1 (the default) sends every request at its original arrival time, relative to the first one
+ *   - speed 10 sends them ten times faster
+ *   - speed max sends them as fast as the cluster answers
+ *
+ * Each stream of the capture is replayed in order on a thread of its own, so the replay has the concurrency
+ * of the original traffic; with speed max every stream sends its next request as soon as the previous one is
+ * answered. A cluster that cannot keep up makes the requests start late, and the replay then no longer has
+ * the original rate: the report shows how late the requests started, next to the latencies of the replay and
+ * the times the server took when the traffic was captured.
+ *
+ * Values that were redacted in the capture are replaced by filler of the same size. The requests the capture
+ * only counted are not replayed; the report lists them.
+ *
+ * @author dhimal
+ */
+class TransactionTrafficReplay
+{
+	/**
+	 * The capture is read at most this far ahead of the replay.
+	 */
+	private static long MAX_AHEAD_NANOS = 1000000000L;
+
+	private static int MAX_QUEUED = 100000;
+
+	private static String[] OPERATION_NAMES = {"", "put", "del", "get"};
+
+	/**
+	 * Latencies in nanoseconds, or any other durations.
+	 */
+	private static class Samples
+	{
+		private long[] values = new long[1024];
+
+		private int count;
+
+
+		synchronized void add(long value)
+		{
+			if (count == values.length)
+			{
+				values = Arrays.copyOf(values, 2 * count);
+			}
+			values[count++] = value;
+		}
+
+
+		synchronized long[] sorted()
+		{
+			long[] sorted = Arrays.copyOf(values, count);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	private TransactionInterfaceServerToClient server;
+
+	/**
+	 * 0 for as fast as possible.
+	 */
+	private double speed;
+
+	private long startNanos;
+
+	private long firstArrivalMicros = -1;
+
+	private Semaphore queued;
+
+	private Samples[] replayed;
+
+	private Samples[] captured;
+
+	private AtomicLong[] errors;
+
+	private Samples lateness;
+
+	/**
+	 * Requests in the captured traffic that the capture did not record, by operation.
+	 */
+	private Map<String, Long> uncaptured;
+
+
+	private TransactionTrafficReplay(TransactionInterfaceServerToClient server, double speed)
+	{
+		this.server = server;
+		this.speed = speed;
+		this.queued = new Semaphore(MAX_QUEUED);
+		this.replayed = new Samples[OPERATION_NAMES.length];
+		this.captured = new Samples[OPERATION_NAMES.length];
+		this.errors = new AtomicLong[OPERATION_NAMES.length];
+		for (int operation = 0; operation < OPERATION_NAMES.length; operation++)
+		{
+			replayed[operation] = new Samples();
+			captured[operation] = new Samples();
+			errors[operation] = new AtomicLong();
+		}
+		this.lateness = new Samples();
+		this.uncaptured = new TreeMap<>();
+	}
+
+
+	/**
+	 * Reads the capture and hands every request to the thread of its stream. The captured time of a request
+	 * comes in a record of its own, after the request.
+	 */
+	private void replay(String file) throws IOException, InterruptedException
+	{
+		Map<Integer, BlockingQueue<TransactionTrafficCapture.CapturedRequest>> streams = new HashMap<>();
+		// the operation of the last request read of every stream, until its time is read
+		Map<Integer, Byte> running = new HashMap<>();
+		ExecutorService senders = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "transaction-traffic-replay");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long lastArrivalMicros = 0;
+		startNanos = System.nanoTime();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16)))
+		{
+			boolean redactedValues = TransactionTrafficCapture.readHeader(in);
+			TransactionTrafficCapture.CapturedRequest request;
+			while ((request = TransactionTrafficCapture.read(in, redactedValues)) != null)
+			{
+				if (request.operation == TransactionTrafficCapture.DONE)
+				{
+					Byte operation = running.remove(request.stream);
+					if (operation != null)
+					{
+						captured[operation].add(request.durationMicros * 1000L);
+					}
+					continue;
+				}
+				if (request.operation == TransactionTrafficCapture.UNCAPTURED)
+				{
+					uncaptured.merge(request.key, request.count, Long::sum);
+					continue;
+				}
+				running.put(request.stream, request.operation);
+				if (firstArrivalMicros < 0)
+				{
+					firstArrivalMicros = request.arrivalMicros;
+				}
+				lastArrivalMicros = request.arrivalMicros;
+				if (speed > 0)
+				{
+					waitUntil(scheduledNanos(request) - MAX_AHEAD_NANOS);
+				}
+				queued.acquire();
+				BlockingQueue<TransactionTrafficCapture.CapturedRequest> stream = streams.get(request.stream);
+				if (stream == null)
+				{
+					BlockingQueue<TransactionTrafficCapture.CapturedRequest> created = new LinkedBlockingQueue<>();
+					streams.put(request.stream, created);
+					senders.execute(() -> send(created));
+					stream = created;
+				}
+				stream.put(request);
+			}
+		}
+		for (BlockingQueue<TransactionTrafficCapture.CapturedRequest> stream : streams.values())
+		{
+			// the end of the stream
+			stream.put(new TransactionTrafficCapture.CapturedRequest());
+		}
+		senders.shutdown();
+		senders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		report(System.nanoTime() - startNanos, lastArrivalMicros - Math.max(0, firstArrivalMicros), streams.size());
+	}
+
+
+	private void send(BlockingQueue<TransactionTrafficCapture.CapturedRequest> stream)
+	{
+		try
+		{
+			while (true)
+			{
+				TransactionTrafficCapture.CapturedRequest request = stream.take();
+				if (request.operation == 0)
+				{
+					return;
+				}
+				if (speed > 0)
+				{
+					long scheduled = scheduledNanos(request);
+					waitUntil(scheduled);
+					lateness.add(Math.max(0, System.nanoTime() - scheduled));
+				}
+				long start = System.nanoTime();
+				try
+				{
+					call(request);
+					replayed[request.operation].add(System.nanoTime() - start);
+				}
+				catch (RemoteException | RuntimeException e)
+				{
+					errors[request.operation].incrementAndGet();
+				}
+				finally
+				{
+					// the reader waits for the slot, so a failed request must not keep it
+					queued.release();
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private void call(TransactionTrafficCapture.CapturedRequest request) throws RemoteException
+	{
+		if (request.operation == TransactionTrafficCapture.PUT)
+		{
+			if (request.ttlMillis > 0)
+			{
+				server.put(request.key, request.value, request.ttlMillis);
+			}
+			else
+			{
+				server.put(request.key, request.value);
+			}
+		}
+		else if (request.operation == TransactionTrafficCapture.DEL)
+		{
+			server.del(request.key);
+		}
+		else
+		{
+			server.get(request.key);
+		}
+	}
+
+
+	private long scheduledNanos(TransactionTrafficCapture.CapturedRequest request)
+	{
+		return startNanos + (long) ((request.arrivalMicros - firstArrivalMicros) * 1000 / speed);
+	}
+
+
+	private static void waitUntil(long nanos)
+	{
+		long wait;
+		while ((wait = nanos - System.nanoTime()) > 0)
+		{
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+
+	private void report(long elapsedNanos, long capturedMicros, int streams)
+	{
+		long requests = 0;
+		for (Samples samples : replayed)
+		{
+			requests += samples.count;
+		}
+		for (AtomicLong count : errors)
+		{
+			requests += count.get();
+		}
+		System.out.println();
+		System.out.printf("%d requests on %d streams replayed in %.2f s (captured over %.2f s, speed %s): %.0f requests/s%n",
+			requests, streams, elapsedNanos / 1e9, capturedMicros / 1e6, speed > 0 ? speed + "x" : "max",
+			requests / (elapsedNanos / 1e9));
+		System.out.printf("%-12s %8s %8s %10s %10s %10s %10s %10s%n",
+			"", "count", "errors", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms");
+		for (int operation = 1; operation < OPERATION_NAMES.length; operation++)
+		{
+			if (replayed[operation].count == 0 && errors[operation].get() == 0)
+			{
+				continue;
+			}
+			printRow(OPERATION_NAMES[operation] + " replay", replayed[operation].sorted(), errors[operation].get());
+			printRow(OPERATION_NAMES[operation] + " captured", captured[operation].sorted(), 0);
+		}
+		if (speed > 0)
+		{
+			printRow("late start", lateness.sorted(), 0);
+		}
+		if (!uncaptured.isEmpty())
+		{
+			System.out.println("Not in the capture, so not replayed: " + uncaptured);
+		}
+	}
+
+
+	private static void printRow(String name, long[] sorted, long errors)
+	{
+		System.out.printf("%-12s %8d %8d %10.3f %10.3f %10.3f %10.3f %10.3f%n", name, sorted.length, errors,
+			percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99), percentile(sorted, 0.999),
+			percentile(sorted, 1.0));
+	}
+
+
+	private static double percentile(long[] sorted, double fraction)
+	{
+		if (sorted.length == 0)
+		{
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)] / 1e6;
+	}
+
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if (args.length < 3 || args.length > 4)
+		{
+			System.err.println("Usage: java TransactionTrafficReplay <capture-file> <server-ip[:port],...> <server-port> [speed|max]");
+			System.exit(1);
+		}
+		double speed;
+		try
+		{
+			speed = args.length < 4 ? 1 : "max".equalsIgnoreCase(args[3]) ? 0 : Double.parseDouble(args[3]);
+		}
+		catch (NumberFormatException e)
+		{
+			speed = -1;
+		}
+		if (speed < 0 || speed == 0 && !"max".equalsIgnoreCase(args[3]))
+		{
+			System.err.println("The speed must be a positive number or max, not " + args[3]);
+			System.exit(1);
+		}
+		Logger.getGlobal().setLevel(Level.WARNING);
+		TransactionSocketFactory.install();
+		TransactionInterfaceServerToClient server = TransactionCoordinators.connect(
+			TransactionCoordinators.parse(args[1], Integer.parseInt(args[2])));
+		new TransactionTrafficReplay(server, speed).replay(args[0]);
+	}
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+
+/**
+ * Client side streaming of large values, see {@link TransactionLargeValue}.
+ *
+ * {@link #open(TransactionInterfaceServerToClient, String)} returns a stream that fetches the chunks of a
+ * value one at a time as the caller reads them, and {@link #put(TransactionInterfaceServerToClient, String,
+ * InputStream)} uploads a value chunk by chunk. Reading holds one chunk in memory, writing two (the
+ * chunk being sent and the one read ahead to find the last chunk).
+ *
+ * If the value is replaced while it is being read, its old chunks disappear and the stream fails with an
+ * IOException instead of returning a mix of two values.
+ *
+ * @author dhimal
+ */
+class TransactionValueStream extends InputStream
+{
+	private TransactionInterfaceServerToClient server;
+
+	private String key;
+
+	private TransactionLargeValue value;
+
+	private int nextChunk;
+
+	private byte[] chunk;
+
+	private int position;
+
+
+	private TransactionValueStream(TransactionInterfaceServerToClient server, String key, TransactionLargeValue value)
+	{
+		this.server = server;
+		this.key = key;
+		this.value = value;
+		this.chunk = value.getInline();
+	}
+
+
+	/**
+	 * @return the value of the key as a stream, empty if the key does not exist
+	 */
+	static TransactionValueStream open(TransactionInterfaceServerToClient server, String key) throws RemoteException
+	{
+		return new TransactionValueStream(server, key, server.largeValue(key));
+	}
+
+
+	/**
+	 * Stores everything the input stream returns as the value of the key. Values up to one chunk are
+	 * written with a plain put.
+	 *
+	 * @return true if the value was committed
+	 */
+	static boolean put(TransactionInterfaceServerToClient server, String key, InputStream input) throws IOException
+	{
+		byte[] first = readChunk(input);
+		byte[] next = readChunk(input);
+		if (next.length == 0)
+		{
+			return server.put(key, new String(first, StandardCharsets.UTF_8));
+		}
+
+		long upload = server.beginLargePut(key);
+		int chunks = 0;
+		for (byte[] data = first; data.length > 0; data = next, next = readChunk(input))
+		{
+			if (!server.putChunk(key, upload, chunks++, data))
+			{
+				return false;
+			}
+		}
+		return server.commitLargePut(key, upload, chunks);
+	}
+
+
+	private static byte[] readChunk(InputStream input) throws IOException
+	{
+		byte[] buffer = new byte[TransactionLargeValue.CHUNK_BYTES];
+		int filled = 0;
+		int read;
+		while (filled < buffer.length && (read = input.read(buffer, filled, buffer.length - filled)) >= 0)
+		{
+			filled += read;
+		}
+		if (filled == buffer.length)
+		{
+			return buffer;
+		}
+		byte[] last = new byte[filled];
+		System.arraycopy(buffer, 0, last, 0, filled);
+		return last;
+	}
+
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!fill())
+		{
+			return -1;
+		}
+		return chunk[position++] & 0xff;
+	}
+
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+		if (!fill())
+		{
+			return -1;
+		}
+		int count = Math.min(length, chunk.length - position);
+		System.arraycopy(chunk, position, buffer, offset, count);
+		position += count;
+		return count;
+	}
+
+
+	/**
+	 * @return false at the end of the value
+	 */
+	private boolean fill() throws IOException
+	{
+		while (position == chunk.length)
+		{
+			if (nextChunk == value.getChunks())
+			{
+				return false;
+			}
+			chunk = TransactionOverloadedException.retrying(() -> server.getChunk(key, value.getUpload(), nextChunk));
+			if (chunk == null)
+			{
+				throw new IOException(key + " was changed while it was being read");
+			}
+			nextChunk++;
+			position = 0;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,25 @@
+/**
+ * A replica's answer to {@link TransactionInterfaceReplicaToTM#phaseOneRequest(Transaction)}.
+ *
+ * Anything but YES aborts the transaction. The different NO votes tell the Transaction Manager why:
+ *   - NO_KEY_LOCKED: another transaction on the same key is between phase one and phase two
+ *   - NO_CONDITION_FAILED: the condition of a conditional write (e.g. putIfAbsent) does not hold
+ *   - NO_STALE_VERSION: the key already has a version (transaction ID) newer than this transaction,
+ *     written through another transaction server
+ *   - NO_STORAGE_ERROR: the replica could not read its data store to check the transaction
+ *   - NO_MISSING_CHUNKS: the replica does not have all chunks of the large value the transaction writes
+ *   - NO_UNREACHABLE: set by the Transaction Manager when the replica did not answer
+ *
+ * @author dhimal
+ */
+public enum TransactionVote
+{
+	YES, NO_KEY_LOCKED, NO_CONDITION_FAILED, NO_STALE_VERSION, NO_STORAGE_ERROR, NO_MISSING_CHUNKS,
+	NO_UNREACHABLE;
+
+
+	boolean isYes()
+	{
+		return this == YES;
+	}
+}
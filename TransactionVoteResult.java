@@ -0,0 +1,52 @@
+import java.io.Serializable;
+
+/**
+ * Answer of a replica to {@link TransactionInterfaceReplicaToTM#phaseOneRequest(Transaction)}:
+ *   - the vote, see {@link TransactionVote}
+ *   - for a conflict, the ID of the transaction it lost against: the version the key already has
+ *     (NO_STALE_VERSION) or the transaction that holds the key lock (NO_KEY_LOCKED). The Transaction
+ *     Manager moves its clock past it, so a server whose clock lags behind the others does not keep
+ *     issuing IDs that lose, see {@link TransactionClock#observe(long)}
+ *
+ * @author dhimal
+ */
+public class TransactionVoteResult implements Serializable
+{
+	private TransactionVote vote;
+
+	private long conflictingID;
+
+
+	private TransactionVoteResult(TransactionVote vote, long conflictingID)
+	{
+		this.vote = vote;
+		this.conflictingID = conflictingID;
+	}
+
+
+	static TransactionVoteResult of(TransactionVote vote)
+	{
+		return new TransactionVoteResult(vote, 0);
+	}
+
+
+	static TransactionVoteResult conflict(TransactionVote vote, long conflictingID)
+	{
+		return new TransactionVoteResult(vote, conflictingID);
+	}
+
+
+	public TransactionVote getVote()
+	{
+		return vote;
+	}
+
+
+	/**
+	 * @return the ID of the conflicting transaction, 0 for other votes
+	 */
+	public long getConflictingID()
+	{
+		return conflictingID;
+	}
+}
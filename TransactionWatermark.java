@@ -0,0 +1,174 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Applied watermark of a replica, for follower reads: every transaction with a lower ID that is ever
+ * committed has been applied here, so a client that has written or read nothing newer sees all of it.
+ *
+ * Transactions are not applied in ID order (they come from several Transaction Managers, which take IDs
+ * from per-thread blocks and retry with fresh ones), so the highest ID applied says nothing about the
+ * ones below it. The watermark is the lowest of
+ *   - the closed ID of every Transaction Manager: it commits nothing below it that it has not sent to
+ *     this replica, nor anything it left this replica out of, see {@link TransactionManager};
+ *   - the oldest transaction this replica has voted YES for and not applied yet, whose commit may be on
+ *     its way, lost, or in doubt.
+ * A prepare with an ID below a watermark that has been handed out could still be committed behind it,
+ * so it is refused ({@link #closedBefore()}) and the Transaction Manager retries it with a fresh ID.
+ *
+ * A Transaction Manager is known by the node id of its stream, and a newer stream of the same node (the
+ * server has restarted) replaces the older one. The watermark is 0 until every transaction server the
+ * replica registered with has sent its closed ID, and it does not move while one of them is silent.
+ *
+ * @author dhimal
+ */
+class TransactionWatermark
+{
+	private static class Closed
+	{
+		private long stream;
+
+		private long closedBefore;
+
+
+		Closed(long stream, long closedBefore)
+		{
+			this.stream = stream;
+			this.closedBefore = closedBefore;
+		}
+	}
+
+	private Map<Integer, Closed> closedByNode;
+
+	/**
+	 * Number of transaction servers the replica registered with.
+	 */
+	private IntSupplier coordinators;
+
+	private LongSupplier oldestPrepared;
+
+	/**
+	 * Highest closed ID a watermark has been computed from.
+	 */
+	private AtomicLong handedOut;
+
+	private volatile int waiting;
+
+
+	/**
+	 * @param oldestPrepared the ID of the oldest transaction voted for and not applied, Long.MAX_VALUE for none
+	 */
+	TransactionWatermark(IntSupplier coordinators, LongSupplier oldestPrepared)
+	{
+		this.closedByNode = new HashMap<>();
+		this.coordinators = coordinators;
+		this.oldestPrepared = oldestPrepared;
+		this.handedOut = new AtomicLong();
+	}
+
+
+	/**
+	 * Takes in the closed ID of a Transaction Manager. Closed IDs may arrive out of order, an older one is ignored.
+	 */
+	synchronized void closed(long stream, long closedBefore)
+	{
+		Closed closed = closedByNode.get(TransactionClock.nodeId(stream));
+		if (closed == null || stream > closed.stream)
+		{
+			closedByNode.put(TransactionClock.nodeId(stream), new Closed(stream, closedBefore));
+		}
+		else if (stream == closed.stream && closedBefore > closed.closedBefore)
+		{
+			closed.closedBefore = closedBefore;
+		}
+		notifyAll();
+	}
+
+
+	/**
+	 * Called when a prepared transaction has been applied or dropped, which may move the watermark.
+	 */
+	void released()
+	{
+		if (waiting > 0)
+		{
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+
+	/**
+	 * @return the first ID that may not have been applied here
+	 */
+	long current()
+	{
+		long closed = closedByCoordinators();
+		// published before the prepared transactions are looked at, see closedBefore()
+		handedOut.accumulateAndGet(closed, Math::max);
+		return Math.min(closed, oldestPrepared.getAsLong());
+	}
+
+
+	/**
+	 * A transaction that is locked for its prepare after this is read is either below the watermarks computed
+	 * from now on, or seen by them as prepared; one with a lower ID must be refused.
+	 *
+	 * @return the lowest ID a transaction must have to be prepared here
+	 */
+	long closedBefore()
+	{
+		return handedOut.get();
+	}
+
+
+	private synchronized long closedByCoordinators()
+	{
+		if (closedByNode.isEmpty() || closedByNode.size() < coordinators.getAsInt())
+		{
+			return 0;
+		}
+		long closed = Long.MAX_VALUE;
+		for (Closed coordinator : closedByNode.values())
+		{
+			closed = Math.min(closed, coordinator.closedBefore);
+		}
+		return closed;
+	}
+
+
+	/**
+	 * @return true once the transaction is below the watermark (0 always is), false if it is not within the wait
+	 */
+	synchronized boolean await(long transactionID, long maxWaitMillis)
+	{
+		long deadline = System.currentTimeMillis() + maxWaitMillis;
+		waiting++;
+		try
+		{
+			while (transactionID > 0 && current() <= transactionID)
+			{
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0)
+				{
+					return false;
+				}
+				wait(wait);
+			}
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			waiting--;
+		}
+	}
+}
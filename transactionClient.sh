@@ -4,4 +4,7 @@ javac TransactionClient.java
 
 # ./transactionClient.sh 6501 localhost 6500 debug
 # ./transactionClient.sh <client-port> <server-ip-address> <server-port> <debug-optional>
-java TransactionClient "$@"
+# RMI socket options, see TransactionSocketFactory. For example, to compress large values on a slow link:
+# RMI_OPTS="-Dtransaction.rmi.compression=true -Dtransaction.rmi.sendBufferBytes=262144" ./transactionClient.sh
+RMI_OPTS=${RMI_OPTS:-"-Dtransaction.rmi.tcpNoDelay=true -Dtransaction.rmi.keepAlive=true"}
+java ${RMI_OPTS} TransactionClient "$@"
@@ -7,4 +7,7 @@ javac TransactionReplica.java
 # ./transactionReplica.sh 6502 192.168.1.168 6500 n/a n/a debug
 # ./transactionReplica.sh <replica-port> <server-ip-address> <server-port> <database-dir> <database-file> <debug-optional>
 export CLASSPATH=${CLASSPATH}:/java/classes:${curDir}/sqlite-jdbc-3.27.2.1.jar
-java TransactionReplica "$@"
+# RMI socket options, see TransactionSocketFactory. For example, to compress large values on a slow link:
+# RMI_OPTS="-Dtransaction.rmi.compression=true -Dtransaction.rmi.sendBufferBytes=262144" ./transactionReplica.sh
+RMI_OPTS=${RMI_OPTS:-"-Dtransaction.rmi.tcpNoDelay=true -Dtransaction.rmi.keepAlive=true"}
+java ${RMI_OPTS} TransactionReplica "$@"
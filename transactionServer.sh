@@ -4,4 +4,7 @@ javac TransactionServer.java
 
 # ./transactionServer.sh 6500 debug
 # ./transactionServer.sh <server-port> <debug-optional>
-java TransactionServer "$@"
+# RMI socket options, see TransactionSocketFactory. For example, to compress large values on a slow link:
+# RMI_OPTS="-Dtransaction.rmi.compression=true -Dtransaction.rmi.sendBufferBytes=262144" ./transactionServer.sh
+RMI_OPTS=${RMI_OPTS:-"-Dtransaction.rmi.tcpNoDelay=true -Dtransaction.rmi.keepAlive=true"}
+java ${RMI_OPTS} TransactionServer "$@"